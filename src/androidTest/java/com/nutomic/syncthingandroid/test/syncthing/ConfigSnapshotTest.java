@@ -0,0 +1,60 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.syncthing.ConfigSnapshot;
+import com.nutomic.syncthingandroid.syncthing.RestApi;
+
+import org.json.JSONObject;
+
+public class ConfigSnapshotTest extends AndroidTestCase {
+
+    private static final String CONFIG = "{" +
+            "\"folders\":[" +
+            "{\"id\":\"f1\",\"path\":\"/p1\",\"readOnly\":false,\"rescanIntervalS\":60," +
+            "\"devices\":[{\"deviceID\":\"LOCAL\"},{\"deviceID\":\"REMOTE\"}]," +
+            "\"versioning\":{\"type\":\"simple\",\"params\":{\"keep\":\"5\"}}}," +
+            "{\"id\":\"f2\",\"path\":\"/p2\",\"readOnly\":true,\"rescanIntervalS\":60," +
+            "\"devices\":[{\"deviceID\":\"LOCAL\"}],\"versioning\":{\"type\":\"\"}}]," +
+            "\"devices\":[" +
+            "{\"deviceID\":\"LOCAL\",\"name\":\"local\",\"compression\":\"metadata\"," +
+            "\"introducer\":false,\"addresses\":[\"dynamic\"]}," +
+            "{\"deviceID\":\"REMOTE\",\"name\":\"remote\",\"compression\":\"metadata\"," +
+            "\"introducer\":true,\"addresses\":[\"dynamic\"]}]}";
+
+    private ConfigSnapshot mSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSnapshot = new ConfigSnapshot(new JSONObject(CONFIG), "LOCAL");
+    }
+
+    public void testFolders() {
+        assertEquals(2, mSnapshot.getFolders().size());
+        assertEquals("/p2", mSnapshot.getFolder("f2").path);
+        assertTrue(mSnapshot.getFolder("f1").versioning instanceof RestApi.SimpleVersioning);
+        assertNull(mSnapshot.getFolder("missing"));
+    }
+
+    public void testDevices() {
+        assertEquals(2, mSnapshot.getDevices(true).size());
+        assertEquals(1, mSnapshot.getDevices(false).size());
+        assertEquals("remote", mSnapshot.getDevices(false).get(0).name);
+        assertTrue(mSnapshot.getDevice("REMOTE").introducer);
+    }
+
+    public void testSharedFolders() {
+        assertEquals(2, mSnapshot.getSharedFolders("LOCAL").size());
+        assertEquals(1, mSnapshot.getSharedFolders("REMOTE").size());
+        assertEquals("f1", mSnapshot.getSharedFolders("REMOTE").get(0).id);
+        assertTrue(mSnapshot.getSharedFolders("UNKNOWN").isEmpty());
+    }
+
+    public void testCopy() {
+        RestApi.Folder copy = mSnapshot.getFolder("f1").copy();
+        copy.deviceIds.clear();
+        assertEquals(2, mSnapshot.getFolder("f1").deviceIds.size());
+    }
+
+}
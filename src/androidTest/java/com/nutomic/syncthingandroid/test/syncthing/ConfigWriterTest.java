@@ -0,0 +1,84 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.syncthing.ConfigWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConfigWriterTest extends AndroidTestCase {
+
+    private final List<String> mPosted = new ArrayList<>();
+
+    private final List<Boolean> mResults = new ArrayList<>();
+
+    private String mConfig;
+
+    private ConfigWriter mWriter;
+
+    private final ConfigWriter.OnConfigCommittedListener mListener =
+            new ConfigWriter.OnConfigCommittedListener() {
+                @Override
+                public void onConfigCommitted(boolean success) {
+                    mResults.add(success);
+                }
+            };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPosted.clear();
+        mResults.clear();
+        mConfig = "{}";
+        mWriter = new ConfigWriter(new ConfigWriter.Backend() {
+            @Override
+            public String serializeConfig() {
+                return mConfig;
+            }
+
+            @Override
+            public void postConfig(String config) {
+                mPosted.add(config);
+            }
+        });
+        mWriter.setCommitted(mConfig);
+    }
+
+    public void testUnchangedIsSkipped() {
+        mWriter.flush(mListener);
+        assertTrue(mPosted.isEmpty());
+        assertEquals(1, mResults.size());
+        assertTrue(mResults.get(0));
+    }
+
+    public void testCommit() {
+        mConfig = "{\"a\":1}";
+        mWriter.schedule(mListener);
+        mWriter.flush(mListener);
+        assertEquals(1, mPosted.size());
+        assertTrue(mResults.isEmpty());
+
+        mWriter.onCommitFinished(true);
+        assertEquals(2, mResults.size());
+
+        mWriter.flush(null);
+        assertEquals(1, mPosted.size());
+    }
+
+    public void testChangeWhileRunning() {
+        mConfig = "{\"a\":1}";
+        mWriter.flush(null);
+        mConfig = "{\"a\":2}";
+        mWriter.flush(mListener);
+        assertEquals(1, mPosted.size());
+
+        mWriter.onCommitFinished(false);
+        assertEquals(2, mPosted.size());
+        assertEquals("{\"a\":2}", mPosted.get(1));
+        mWriter.onCommitFinished(true);
+        assertEquals(1, mResults.size());
+        assertTrue(mResults.get(0));
+    }
+
+}
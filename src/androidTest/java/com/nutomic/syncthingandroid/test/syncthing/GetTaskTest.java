@@ -6,11 +6,16 @@ import android.test.suitebuilder.annotation.MediumTest;
 
 import com.nutomic.syncthingandroid.syncthing.GetTask;
 import com.nutomic.syncthingandroid.syncthing.RestApi;
+import com.nutomic.syncthingandroid.util.ConnectionStats;
+import com.nutomic.syncthingandroid.util.Https;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.MockWebServer;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
 
+import org.apache.http.client.HttpClient;
+
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
 public class GetTaskTest extends AndroidTestCase {
 
@@ -69,4 +74,17 @@ public class GetTaskTest extends AndroidTestCase {
         assertEquals(PARAM_VALUE_ONE, uri.getQueryParameter(PARAM_KEY_ONE));
     }
 
+    public void testPooledClientReusesConnection()
+            throws IOException, InterruptedException, ExecutionException {
+        mServer.enqueue(new MockResponse().setBody(RESPONSE));
+        ConnectionStats stats = new ConnectionStats();
+        HttpClient client = Https.createPooledHttpsClient("", stats);
+        String url = mServer.getUrl("").toString();
+        assertEquals(RESPONSE, new GetTask(client).execute(url, GetTask.URI_CONFIG, API_KEY).get());
+        assertEquals(RESPONSE, new GetTask(client).execute(url, GetTask.URI_CONFIG, API_KEY).get());
+        assertEquals(0, mServer.takeRequest().getSequenceNumber());
+        assertEquals(1, mServer.takeRequest().getSequenceNumber());
+        assertEquals(2, stats.getRequests());
+    }
+
 }
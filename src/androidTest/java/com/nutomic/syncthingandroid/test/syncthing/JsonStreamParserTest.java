@@ -0,0 +1,62 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.syncthing.JsonStreamParser;
+import com.nutomic.syncthingandroid.syncthing.RestApi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+
+public class JsonStreamParserTest extends AndroidTestCase {
+
+    private static InputStream stream(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+
+    public void testParseModel() throws IOException {
+        RestApi.Model m = JsonStreamParser.parseModel(stream("{\"globalBytes\":100," +
+                "\"inSyncBytes\":50,\"state\":\"syncing\",\"invalid\":null,\"unknown\":[1]}"));
+        assertEquals(100, m.globalBytes);
+        assertEquals(50, m.inSyncBytes);
+        assertEquals("syncing", m.state);
+        assertEquals("", m.invalid);
+    }
+
+    private static final String EVENTS =
+            "[{\"id\":1,\"type\":\"Ping\",\"data\":null}," +
+            "{\"id\":2,\"type\":\"ItemFinished\",\"data\":{\"folder\":\"f\",\"item\":\"a\"}}," +
+            "{\"id\":3,\"type\":\"DownloadProgress\",\"data\":{\"f\":{}}}]";
+
+    public void testParseEvents() throws IOException, JSONException {
+        JsonStreamParser.EventBatch batch = JsonStreamParser.parseEvents(stream(EVENTS), null);
+        assertEquals(3, batch.events.size());
+        assertEquals(3, batch.lastId);
+        assertNull(batch.events.get(0).data);
+        assertEquals(2, batch.events.get(1).id);
+        assertEquals("ItemFinished", batch.events.get(1).type);
+        assertEquals("a", batch.events.get(1).data.getString("item"));
+    }
+
+    public void testParseEventsFiltered() throws IOException {
+        JsonStreamParser.EventBatch batch = JsonStreamParser.parseEvents(stream(EVENTS),
+                new HashSet<>(Collections.singletonList("ItemFinished")));
+        assertEquals(1, batch.events.size());
+        assertEquals("ItemFinished", batch.events.get(0).type);
+        assertEquals(3, batch.lastId);
+    }
+
+    public void testParseConfig() throws IOException, JSONException {
+        JSONObject config = JsonStreamParser.parseConfig(stream(
+                "{\"options\":{\"urAccepted\":-1,\"listenAddress\":[\"0.0.0.0:22000\"]}}"));
+        assertEquals(-1, config.getJSONObject("options").getInt("urAccepted"));
+        assertEquals(1, config.getJSONObject("options").getJSONArray("listenAddress").length());
+    }
+
+}
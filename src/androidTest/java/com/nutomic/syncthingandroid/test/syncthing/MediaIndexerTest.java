@@ -0,0 +1,86 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.syncthing.MediaIndexer;
+import com.nutomic.syncthingandroid.test.MockContext;
+import com.nutomic.syncthingandroid.test.Util;
+
+import java.io.File;
+import java.io.IOException;
+
+public class MediaIndexerTest extends AndroidTestCase {
+
+    private File mTestFolder;
+
+    private MediaIndexer mIndexer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestFolder = new File(new MockContext(getContext()).getFilesDir(), "media-indexer-test");
+        mTestFolder.mkdir();
+        mIndexer = new MediaIndexer(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mIndexer.quit();
+        Util.deleteRecursive(mTestFolder);
+        super.tearDown();
+    }
+
+    public void testDuplicatesAreBatched() throws Exception {
+        File file = createFile("a");
+        mIndexer.onItemFinished(file, false);
+        mIndexer.onItemFinished(file, false);
+        mIndexer.onItemFinished(createFile("b"), false);
+        mIndexer.flushNow();
+        waitForBatches(1);
+
+        assertEquals(3, mIndexer.getReceivedCount());
+        assertEquals(1, mIndexer.getDuplicateCount());
+        assertEquals(2, mIndexer.getScannedCount());
+    }
+
+    public void testFlushAfterWindow() throws Exception {
+        mIndexer.onItemFinished(createFile("a"), false);
+        assertEquals(0, mIndexer.getBatchCount());
+        waitForBatches(1);
+        assertEquals(1, mIndexer.getScannedCount());
+    }
+
+    public void testFlushWhenFull() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            mIndexer.onItemFinished(new File(mTestFolder, Integer.toString(i)), false);
+        }
+        // Well below the batch window.
+        Thread.sleep(500);
+        assertEquals(1, mIndexer.getBatchCount());
+        assertEquals(0, mIndexer.getScannedCount());
+    }
+
+    public void testDeleteIsNotScanned() throws Exception {
+        File file = createFile("a");
+        mIndexer.onItemFinished(file, false);
+        mIndexer.onItemFinished(file, true);
+        mIndexer.flushNow();
+        waitForBatches(1);
+
+        assertEquals(0, mIndexer.getScannedCount());
+    }
+
+    private File createFile(String name) throws IOException {
+        File file = new File(mTestFolder, name);
+        assertTrue(file.createNewFile());
+        return file;
+    }
+
+    private void waitForBatches(long count) throws InterruptedException {
+        for (int i = 0; i < 100 && mIndexer.getBatchCount() < count; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, mIndexer.getBatchCount());
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.nutomic.syncthingandroid.syncthing.OutputPump;
+import com.nutomic.syncthingandroid.syncthing.SyncthingRunnable;
+import com.nutomic.syncthingandroid.test.MockContext;
+import com.nutomic.syncthingandroid.test.Util;
+import com.nutomic.syncthingandroid.util.LogStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class OutputPumpTest extends AndroidTestCase {
+
+    private File mTestFolder;
+
+    private int mApiListeningCount;
+
+    private final CountDownLatch mConsumerBlocked = new CountDownLatch(1);
+
+    private final CountDownLatch mReleaseConsumer = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestFolder = new File(new MockContext(getContext()).getFilesDir(), "output-pump-test");
+        mTestFolder.mkdir();
+        mApiListeningCount = 0;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(mTestFolder);
+        super.tearDown();
+    }
+
+    public void testLines() throws InterruptedException {
+        LogStore store = new LogStore(mTestFolder);
+        OutputPump pump = new OutputPump(store, new SyncthingRunnable.OnApiListeningListener() {
+            @Override
+            public void onApiListening() {
+                mApiListeningCount++;
+            }
+        });
+        pump.pump(new ByteArrayInputStream("one\r\nAPI listening\nlast".getBytes()),
+                Log.INFO, true);
+        pump.join();
+
+        assertEquals("one\nAPI listening\nlast\n", store.getText(0, Log.VERBOSE));
+        assertEquals(1, mApiListeningCount);
+    }
+
+    public void testDropInfo() throws InterruptedException {
+        LogStore store = new LogStore();
+        OutputPump pump = startBlocked(store);
+        pump.pump(new ByteArrayInputStream(lines(5).getBytes()), Log.INFO, false);
+        Thread.sleep(200);
+        mReleaseConsumer.countDown();
+        pump.join();
+
+        assertEquals(3, pump.getDropped());
+        assertEquals(1 + 2, store.getEntries(0, Log.VERBOSE).size());
+    }
+
+    public void testKeepWarnings() throws InterruptedException {
+        LogStore store = new LogStore();
+        OutputPump pump = startBlocked(store);
+        pump.pump(new ByteArrayInputStream(lines(5).getBytes()), Log.WARN, false);
+        Thread.sleep(200);
+        mReleaseConsumer.countDown();
+        pump.join();
+
+        assertEquals(0, pump.getDropped());
+        assertEquals(1 + 5, store.getEntries(0, Log.VERBOSE).size());
+    }
+
+    public void testDropWarnings() throws InterruptedException {
+        LogStore store = new LogStore();
+        OutputPump pump = startBlocked(store, 3);
+        pump.pump(new ByteArrayInputStream(lines(5).getBytes()), Log.WARN, false);
+        Thread.sleep(200);
+        mReleaseConsumer.countDown();
+        pump.join();
+
+        assertEquals(2, pump.getDropped());
+        assertEquals(1 + 3, store.getEntries(0, Log.VERBOSE).size());
+    }
+
+    public void testSampling() throws InterruptedException {
+        OutputPump pump = new OutputPump(new LogStore(), null);
+        pump.pump(new ByteArrayInputStream(lines(300).getBytes()), Log.INFO, false);
+        pump.join();
+        // 100 lines are forwarded, then every 100th info line.
+        assertEquals(198, pump.getSuppressed());
+
+        pump = new OutputPump(new LogStore(), null);
+        pump.pump(new ByteArrayInputStream(lines(300).getBytes()), Log.WARN, false);
+        pump.join();
+        // 100 lines are forwarded, then every 10th warning.
+        assertEquals(180, pump.getSuppressed());
+    }
+
+    private OutputPump startBlocked(LogStore store) throws InterruptedException {
+        return startBlocked(store, 100);
+    }
+
+    /**
+     * Returns a pump that queues at most 2 info lines and maxPriorityQueued warnings, and whose
+     * consumer is blocked by the line reporting the API as listening.
+     */
+    private OutputPump startBlocked(LogStore store, int maxPriorityQueued)
+            throws InterruptedException {
+        OutputPump pump = new OutputPump(store, new SyncthingRunnable.OnApiListeningListener() {
+            @Override
+            public void onApiListening() {
+                mConsumerBlocked.countDown();
+                try {
+                    mReleaseConsumer.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 2, maxPriorityQueued);
+        pump.pump(new ByteArrayInputStream("API listening\n".getBytes()), Log.INFO, true);
+        assertTrue(mConsumerBlocked.await(1, TimeUnit.SECONDS));
+        return pump;
+    }
+
+    private static String lines(int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append("line ").append(i).append('\n');
+        }
+        return sb.toString();
+    }
+
+}
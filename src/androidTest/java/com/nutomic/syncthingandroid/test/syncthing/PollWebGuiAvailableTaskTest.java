@@ -45,4 +45,20 @@ public class PollWebGuiAvailableTaskTest extends AndroidTestCase {
 
         // TODO: Unit tests fail when Syncthing is killed SyncthingRunnable.killSyncthing();
     }
+
+    public void testApiListening() throws InterruptedException {
+        String httpsCertPath = getContext().getFilesDir() + "/" + SyncthingService.HTTPS_CERT_FILE;
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        PollWebGuiAvailableTask task = new PollWebGuiAvailableTask(httpsCertPath) {
+            @Override
+            protected void onPostExecute(Void aVoid) {
+                latch.countDown();
+            }
+        };
+        task.execute("https://127.0.0.1:1");
+        task.onApiListening();
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(task.getTimeToReady() >= 0);
+    }
 }
@@ -4,13 +4,17 @@ import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.nutomic.syncthingandroid.syncthing.GetTask;
 import com.nutomic.syncthingandroid.syncthing.PollWebGuiAvailableTask;
 import com.nutomic.syncthingandroid.syncthing.RestApi;
 import com.nutomic.syncthingandroid.syncthing.SyncthingRunnable;
 import com.nutomic.syncthingandroid.syncthing.SyncthingService;
 import com.nutomic.syncthingandroid.test.MockContext;
 import com.nutomic.syncthingandroid.util.ConfigXml;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
 
+import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -45,6 +49,10 @@ public class RestApiTest extends AndroidTestCase {
             public void onApiAvailable() {
                 latch.countDown();
             }
+
+            @Override
+            public void onApiFailed() {
+            }
         }, null);
         latch.await(1, TimeUnit.SECONDS);
     }
@@ -132,6 +140,26 @@ public class RestApiTest extends AndroidTestCase {
         latch.await(1, TimeUnit.SECONDS);
     }
 
+    public void testParseConfigInSync() throws IOException {
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setBody("{\"configInSync\": true}"));
+        server.enqueue(new MockResponse().setBody("{\"configInSync\": false}"));
+        server.enqueue(new MockResponse().setBody("not json"));
+        server.enqueue(new MockResponse().setResponseCode(500));
+        server.play();
+        String url = server.getUrl("").toString();
+
+        assertEquals(Boolean.TRUE, RestApi.parseConfigInSync(
+                new GetTask("").executeBlocking(url, GetTask.URI_CONFIG_INSYNC, "")));
+        assertEquals(Boolean.FALSE, RestApi.parseConfigInSync(
+                new GetTask("").executeBlocking(url, GetTask.URI_CONFIG_INSYNC, "")));
+        // A failed check must not be mistaken for a config that needs a restart.
+        assertNull(RestApi.parseConfigInSync(
+                new GetTask("").executeBlocking(url, GetTask.URI_CONFIG_INSYNC, "")));
+        assertNull(RestApi.parseConfigInSync(
+                new GetTask("").executeBlocking(url, GetTask.URI_CONFIG_INSYNC, "")));
+    }
+
     public void testGetValueEarly() {
         // Should never throw an exception.
         mApi.getValue("Options", "ListenAddress");
@@ -0,0 +1,69 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.syncthing.RestExecutor;
+import com.nutomic.syncthingandroid.syncthing.RetryPolicy;
+
+public class RetryPolicyTest extends AndroidTestCase {
+
+    private static final String ENDPOINT = "/rest/system/status";
+
+    private static final long OPEN_DURATION = 200;
+
+    private RetryPolicy mPolicy;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPolicy = new RetryPolicy(new RestExecutor(), OPEN_DURATION);
+    }
+
+    public void testDelay() {
+        for (int i = 0; i < 100; i++) {
+            long first = mPolicy.getDelay(1);
+            assertTrue(first >= 125 && first <= 250);
+            long last = mPolicy.getDelay(RetryPolicy.MAX_ATTEMPTS - 1);
+            assertTrue(last >= 1000 && last <= 2000);
+            long capped = mPolicy.getDelay(100);
+            assertTrue(capped >= 4000 && capped <= 8000);
+        }
+    }
+
+    public void testBreakerOpens() {
+        for (int i = 0; i < RetryPolicy.FAILURE_THRESHOLD - 1; i++) {
+            mPolicy.onFailure(ENDPOINT);
+        }
+        assertTrue(mPolicy.allowRequest(ENDPOINT));
+        mPolicy.onFailure(ENDPOINT);
+        assertFalse(mPolicy.allowRequest(ENDPOINT));
+        assertTrue(mPolicy.allowRequest("/rest/system/config"));
+    }
+
+    public void testBreakerHalfOpens() throws InterruptedException {
+        for (int i = 0; i < RetryPolicy.FAILURE_THRESHOLD; i++) {
+            mPolicy.onFailure(ENDPOINT);
+        }
+        Thread.sleep(OPEN_DURATION + 50);
+        // Only a single request is let through.
+        assertTrue(mPolicy.allowRequest(ENDPOINT));
+        assertFalse(mPolicy.allowRequest(ENDPOINT));
+
+        mPolicy.onSuccess(ENDPOINT);
+        assertTrue(mPolicy.allowRequest(ENDPOINT));
+    }
+
+    public void testSetAvailable() {
+        for (int i = 0; i < RetryPolicy.FAILURE_THRESHOLD; i++) {
+            mPolicy.onFailure(ENDPOINT);
+        }
+        mPolicy.setAvailable(false);
+        assertFalse(mPolicy.allowRequest(ENDPOINT));
+        assertFalse(mPolicy.allowRequest("/rest/system/config"));
+
+        mPolicy.setAvailable(true);
+        assertTrue(mPolicy.allowRequest(ENDPOINT));
+        assertTrue(mPolicy.allowRequest("/rest/system/config"));
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.syncthing.ScanScheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ScanSchedulerTest extends AndroidTestCase {
+
+    public void testCoalesceDropsCoveredPaths() {
+        List<String> result = ScanScheduler.coalesce(
+                Arrays.asList("/dir", "/dir/file", "/dir/sub/file", "/other"), 8);
+        assertEquals(Arrays.asList("dir", "other"), result);
+    }
+
+    public void testCoalesceMergesSiblings() {
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            paths.add("/photos/" + i + ".jpg");
+        }
+        paths.add("/music/song.mp3");
+        assertEquals(Arrays.asList("music/song.mp3", "photos"), ScanScheduler.coalesce(paths, 8));
+    }
+
+    public void testCoalesceKeepsFewSiblings() {
+        List<String> result = ScanScheduler.coalesce(Arrays.asList("/a/1", "/a/2"), 8);
+        assertEquals(Arrays.asList("a/1", "a/2"), result);
+    }
+
+    public void testCoalesceRoot() {
+        assertEquals(Collections.singletonList(""),
+                ScanScheduler.coalesce(Arrays.asList("", "/a", "/b/c"), 8));
+    }
+
+    public void testIsCovered() {
+        List<String> running = Arrays.asList("photos/2016", "music/song.mp3");
+        assertTrue(ScanScheduler.isCovered(running, "photos/2016"));
+        assertTrue(ScanScheduler.isCovered(running, "/photos/2016/a/b.jpg"));
+        assertFalse(ScanScheduler.isCovered(running, "photos"));
+        assertFalse(ScanScheduler.isCovered(running, "photos/2016-old"));
+        assertFalse(ScanScheduler.isCovered(running, "music"));
+        assertTrue(ScanScheduler.isCovered(Collections.singletonList(""), "any/path"));
+    }
+
+}
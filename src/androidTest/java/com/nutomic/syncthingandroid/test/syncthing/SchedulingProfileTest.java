@@ -0,0 +1,22 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.syncthing.SchedulingProfile;
+
+public class SchedulingProfileTest extends AndroidTestCase {
+
+    public void testSelect() {
+        assertEquals(SchedulingProfile.CHARGING_FAST, SchedulingProfile.select(true, true));
+        assertEquals(SchedulingProfile.CHARGING_FAST, SchedulingProfile.select(true, false));
+        assertEquals(SchedulingProfile.INTERACTIVE, SchedulingProfile.select(false, true));
+        assertEquals(SchedulingProfile.BACKGROUND, SchedulingProfile.select(false, false));
+    }
+
+    public void testInteractiveYieldsToForeground() {
+        assertTrue(SchedulingProfile.INTERACTIVE.nice > SchedulingProfile.BACKGROUND.nice);
+        assertEquals("idle", SchedulingProfile.INTERACTIVE.ioClass);
+        assertTrue(SchedulingProfile.CHARGING_FAST.nice < SchedulingProfile.BACKGROUND.nice);
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.syncthing.SelfWriteTracker;
+
+import java.util.concurrent.TimeUnit;
+
+public class SelfWriteTrackerTest extends AndroidTestCase {
+
+    public void testSelfWrite() {
+        SelfWriteTracker tracker = new SelfWriteTracker();
+        tracker.onItemStarted("folder", "dir/file");
+        long now = SystemClock.elapsedRealtime();
+        assertTrue(tracker.isSelfWrite("folder", "/dir/file", now));
+
+        tracker.onItemFinished("folder", "dir/file");
+        assertTrue(tracker.isSelfWrite("folder", "dir/file", now));
+        assertFalse(tracker.isSelfWrite("folder", "dir/file",
+                now + TimeUnit.MINUTES.toMillis(1)));
+    }
+
+    public void testOtherPath() {
+        SelfWriteTracker tracker = new SelfWriteTracker();
+        tracker.onItemStarted("folder", "dir/file");
+        long now = SystemClock.elapsedRealtime();
+        assertFalse(tracker.isSelfWrite("folder", "dir/other", now));
+        assertFalse(tracker.isSelfWrite("other", "dir/file", now));
+    }
+
+}
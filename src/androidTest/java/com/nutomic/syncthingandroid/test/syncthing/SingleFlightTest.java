@@ -0,0 +1,109 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.syncthing.SingleFlight;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SingleFlightTest extends AndroidTestCase {
+
+    private final List<String> mResults = new ArrayList<>();
+
+    private final SingleFlight.Callback<String> mCallback = new SingleFlight.Callback<String>() {
+        @Override
+        public void onResult(String result) {
+            mResults.add(result);
+        }
+    };
+
+    public void testJoinPending() {
+        SingleFlight<String> flight = new SingleFlight<>(0);
+        assertTrue(flight.join("key", null, mCallback));
+        assertFalse(flight.join("key", null, mCallback));
+        assertTrue(flight.join("other", null, mCallback));
+        flight.complete("key", flight.getRequestOwner("key"), "result");
+        assertEquals(2, mResults.size());
+        assertEquals("result", mResults.get(0));
+    }
+
+    public void testFailureNotDelivered() {
+        SingleFlight<String> flight = new SingleFlight<>(60000);
+        assertTrue(flight.join("key", null, mCallback));
+        flight.complete("key", flight.getRequestOwner("key"), null);
+        assertTrue(mResults.isEmpty());
+        assertTrue(flight.join("key", null, mCallback));
+    }
+
+    public void testFreshResultReused() {
+        SingleFlight<String> flight = new SingleFlight<>(60000);
+        assertTrue(flight.join("key", null, mCallback));
+        flight.complete("key", flight.getRequestOwner("key"), "result");
+        assertFalse(flight.join("key", null, mCallback));
+        flight.setFreshness(0);
+        assertTrue(flight.join("key", null, mCallback));
+    }
+
+    public void testCancel() {
+        Object owner = new Object();
+        SingleFlight<String> flight = new SingleFlight<>(0);
+        assertTrue(flight.join("key", owner, mCallback));
+        flight.join("key", null, mCallback);
+        flight.cancel(owner);
+        flight.complete("key", flight.getRequestOwner("key"), "result");
+        assertEquals(1, mResults.size());
+    }
+
+    public void testCancelLastWaiter() {
+        Object owner = new Object();
+        SingleFlight<String> flight = new SingleFlight<>(0);
+        assertTrue(flight.join("key", owner, mCallback));
+        Object requestOwner = flight.getRequestOwner("key");
+        assertNotNull(requestOwner);
+        List<Object> abandoned = flight.cancel(owner);
+        assertEquals(1, abandoned.size());
+        assertSame(requestOwner, abandoned.get(0));
+
+        // A new request is sent, and the result of the aborted one is ignored.
+        assertTrue(flight.join("key", null, mCallback));
+        flight.complete("key", requestOwner, "aborted");
+        assertTrue(mResults.isEmpty());
+        flight.complete("key", flight.getRequestOwner("key"), "result");
+        assertEquals(1, mResults.size());
+        assertEquals("result", mResults.get(0));
+    }
+
+    public void testCancelCachedResult() throws InterruptedException {
+        Object owner = new Object();
+        SingleFlight<String> flight = new SingleFlight<>(60000);
+        assertTrue(flight.join("key", null, mCallback));
+        flight.complete("key", flight.getRequestOwner("key"), "result");
+        mResults.clear();
+
+        assertFalse(flight.join("key", owner, mCallback));
+        flight.cancel(owner);
+        assertFalse(flight.join("key", null, mCallback));
+        awaitMainThread();
+        assertEquals(1, mResults.size());
+    }
+
+    /**
+     * Waits until all runnables that were posted to the main thread so far have run.
+     */
+    private void awaitMainThread() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,184 @@
+package com.nutomic.syncthingandroid.test.syncthing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.syncthing.StartupHandshake;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class StartupHandshakeTest extends AndroidTestCase {
+
+    private final Map<String, Integer> mSent = new HashMap<>();
+
+    private final List<String> mCancelled = new ArrayList<>();
+
+    private int mSendCount;
+
+    private int mReadyCount;
+
+    private final CountDownLatch mFailed = new CountDownLatch(1);
+
+    private final StartupHandshake.Callback mCallback = new StartupHandshake.Callback() {
+        @Override
+        public void sendRequest(String fetch, int requestId) {
+            mSent.put(fetch, requestId);
+            mSendCount++;
+        }
+
+        @Override
+        public void cancelRequest(String fetch) {
+            mCancelled.add(fetch);
+        }
+
+        @Override
+        public void onReady() {
+            mReadyCount++;
+        }
+
+        @Override
+        public void onFailed() {
+            mFailed.countDown();
+        }
+    };
+
+    private StartupHandshake mHandshake;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHandshake = new StartupHandshake(mCallback);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mHandshake.cancel();
+            }
+        });
+    }
+
+    public void testReady() {
+        mHandshake.start("a", "b");
+        assertEquals(2, mSent.size());
+
+        mHandshake.onSuccess("a", mSent.get("a"));
+        assertEquals(0, mReadyCount);
+        mHandshake.onSuccess("a", mSent.get("a"));
+        mHandshake.onSuccess("b", mSent.get("b"));
+        assertEquals(1, mReadyCount);
+        assertEquals(2, mHandshake.getDurations().size());
+    }
+
+    public void testOldGenerationIgnored() {
+        mHandshake.start("a");
+        int old = mSent.get("a");
+        mHandshake.start("a");
+
+        mHandshake.onSuccess("a", old);
+        assertEquals(0, mReadyCount);
+        mHandshake.onSuccess("a", mSent.get("a"));
+        assertEquals(1, mReadyCount);
+    }
+
+    public void testRetryAfterFailure() throws InterruptedException {
+        mHandshake = new StartupHandshake(mCallback, 60000, 50, 60000);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mHandshake.start("a");
+                mHandshake.onFailure("a", mSent.get("a"));
+            }
+        });
+        final int first = mSent.get("a");
+        Thread.sleep(200);
+
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                // The failed request can not finish the handshake anymore.
+                mHandshake.onSuccess("a", first);
+            }
+        });
+        assertEquals(2, mSendCount);
+        assertEquals(0, mReadyCount);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mHandshake.onSuccess("a", mSent.get("a"));
+            }
+        });
+        assertEquals(1, mReadyCount);
+    }
+
+    public void testRoundTimeout() throws InterruptedException {
+        mHandshake = new StartupHandshake(mCallback, 100, 60000, 60000);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mHandshake.start("a", "b");
+                mHandshake.onSuccess("b", mSent.get("b"));
+            }
+        });
+        Thread.sleep(150);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mHandshake.cancel();
+            }
+        });
+
+        // Only the unfinished request was aborted and sent again, then cancelled.
+        assertEquals(3, mSendCount);
+        assertEquals(2, mCancelled.size());
+        assertEquals("a", mCancelled.get(0));
+    }
+
+    public void testDeadline() throws InterruptedException {
+        mHandshake = new StartupHandshake(mCallback, 60000, 60000, 100);
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mHandshake.start("a");
+            }
+        });
+        assertTrue(mFailed.await(1, TimeUnit.SECONDS));
+
+        runOnMainThread(new Runnable() {
+            @Override
+            public void run() {
+                mHandshake.onSuccess("a", mSent.get("a"));
+            }
+        });
+        assertEquals(1, mCancelled.size());
+        assertEquals(0, mReadyCount);
+    }
+
+    /**
+     * Runs r on the main thread and waits until it has finished, as the handshake requires.
+     */
+    private void runOnMainThread(final Runnable r) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+}
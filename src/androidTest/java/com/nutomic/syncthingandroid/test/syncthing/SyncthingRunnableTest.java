@@ -7,6 +7,9 @@ import com.nutomic.syncthingandroid.syncthing.SyncthingRunnable;
 import com.nutomic.syncthingandroid.test.MockContext;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * NOTE: This test will cause a "syncthing binary crashed" notification, because
@@ -24,4 +27,80 @@ public class SyncthingRunnableTest extends AndroidTestCase {
         testFile.delete();
     }
 
+    public void testStopByShutdownRequest() {
+        FakeSteps steps = new FakeSteps(true, true, 1);
+        assertEquals(SyncthingRunnable.StopMethod.SHUTDOWN_REQUEST, SyncthingRunnable.stop(steps));
+        assertEquals(Arrays.asList("shutdown", "await"), steps.calls);
+    }
+
+    public void testStopBySigint() {
+        FakeSteps steps = new FakeSteps(false, true, 1);
+        assertEquals(SyncthingRunnable.StopMethod.SIGINT, SyncthingRunnable.stop(steps));
+        assertEquals(Arrays.asList("shutdown", "interrupt", "await"), steps.calls);
+
+        steps = new FakeSteps(true, true, 2);
+        assertEquals(SyncthingRunnable.StopMethod.SIGINT, SyncthingRunnable.stop(steps));
+        assertEquals(Arrays.asList("shutdown", "await", "interrupt", "await"), steps.calls);
+    }
+
+    public void testStopBySigkill() {
+        FakeSteps steps = new FakeSteps(false, false, 1);
+        assertEquals(SyncthingRunnable.StopMethod.SIGKILL, SyncthingRunnable.stop(steps));
+        assertEquals(Arrays.asList("shutdown", "interrupt", "destroy", "await"), steps.calls);
+    }
+
+    public void testStopFails() {
+        FakeSteps steps = new FakeSteps(true, true, -1);
+        assertNull(SyncthingRunnable.stop(steps));
+        assertEquals(Arrays.asList("shutdown", "await", "interrupt", "await", "destroy", "await"),
+                steps.calls);
+    }
+
+    /**
+     * Records the steps taken, and lets the process exit on the given call of awaitExit().
+     */
+    private static class FakeSteps implements SyncthingRunnable.StopSteps {
+
+        final List<String> calls = new ArrayList<>();
+
+        private final boolean mAcceptShutdown;
+
+        private final boolean mCanInterrupt;
+
+        private int mExitOnAwait;
+
+        /**
+         * @param exitOnAwait Number of the awaitExit() call that reports the process as exited,
+         *                    or -1 if it never exits.
+         */
+        FakeSteps(boolean acceptShutdown, boolean canInterrupt, int exitOnAwait) {
+            mAcceptShutdown = acceptShutdown;
+            mCanInterrupt = canInterrupt;
+            mExitOnAwait = exitOnAwait;
+        }
+
+        @Override
+        public boolean requestShutdown(long timeout) {
+            calls.add("shutdown");
+            return mAcceptShutdown;
+        }
+
+        @Override
+        public boolean interrupt() {
+            calls.add("interrupt");
+            return mCanInterrupt;
+        }
+
+        @Override
+        public void destroy() {
+            calls.add("destroy");
+        }
+
+        @Override
+        public boolean awaitExit(long timeout) {
+            calls.add("await");
+            return --mExitOnAwait == 0;
+        }
+    }
+
 }
@@ -7,6 +7,7 @@ import com.nutomic.syncthingandroid.syncthing.RestApi;
 import com.nutomic.syncthingandroid.test.MockContext;
 import com.nutomic.syncthingandroid.test.Util;
 import com.nutomic.syncthingandroid.util.FolderObserver;
+import com.nutomic.syncthingandroid.util.WatchBudget;
 
 import java.io.File;
 import java.io.IOException;
@@ -113,6 +114,55 @@ public class FolderObserverTest extends AndroidTestCase
         fo.stopWatching();
     }
 
+    public void testWatchBudget() throws InterruptedException,
+            FolderObserver.FolderNotExistingException {
+        new File(mTestFolder, "subfolder/nested").mkdirs();
+        FolderObserver fo = new FolderObserver(this, createFolder("testWatchBudget"),
+                new WatchBudget(1));
+        fo.awaitWalk();
+        assertEquals(1, fo.getWatchedCount());
+        assertEquals(2, fo.getUnwatchedCount());
+
+        fo.stopWatching();
+        assertEquals(0, fo.getWatchedCount());
+    }
+
+    public void testSymlinkCycle() throws IOException, InterruptedException,
+            FolderObserver.FolderNotExistingException {
+        File subFolder = new File(mTestFolder, "subfolder");
+        subFolder.mkdir();
+        File link = new File(subFolder, "loop");
+        Runtime.getRuntime().exec(new String[]{"ln", "-s", mTestFolder.getAbsolutePath(),
+                link.getAbsolutePath()}).waitFor();
+        assertTrue(link.isDirectory());
+
+        FolderObserver fo = new FolderObserver(this, createFolder("testSymlinkCycle"),
+                new WatchBudget(100));
+        fo.awaitWalk();
+        assertEquals(2, fo.getWatchedCount());
+
+        fo.stopWatching();
+        // Util.deleteRecursive() would follow the link.
+        link.delete();
+    }
+
+    public void testDeepTree() throws InterruptedException,
+            FolderObserver.FolderNotExistingException {
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            path.append("/d");
+        }
+        assertTrue(new File(mTestFolder, path.toString()).mkdirs());
+
+        WatchBudget budget = new WatchBudget(3000);
+        FolderObserver fo = new FolderObserver(this, createFolder("testDeepTree"), budget);
+        fo.awaitWalk();
+        assertEquals(2001, fo.getWatchedCount());
+
+        fo.stopWatching();
+        assertEquals(0, budget.getUsed());
+    }
+
     public void testNotExisting() throws IOException, InterruptedException {
         RestApi.Folder r = new RestApi.Folder();
         r.path = new File(new MockContext(getContext()).getFilesDir(), "not-existing").getPath();
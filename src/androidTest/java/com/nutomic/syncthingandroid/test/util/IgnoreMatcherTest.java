@@ -0,0 +1,105 @@
+package com.nutomic.syncthingandroid.test.util;
+
+import android.test.AndroidTestCase;
+
+import com.nutomic.syncthingandroid.test.MockContext;
+import com.nutomic.syncthingandroid.test.Util;
+import com.nutomic.syncthingandroid.util.IgnoreMatcher;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class IgnoreMatcherTest extends AndroidTestCase {
+
+    private File mTestFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestFolder = new File(new MockContext(getContext()).getFilesDir(), "ignore-test");
+        mTestFolder.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(mTestFolder);
+        super.tearDown();
+    }
+
+    public void testInternal() {
+        IgnoreMatcher matcher = new IgnoreMatcher();
+        assertTrue(matcher.isIgnored("/.stversions/file~20160101"));
+        assertTrue(matcher.isIgnored("/.stfolder"));
+        assertTrue(matcher.isIgnored("/dir/.syncthing.file.txt.tmp"));
+        assertTrue(matcher.isIgnored("/dir/~syncthing~file.txt.tmp"));
+        assertFalse(matcher.isIgnored("/dir/file.tmp"));
+        assertFalse(matcher.isIgnored(""));
+    }
+
+    public void testPatterns() {
+        IgnoreMatcher matcher = new IgnoreMatcher();
+        matcher.addPattern("// comment");
+        matcher.addPattern("!keep.log");
+        matcher.addPattern("*.log");
+        matcher.addPattern("/build");
+        matcher.addPattern("(?i)cache");
+        matcher.addPattern("docs/**/draft?");
+
+        assertTrue(matcher.isIgnored("/a/b.log"));
+        assertFalse(matcher.isIgnored("/a/keep.log"));
+        assertTrue(matcher.isIgnored("/build/out.txt"));
+        assertFalse(matcher.isIgnored("/src/build"));
+        assertTrue(matcher.isIgnored("/x/CACHE/file"));
+        assertTrue(matcher.isIgnored("/docs/a/b/draft1"));
+        assertFalse(matcher.isIgnored("/docs/a/b/draft10"));
+        assertFalse(matcher.isIgnored("/readme.txt"));
+    }
+
+    public void testSkippedDirectory() {
+        IgnoreMatcher matcher = new IgnoreMatcher();
+        matcher.addPattern("/build");
+        assertTrue(matcher.isSkippedDirectory("/build"));
+        assertTrue(matcher.isSkippedDirectory("/.stversions"));
+
+        matcher.addPattern("!/build/keep");
+        assertFalse(matcher.isSkippedDirectory("/build"));
+        assertTrue(matcher.isSkippedDirectory("/.stversions"));
+    }
+
+    public void testLoad() throws IOException {
+        assertFalse(IgnoreMatcher.load(mTestFolder).isIgnored("/a.log"));
+
+        write(IgnoreMatcher.IGNORE_FILE, "*.log\n// comment\n");
+        IgnoreMatcher matcher = IgnoreMatcher.load(mTestFolder);
+        assertTrue(matcher.isIgnored("/a.log"));
+        assertFalse(matcher.isIgnored("/a.txt"));
+    }
+
+    public void testInclude() throws IOException {
+        write(IgnoreMatcher.IGNORE_FILE, "*.log\n#include more\n");
+        write("more", "/build\n");
+        IgnoreMatcher matcher = IgnoreMatcher.load(mTestFolder);
+        assertTrue(matcher.isIgnored("/a.log"));
+        assertTrue(matcher.isIgnored("/build/out"));
+    }
+
+    public void testRecursiveInclude() throws IOException {
+        write(IgnoreMatcher.IGNORE_FILE, "*.log\n#include more\n");
+        write("more", "/build\n#include " + IgnoreMatcher.IGNORE_FILE + "\n#include more\n");
+        // Must not loop forever.
+        IgnoreMatcher matcher = IgnoreMatcher.load(mTestFolder);
+        assertTrue(matcher.isIgnored("/a.log"));
+        assertTrue(matcher.isIgnored("/build/out"));
+    }
+
+    private void write(String name, String content) throws IOException {
+        FileWriter writer = new FileWriter(new File(mTestFolder, name));
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+}
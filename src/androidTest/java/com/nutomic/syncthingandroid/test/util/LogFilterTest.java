@@ -0,0 +1,35 @@
+package com.nutomic.syncthingandroid.test.util;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.nutomic.syncthingandroid.util.LogFilter;
+import com.nutomic.syncthingandroid.util.LogStore;
+
+public class LogFilterTest extends AndroidTestCase {
+
+    public void testFilter() {
+        LogStore store = new LogStore();
+        store.append(Log.INFO, "I/SyncthingService( 123): Starting");
+        store.append(Log.WARN, "W/SyncthingService( 123): Failed");
+        store.append(Log.WARN, "W/RestApi( 123): Failed");
+
+        assertEquals(3, new LogFilter().filter(store.getEntries(0, Log.VERBOSE)).size());
+        assertEquals(2, new LogFilter(Log.WARN, "", "")
+                .filter(store.getEntries(0, Log.VERBOSE)).size());
+        assertEquals(1, new LogFilter(Log.WARN, "SyncthingService", "")
+                .filter(store.getEntries(0, Log.VERBOSE)).size());
+        assertEquals(1, new LogFilter(Log.VERBOSE, "", "Start.*")
+                .filter(store.getEntries(0, Log.VERBOSE)).size());
+    }
+
+    public void testWithoutTag() {
+        LogStore store = new LogStore();
+        store.append(Log.INFO, "[ABCDE] 12:00:00 INFO: Ready to synchronize");
+
+        LogFilter filter = new LogFilter(Log.VERBOSE, "SyncthingService", "");
+        assertEquals(0, filter.filter(store.getEntries(0, Log.VERBOSE)).size());
+        assertEquals(1, filter.withoutTag().filter(store.getEntries(0, Log.VERBOSE)).size());
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.nutomic.syncthingandroid.test.util;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.nutomic.syncthingandroid.test.MockContext;
+import com.nutomic.syncthingandroid.test.Util;
+import com.nutomic.syncthingandroid.util.LogStore;
+
+import java.io.File;
+import java.util.List;
+
+public class LogStoreTest extends AndroidTestCase {
+
+    private File mTestFolder;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTestFolder = new File(new MockContext(getContext()).getFilesDir(), "log-store-test");
+        mTestFolder.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Util.deleteRecursive(mTestFolder);
+        super.tearDown();
+    }
+
+    public void testFilter() {
+        LogStore store = new LogStore(mTestFolder);
+        store.append(Log.INFO, "first");
+        long since = store.getNextSequence();
+        store.append(Log.WARN, "second");
+        store.append(Log.INFO, "third");
+
+        assertEquals("second\nthird\n", store.getText(since, Log.VERBOSE));
+        assertEquals("second\n", store.getText(0, Log.WARN));
+    }
+
+    public void testCapacity() {
+        LogStore store = new LogStore(mTestFolder);
+        for (int i = 0; i < LogStore.CAPACITY + 10; i++) {
+            store.append(Log.INFO, Integer.toString(i));
+        }
+        assertEquals(LogStore.CAPACITY, store.getEntries(0, Log.VERBOSE).size());
+        assertEquals("10", store.getEntries(0, Log.VERBOSE).get(0).line);
+    }
+
+    public void testPage() {
+        LogStore store = new LogStore();
+        for (int i = 0; i < 5; i++) {
+            store.append(Log.INFO, Integer.toString(i));
+        }
+        List<LogStore.Entry> page = store.getPage(4, 2);
+        assertEquals(2, page.size());
+        assertEquals("2", page.get(0).line);
+        assertEquals("3", page.get(1).line);
+        assertEquals(2, store.getPage(2, 10).size());
+    }
+
+    public void testReload() {
+        LogStore store = new LogStore(mTestFolder);
+        store.append(Log.ERROR, "crashed");
+
+        LogStore reopened = new LogStore(mTestFolder);
+        assertEquals("crashed\n", reopened.getText(0, Log.ERROR));
+    }
+
+}
@@ -1,35 +1,103 @@
 package com.nutomic.syncthingandroid.activities;
 
+import android.app.AlertDialog;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.support.v4.view.MenuItemCompat;
-import android.support.v7.widget.ShareActionProvider;
+import android.os.Handler;
+import android.support.v4.content.FileProvider;
 import android.util.Log;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
-import android.widget.ScrollView;
-import android.widget.TextView;
+import android.view.View;
+import android.widget.AbsListView;
+import android.widget.EditText;
+import android.widget.ListView;
+import android.widget.Spinner;
+import android.widget.Toast;
 
 import com.nutomic.syncthingandroid.R;
+import com.nutomic.syncthingandroid.util.LogAdapter;
+import com.nutomic.syncthingandroid.util.LogFilter;
+import com.nutomic.syncthingandroid.util.LogStore;
+import com.nutomic.syncthingandroid.util.LogcatSource;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Shows the log information from Syncthing.
+ *
+ * Lines are loaded in pages as the user scrolls up, new lines are appended while the activity
+ * is visible. Filtering happens on background threads.
  */
 public class LogActivity extends SyncthingActivity {
 
     private final static String TAG = "LogActivity";
 
-    private TextView mLog;
+    /**
+     * Minimum number of matching lines that are loaded when scrolling up.
+     */
+    private static final int PAGE_SIZE = 200;
+
+    /**
+     * Maximum number of lines that are shown, older ones are removed while tailing.
+     */
+    private static final int MAX_LINES = 5000;
+
+    /**
+     * Interval in ms in which new lines are fetched.
+     */
+    private static final long TAIL_INTERVAL = 1000;
+
+    private static final String LOG_FILE = "syncthing-log.txt";
+
+    private ListView mListView;
+    private LogAdapter mAdapter;
     private boolean mSyncthingLog = true;
-    private AsyncTask mFetchLogTask;
-    private ScrollView mScrollView;
-    private Intent mShareIntent;
+    private LogFilter mFilter = new LogFilter();
+    private LogcatSource mLogcat;
+
+    private final Handler mHandler = new Handler();
+
+    /**
+     * Incremented whenever the shown lines are reset, so that results of older tasks are
+     * ignored.
+     */
+    private int mGeneration = 0;
+
+    /**
+     * Sequence of the oldest line that was checked against the filter.
+     */
+    private long mOldest;
+
+    /**
+     * Sequence of the next line that will be checked against the filter.
+     */
+    private long mNewest;
+
+    private boolean mHasOlder;
+    private boolean mLoadingOlder;
+    private boolean mLoadingNewer;
+
+    private final Runnable mTail = new Runnable() {
+        @Override
+        public void run() {
+            loadNewer();
+            mHandler.postDelayed(this, TAIL_INTERVAL);
+        }
+    };
 
     /**
      * Initialize Log.
@@ -42,19 +110,57 @@ public class LogActivity extends SyncthingActivity {
 
         if (savedInstanceState != null) {
             mSyncthingLog = savedInstanceState.getBoolean("syncthingLog");
+            mFilter = new LogFilter(savedInstanceState.getInt("filterLevel"),
+                    savedInstanceState.getString("filterTag"),
+                    savedInstanceState.getString("filterRegex"));
             invalidateOptionsMenu();
         }
 
-        mLog = (TextView) findViewById(R.id.log);
-        mScrollView = (ScrollView) findViewById(R.id.scroller);
+        mListView = (ListView) findViewById(R.id.log);
+        mAdapter = new LogAdapter(this);
+        mListView.setAdapter(mAdapter);
+        mListView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
 
-        updateLog();
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                                 int totalItemCount) {
+                if (firstVisibleItem == 0 && totalItemCount > 0)
+                    loadOlder();
+            }
+        });
+
+        reload();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mHandler.postDelayed(mTail, TAIL_INTERVAL);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mTail);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mLogcat != null)
+            mLogcat.stop();
     }
 
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         outState.putBoolean("syncthingLog", mSyncthingLog);
+        outState.putInt("filterLevel", mFilter.minPriority);
+        outState.putString("filterTag", mFilter.tag);
+        outState.putString("filterRegex", mFilter.regex);
     }
 
     @Override
@@ -64,16 +170,6 @@ public class LogActivity extends SyncthingActivity {
 
         MenuItem switchLog = menu.findItem(R.id.switch_logs);
         switchLog.setTitle(mSyncthingLog ? R.string.log_android_title : R.string.log_syncthing_title);
-
-        // Add the share button
-        MenuItem shareItem = menu.findItem(R.id.menu_share);
-        ShareActionProvider actionProvider = (ShareActionProvider) MenuItemCompat.getActionProvider(shareItem);
-        mShareIntent = new Intent();
-        mShareIntent.setAction(Intent.ACTION_SEND);
-        mShareIntent.setType("text/plain");
-        mShareIntent.putExtra(android.content.Intent.EXTRA_TEXT, mLog.getText());
-        actionProvider.setShareIntent(mShareIntent);
-
         return true;
     }
 
@@ -83,75 +179,243 @@ public class LogActivity extends SyncthingActivity {
             case R.id.switch_logs:
                 mSyncthingLog = !mSyncthingLog;
                 item.setTitle(mSyncthingLog ? R.string.log_android_title : R.string.log_syncthing_title);
-                updateLog();
+                reload();
+                return true;
+            case R.id.filter:
+                showFilterDialog();
+                return true;
+            case R.id.menu_share:
+                shareLog();
                 return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
     }
 
-    private void scrollToBottom() {
-        mScrollView.post(new Runnable() {
+    /**
+     * Returns the log that is currently shown.
+     */
+    private LogStore getSource() {
+        return (mSyncthingLog) ? LogStore.getInstance(this) : mLogcat.getStore();
+    }
+
+    /**
+     * Removes all shown lines, and loads the newest ones from the current log and filter.
+     */
+    private void reload() {
+        if (mSyncthingLog && mLogcat != null) {
+            mLogcat.stop();
+            mLogcat = null;
+        } else if (!mSyncthingLog && mLogcat == null) {
+            mLogcat = new LogcatSource();
+            mLogcat.start();
+        }
+
+        mGeneration++;
+        mLoadingOlder = false;
+        mLoadingNewer = false;
+        mAdapter.clear();
+        mNewest = getSource().getNextSequence();
+        mOldest = mNewest;
+        mHasOlder = true;
+        loadOlder();
+    }
+
+    /**
+     * Adds at least {@link #PAGE_SIZE} matching lines before the first shown one, if there are
+     * that many.
+     */
+    private void loadOlder() {
+        if (mLoadingOlder || !mHasOlder)
+            return;
+
+        mLoadingOlder = true;
+        final int generation = mGeneration;
+        final LogStore source = getSource();
+        final LogFilter filter = getFilter();
+        final long before = mOldest;
+        new AsyncTask<Void, Void, List<LogStore.Entry>>() {
+            private long mBefore = before;
+            private boolean mExhausted = false;
+
             @Override
-            public void run() {
-                mScrollView.scrollTo(0, mLog.getBottom());
+            protected List<LogStore.Entry> doInBackground(Void... params) {
+                List<LogStore.Entry> matching = new ArrayList<>();
+                while (matching.size() < PAGE_SIZE) {
+                    List<LogStore.Entry> page = source.getPage(mBefore, PAGE_SIZE);
+                    if (!page.isEmpty()) {
+                        mBefore = page.get(0).sequence;
+                        matching.addAll(0, filter.filter(page));
+                    }
+                    if (page.size() < PAGE_SIZE) {
+                        mExhausted = true;
+                        break;
+                    }
+                }
+                return matching;
             }
-        });
+
+            @Override
+            protected void onPostExecute(List<LogStore.Entry> entries) {
+                if (generation != mGeneration)
+                    return;
+
+                mLoadingOlder = false;
+                mOldest = mBefore;
+                mHasOlder = !mExhausted;
+                // Keep the visible lines in place.
+                int first = mListView.getFirstVisiblePosition();
+                View v = mListView.getChildAt(0);
+                int top = (v == null) ? 0 : v.getTop();
+                boolean initial = mAdapter.getCount() == 0;
+                mAdapter.addOlder(entries);
+                if (initial)
+                    mListView.setSelection(mAdapter.getCount() - 1);
+                else
+                    mListView.setSelectionFromTop(first + entries.size(), top);
+            }
+        }.execute();
     }
 
-    private void updateLog() {
-        if (mFetchLogTask != null)
-            mFetchLogTask.cancel(true);
-        mLog.setText("Retrieving logs...");
-        mFetchLogTask = new AsyncTask<Void, Void, String>() {
+    /**
+     * Appends matching lines that were added to the log since the last call.
+     */
+    private void loadNewer() {
+        if (mLoadingNewer)
+            return;
+
+        mLoadingNewer = true;
+        final int generation = mGeneration;
+        final LogStore source = getSource();
+        final LogFilter filter = getFilter();
+        final long since = mNewest;
+        new AsyncTask<Void, Void, List<LogStore.Entry>>() {
+            private long mNext = since;
+
             @Override
-            protected String doInBackground(Void... params) {
-                return getLog(mSyncthingLog);
+            protected List<LogStore.Entry> doInBackground(Void... params) {
+                List<LogStore.Entry> entries = source.getEntries(since, Log.VERBOSE);
+                if (!entries.isEmpty())
+                    mNext = entries.get(entries.size() - 1).sequence + 1;
+                return filter.filter(entries);
             }
+
             @Override
-            protected void onPostExecute(String log) {
-                mLog.setText(log);
-                if (mShareIntent != null)
-                    mShareIntent.putExtra(android.content.Intent.EXTRA_TEXT, log);
-                scrollToBottom();
+            protected void onPostExecute(List<LogStore.Entry> entries) {
+                if (generation != mGeneration)
+                    return;
+
+                mLoadingNewer = false;
+                mNewest = mNext;
+                if (entries.isEmpty())
+                    return;
+
+                mAdapter.addNewer(entries);
+                if (mAdapter.trim(MAX_LINES) > 0) {
+                    mOldest = mAdapter.getItem(0).sequence;
+                    mHasOlder = true;
+                }
             }
         }.execute();
     }
 
     /**
-     * Queries logcat to obtain a log.
-     *
-     * @param syncthingLog Filter on Syncthing's native messages.
+     * Returns the filter for the shown log. The tag is ignored for the syncthing log, as its
+     * lines have no tags.
      */
-    private String getLog(final boolean syncthingLog) {
-        Process process = null;
-        try {
-            ProcessBuilder pb;
-            if (syncthingLog) {
-                pb = new ProcessBuilder("/system/bin/logcat", "-t", "300", "-s", "SyncthingNativeCode");
-            } else {
-                pb = new ProcessBuilder("/system/bin/logcat", "-t", "300", "'*'");
-            }
-            pb.redirectErrorStream(true);
-            process = pb.start();
-            BufferedReader bufferedReader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream(), "UTF-8"), 8192);
-            StringBuilder log = new StringBuilder();
-            String line = "";
-            String sep = System.getProperty("line.separator");
-            while ((line = bufferedReader.readLine()) != null) {
-                log.append(line);
-                log.append(sep);
+    private LogFilter getFilter() {
+        return (mSyncthingLog) ? mFilter.withoutTag() : mFilter;
+    }
+
+    private void showFilterDialog() {
+        View v = LayoutInflater.from(this).inflate(R.layout.dialog_log_filter, null);
+        final Spinner level = (Spinner) v.findViewById(R.id.level);
+        final EditText tag = (EditText) v.findViewById(R.id.tag);
+        final EditText regex = (EditText) v.findViewById(R.id.regex);
+        level.setSelection(mFilter.minPriority - Log.VERBOSE);
+        tag.setText(mFilter.tag);
+        tag.setEnabled(!mSyncthingLog);
+        regex.setText(mFilter.regex);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.log_filter_title)
+                .setView(v)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        try {
+                            mFilter = new LogFilter(
+                                    Log.VERBOSE + level.getSelectedItemPosition(),
+                                    tag.getText().toString(), regex.getText().toString());
+                            reload();
+                        } catch (PatternSyntaxException e) {
+                            Toast.makeText(LogActivity.this, R.string.log_filter_invalid,
+                                    Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Writes all matching lines to a file in the background, and shares that file.
+     */
+    private void shareLog() {
+        final LogStore source = getSource();
+        final LogFilter filter = getFilter();
+        // The external cache is not available if external storage is not mounted.
+        final boolean external = getExternalCacheDir() != null;
+        final File file = (external)
+                ? new File(getExternalCacheDir(), LOG_FILE)
+                : new File(new File(getCacheDir(), "logs"), LOG_FILE);
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                Writer writer = null;
+                try {
+                    file.getParentFile().mkdirs();
+                    writer = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(file), "UTF-8"));
+                    for (LogStore.Entry e : source.getEntries(0, filter.minPriority)) {
+                        if (!filter.matches(e))
+                            continue;
+
+                        writer.write(e.line);
+                        writer.write('\n');
+                    }
+                    return true;
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to write log to " + file, e);
+                    return false;
+                } finally {
+                    try {
+                        if (writer != null)
+                            writer.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to close " + file, e);
+                    }
+                }
             }
-            return log.toString();
-        } catch (IOException e) {
-            Log.w(TAG, "Error reading Android log", e);
-        } finally {
-            if (process != null) {
-                process.destroy();
+
+            @Override
+            protected void onPostExecute(Boolean success) {
+                if (!success) {
+                    Toast.makeText(LogActivity.this, R.string.log_share_failed,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+
+                Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.setType("text/plain");
+                Uri uri = (external)
+                        ? Uri.fromFile(file)
+                        : FileProvider.getUriForFile(LogActivity.this,
+                                getPackageName() + ".fileprovider", file);
+                intent.putExtra(Intent.EXTRA_STREAM, uri);
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                startActivity(Intent.createChooser(intent, getString(R.string.share_title)));
             }
-        }
-        return "";
+        }.execute();
     }
 
 }
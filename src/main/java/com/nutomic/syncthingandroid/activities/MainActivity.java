@@ -422,12 +422,10 @@ public class MainActivity extends SyncthingActivity
             public void onClick(DialogInterface dialog, int which) {
                 switch (which) {
                     case DialogInterface.BUTTON_POSITIVE:
-                        getApi().setUsageReportAccepted(RestApi.UsageReportSetting.ACCEPTED,
-                                                        MainActivity.this);
+                        getApi().setUsageReportAccepted(RestApi.UsageReportSetting.ACCEPTED);
                         break;
                     case DialogInterface.BUTTON_NEGATIVE:
-                        getApi().setUsageReportAccepted(RestApi.UsageReportSetting.DENIED,
-                                                        MainActivity.this);
+                        getApi().setUsageReportAccepted(RestApi.UsageReportSetting.DENIED);
                         break;
                     case DialogInterface.BUTTON_NEUTRAL:
                         Uri uri = Uri.parse("https://data.syncthing.net");
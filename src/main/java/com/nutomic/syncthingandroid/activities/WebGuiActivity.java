@@ -16,18 +16,14 @@ import android.webkit.WebViewClient;
 
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.syncthing.SyncthingService;
+import com.nutomic.syncthingandroid.util.CaCertificateCache;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 
 /**
@@ -129,22 +125,11 @@ public class WebGuiActivity extends SyncthingActivity
      * Reads the SyncthingService.HTTPS_CERT_FILE Ca Cert key  and loads it in memory
      */
     private void loadCaCert() {
-        InputStream inStream = null;
         try {
             String httpsCertPath = getFilesDir() + "/" + SyncthingService.HTTPS_CERT_FILE;
-            inStream = new FileInputStream(httpsCertPath);
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            mCaCert = (X509Certificate)
-                    cf.generateCertificate(inStream);
-        } catch (FileNotFoundException|CertificateException e) {
+            mCaCert = CaCertificateCache.getCaCertificate(httpsCertPath);
+        } catch (CertificateException e) {
             throw new IllegalArgumentException("Untrusted Certificate", e);
-        } finally {
-            try {
-                if (inStream != null)
-                    inStream.close();
-            } catch (IOException e) {
-                Log.w(TAG, e);
-            }
         }
     }
 }
@@ -265,15 +265,10 @@ public class DeviceFragment extends Fragment implements
         }
 
         if (!mIsCreateMode) {
-            List<RestApi.Device> devices = mSyncthingService.getApi().getDevices(false);
-            mDevice = null;
-            for (int i = 0; i < devices.size(); i++) {
-                if (devices.get(i).deviceID.equals(
-                        getActivity().getIntent().getStringExtra(EXTRA_DEVICE_ID))) {
-                    mDevice = devices.get(i);
-                    break;
-                }
-            }
+            String passedId = getActivity().getIntent().getStringExtra(EXTRA_DEVICE_ID);
+            RestApi.Device device =
+                    mSyncthingService.getApi().getConfigSnapshot().getDevice(passedId);
+            mDevice = (device != null) ? device.copy() : null;
             if (mDevice == null) {
                 Log.w(TAG, "Device not found in API update, maybe it was deleted?");
                 getActivity().finish();
@@ -323,7 +318,7 @@ public class DeviceFragment extends Fragment implements
                             .show();
                     return true;
                 }
-                mSyncthingService.getApi().editDevice(mDevice, getActivity(), this);
+                mSyncthingService.getApi().editDevice(mDevice, this);
                 getActivity().finish();
                 return true;
             case R.id.share_device_id:
@@ -335,7 +330,7 @@ public class DeviceFragment extends Fragment implements
                         .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialogInterface, int i) {
-                                mSyncthingService.getApi().deleteDevice(mDevice, getActivity());
+                                mSyncthingService.getApi().deleteDevice(mDevice);
                             }
                         })
                         .setNegativeButton(android.R.string.no, null)
@@ -397,7 +392,7 @@ public class DeviceFragment extends Fragment implements
      */
     private void updateDevice() {
         if (!mIsCreateMode && mDeviceNeedsToUpdate) {
-            mSyncthingService.getApi().editDevice(mDevice, getActivity(), this);
+            mSyncthingService.getApi().editDevice(mDevice, this);
         }
     }
 
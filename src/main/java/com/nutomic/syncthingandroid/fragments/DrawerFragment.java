@@ -14,12 +14,11 @@ import com.nutomic.syncthingandroid.activities.MainActivity;
 import com.nutomic.syncthingandroid.activities.SettingsActivity;
 import com.nutomic.syncthingandroid.activities.WebGuiActivity;
 import com.nutomic.syncthingandroid.syncthing.RestApi;
+import com.nutomic.syncthingandroid.syncthing.StatusRepository;
 import com.nutomic.syncthingandroid.syncthing.SyncthingService;
 
 import java.text.DecimalFormat;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import static android.content.Intent.ACTION_VIEW;
 
@@ -27,7 +26,8 @@ import static android.content.Intent.ACTION_VIEW;
  * Displays information about the local device.
  */
 public class DrawerFragment extends Fragment implements RestApi.OnReceiveSystemInfoListener,
-        RestApi.OnReceiveConnectionsListener, View.OnClickListener {
+        RestApi.OnReceiveConnectionsListener, StatusRepository.OnStatusChangedListener,
+        View.OnClickListener {
 
     private TextView mDeviceId;
     private TextView mCpuUsage;
@@ -38,19 +38,18 @@ public class DrawerFragment extends Fragment implements RestApi.OnReceiveSystemI
 
     private TextView mExitButton;
 
-    private Timer mTimer;
+    /**
+     * True while the drawer is open, and status updates are received.
+     */
+    private boolean mActive = false;
 
     private MainActivity mActivity;
 
     public void onDrawerOpened() {
-        mTimer = new Timer();
-        mTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                updateGui();
-            }
-
-        }, 0, SyncthingService.GUI_UPDATE_INTERVAL);
+        mActive = true;
+        StatusRepository status = getStatusRepository();
+        if (status != null)
+            status.registerOnStatusChangedListener(this);
     }
 
     @Override
@@ -60,10 +59,18 @@ public class DrawerFragment extends Fragment implements RestApi.OnReceiveSystemI
     }
 
     public void onDrawerClosed() {
-        if (mTimer != null) {
-            mTimer.cancel();
-            mTimer = null;
-        }
+        mActive = false;
+        StatusRepository status = getStatusRepository();
+        if (status != null)
+            status.unregisterOnStatusChangedListener(this);
+        if (mActivity != null && mActivity.getApi() != null)
+            mActivity.getApi().cancelRequests(this);
+    }
+
+    private StatusRepository getStatusRepository() {
+        return (mActivity != null && mActivity.getService() != null)
+                ? mActivity.getService().getStatusRepository()
+                : null;
     }
 
     @Override
@@ -123,26 +130,34 @@ public class DrawerFragment extends Fragment implements RestApi.OnReceiveSystemI
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putBoolean("active", mTimer != null);
+        outState.putBoolean("active", mActive);
     }
 
     /**
-     * Invokes status callbacks.
+     * Updates views once. If the drawer is open, this registers for status updates instead
+     * (which may not have been possible before the service was connected).
      */
-    private void updateGui() {
+    public void requestGuiUpdate() {
+        if (mActive) {
+            onDrawerOpened();
+            return;
+        }
+
         if (mActivity.getApi() == null || getActivity().isFinishing())
             return;
         mActivity.getApi().getSystemInfo(this);
         mActivity.getApi().getConnections(this);
     }
 
-    /**
-     * This will not do anything if gui updates are already scheduled.
-     */
-    public void requestGuiUpdate() {
-        if (mTimer == null) {
-            updateGui();
-        }
+    @Override
+    public void onStatusChanged(StatusRepository status) {
+        if (getActivity() == null)
+            return;
+
+        if (status.getSystemInfo() != null)
+            onReceiveSystemInfo(status.getSystemInfo());
+        if (status.getConnections().containsKey(RestApi.TOTAL_STATS))
+            onReceiveConnections(status.getConnections());
     }
 
     /**
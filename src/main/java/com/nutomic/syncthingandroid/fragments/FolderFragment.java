@@ -230,15 +230,10 @@ public class FolderFragment extends Fragment
         }
 
         if (!mIsCreateMode) {
-            List<RestApi.Folder> folders = mSyncthingService.getApi().getFolders();
             String passedId = getActivity().getIntent().getStringExtra(EXTRA_FOLDER_ID);
-            mFolder = null;
-            for (RestApi.Folder currentFolder : folders) {
-                if (currentFolder.id.equals(passedId)) {
-                    mFolder = currentFolder;
-                    break;
-                }
-            }
+            RestApi.Folder folder =
+                    mSyncthingService.getApi().getConfigSnapshot().getFolder(passedId);
+            mFolder = (folder != null) ? folder.copy() : null;
             if (mFolder == null) {
                 Log.w(TAG, "Folder not found in API update, maybe it was deleted?");
                 getActivity().finish();
@@ -313,7 +308,7 @@ public class FolderFragment extends Fragment
                             .show();
                     return true;
                 }
-                mSyncthingService.getApi().editFolder(mFolder, true, getActivity());
+                mSyncthingService.getApi().editFolder(mFolder, true);
                 getActivity().finish();
                 return true;
             case R.id.remove:
@@ -322,7 +317,7 @@ public class FolderFragment extends Fragment
                         .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialogInterface, int i) {
-                                mSyncthingService.getApi().deleteFolder(mFolder, getActivity());
+                                mSyncthingService.getApi().deleteFolder(mFolder);
                             }
                         })
                         .setNegativeButton(android.R.string.no, null)
@@ -387,7 +382,7 @@ public class FolderFragment extends Fragment
 
     private void updateFolder() {
         if (!mIsCreateMode) {
-            mSyncthingService.getApi().editFolder(mFolder, false, getActivity());
+            mSyncthingService.getApi().editFolder(mFolder, false);
         }
     }
 }
@@ -13,44 +13,40 @@ import android.widget.AdapterView;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.activities.SettingsActivity;
 import com.nutomic.syncthingandroid.activities.SyncthingActivity;
+import com.nutomic.syncthingandroid.syncthing.ConfigSnapshot;
+import com.nutomic.syncthingandroid.syncthing.StatusRepository;
 import com.nutomic.syncthingandroid.syncthing.SyncthingService;
 import com.nutomic.syncthingandroid.util.FoldersAdapter;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 /**
  * Displays a list of all existing folders.
  */
 public class FolderListFragment extends ListFragment implements SyncthingService.OnApiChangeListener,
-        AdapterView.OnItemClickListener, AdapterView.OnItemLongClickListener {
+        AdapterView.OnItemClickListener, AdapterView.OnItemLongClickListener,
+        StatusRepository.OnStatusChangedListener {
 
     private FoldersAdapter mAdapter;
 
-    private Timer mTimer;
+    /**
+     * The config that the list was created from.
+     */
+    private ConfigSnapshot mConfigSnapshot;
 
     @Override
     public void onResume() {
         super.onResume();
-        mTimer = new Timer();
-        mTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                getActivity().runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        updateList();
-                    }
-                });
-            }
-
-        }, 0, SyncthingService.GUI_UPDATE_INTERVAL);
+        updateList();
+        StatusRepository status = getStatusRepository();
+        if (status != null)
+            status.registerOnStatusChangedListener(this);
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        mTimer.cancel();
+        StatusRepository status = getStatusRepository();
+        if (status != null)
+            status.unregisterOnStatusChangedListener(this);
     }
 
     @Override
@@ -59,6 +55,17 @@ public class FolderListFragment extends ListFragment implements SyncthingService
             return;
 
         updateList();
+        // The service may not have been connected yet in onResume().
+        StatusRepository status = getStatusRepository();
+        if (isResumed() && status != null)
+            status.registerOnStatusChangedListener(this);
+    }
+
+    private StatusRepository getStatusRepository() {
+        SyncthingActivity activity = (SyncthingActivity) getActivity();
+        return (activity != null && activity.getService() != null)
+                ? activity.getService().getStatusRepository()
+                : null;
     }
 
     @Override
@@ -94,12 +101,23 @@ public class FolderListFragment extends ListFragment implements SyncthingService
             setListAdapter(mAdapter);
         }
 
+        mConfigSnapshot = activity.getApi().getConfigSnapshot();
         mAdapter.clear();
-        mAdapter.add(activity.getApi().getFolders());
-        mAdapter.updateModel(activity.getApi());
+        mAdapter.add(mConfigSnapshot.getFolders());
         setListShown(true);
     }
 
+    @Override
+    public void onStatusChanged(StatusRepository status) {
+        // Rebuild the list if the config changed since it was created.
+        SyncthingActivity activity = (SyncthingActivity) getActivity();
+        if (activity != null && activity.getApi() != null &&
+                activity.getApi().getConfigSnapshot() != mConfigSnapshot)
+            updateList();
+        if (mAdapter != null)
+            mAdapter.setModels(status.getModels());
+    }
+
     @Override
     public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
         Intent intent = new Intent(getActivity(), SettingsActivity.class)
@@ -23,6 +23,7 @@ import android.widget.Toast;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.activities.SyncthingActivity;
 import com.nutomic.syncthingandroid.preferences.WifiSsidPreference;
+import com.nutomic.syncthingandroid.syncthing.ConfigWriter;
 import com.nutomic.syncthingandroid.syncthing.RestApi;
 import com.nutomic.syncthingandroid.syncthing.SyncthingService;
 
@@ -63,6 +64,17 @@ public class SettingsFragment extends PreferenceFragment
     private PreferenceScreen mGuiScreen;
     private SyncthingService mSyncthingService;
 
+    private final ConfigWriter.OnConfigCommittedListener mOnConfigCommittedListener =
+            new ConfigWriter.OnConfigCommittedListener() {
+                @Override
+                public void onConfigCommitted(boolean success) {
+                    if (!success && getActivity() != null) {
+                        Toast.makeText(getActivity(), R.string.toast_config_commit_failed,
+                                Toast.LENGTH_LONG).show();
+                    }
+                }
+            };
+
     @Override
     public void onApiChange(SyncthingService.State currentState) {
         boolean enabled = currentState == SyncthingService.State.ACTIVE;
@@ -240,6 +252,23 @@ public class SettingsFragment extends PreferenceFragment
             pref.setSummary((String) o);
         }
 
+        // Send all config changes caused by this preference together.
+        RestApi api = mSyncthingService.getApi();
+        if (api == null)
+            return applyPreferenceChange(preference, o);
+
+        api.beginConfigTransaction();
+        try {
+            return applyPreferenceChange(preference, o);
+        } finally {
+            api.commitConfigTransaction(getActivity(), mOnConfigCommittedListener);
+        }
+    }
+
+    /**
+     * Applies a changed preference, returns false if the value is invalid.
+     */
+    private boolean applyPreferenceChange(Preference preference, Object o) {
         boolean requireRestart = false;
 
         if (preference.equals(mAlwaysRunInBackground)) {
@@ -270,20 +299,21 @@ public class SettingsFragment extends PreferenceFragment
             updated.deviceID = old.deviceID;
             updated.introducer = old.introducer;
             updated.name = (String) o;
-            mSyncthingService.getApi().editDevice(updated, getActivity(), null);
+            // The local ID is already normalized, so the change stays in the transaction.
+            mSyncthingService.getApi().editNormalizedDevice(updated);
         } else if (preference.getKey().equals(USAGE_REPORT_ACCEPTED)) {
             RestApi.UsageReportSetting setting = ((Boolean) o)
                     ? RestApi.UsageReportSetting.ACCEPTED
                     : RestApi.UsageReportSetting.DENIED;
-            mSyncthingService.getApi().setUsageReportAccepted(setting, getActivity());
+            mSyncthingService.getApi().setUsageReportAccepted(setting);
         } else if (mOptionsScreen.findPreference(preference.getKey()) != null) {
             boolean isArray = preference.getKey().equals("listenAddress") ||
                     preference.getKey().equals("globalAnnounceServers");
             mSyncthingService.getApi().setValue(RestApi.TYPE_OPTIONS, preference.getKey(), o,
-                    isArray, getActivity());
+                    isArray);
         } else if (preference.getKey().equals(ADDRESS)) {
             mSyncthingService.getApi().setValue(
-                    RestApi.TYPE_GUI, preference.getKey(), o, false, getActivity());
+                    RestApi.TYPE_GUI, preference.getKey(), o, false);
         }
 
 
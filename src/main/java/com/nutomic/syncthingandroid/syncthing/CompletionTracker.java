@@ -0,0 +1,136 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches how far remote devices have synced each shared folder, as reported by syncthing.
+ *
+ * Values are requested from {@link GetTask#URI_COMPLETION} when they are first needed, updated
+ * directly by FolderCompletion events, and marked stale by index update events. Stale values
+ * are still returned, but requested again on the next access. Replies to requests that were
+ * sent before {@link #clear()} are dropped.
+ *
+ * All methods must be called on the main thread.
+ */
+public class CompletionTracker {
+
+    public interface OnCompletionChangedListener {
+        void onCompletionChanged(String deviceId, int completion);
+    }
+
+    private final RestApi mApi;
+
+    private final OnCompletionChangedListener mListener;
+
+    /**
+     * Completion percentage by device and folder, see {@link #key}.
+     */
+    private final Map<String, Double> mCompletion = new HashMap<>();
+
+    private final Set<String> mStale = new HashSet<>();
+
+    private final Set<String> mPending = new HashSet<>();
+
+    /**
+     * Incremented by {@link #clear()}, so that replies to earlier requests are ignored.
+     */
+    private int mGeneration = 0;
+
+    public CompletionTracker(RestApi api, OnCompletionChangedListener listener) {
+        mApi = api;
+        mListener = listener;
+    }
+
+    private static String key(String deviceId, String folderId) {
+        return deviceId + "/" + folderId;
+    }
+
+    /**
+     * Returns the average completion of all folders shared with the device, in percent.
+     *
+     * Missing or stale values are requested, and {@link OnCompletionChangedListener} is called
+     * once they are received. Folders without a value are not counted.
+     */
+    public int getCompletion(String deviceId) {
+        int folderCount = 0;
+        double percentageSum = 0;
+        for (RestApi.Folder folder : mApi.getConfigSnapshot().getSharedFolders(deviceId)) {
+            String key = key(deviceId, folder.id);
+            Double completion = mCompletion.get(key);
+            if ((completion == null || mStale.contains(key)) && mPending.add(key))
+                request(deviceId, folder.id);
+            if (completion == null)
+                continue;
+
+            percentageSum += completion;
+            folderCount++;
+        }
+        return (folderCount != 0)
+                ? (int) Math.floor(percentageSum / folderCount)
+                : 100;
+    }
+
+    private void request(String deviceId, String folderId) {
+        final int generation = mGeneration;
+        mApi.getCompletion(deviceId, folderId, new RestApi.OnReceiveCompletionListener() {
+            @Override
+            public void onReceiveCompletion(String deviceId, String folderId, Double completion) {
+                if (generation != mGeneration)
+                    return;
+
+                mPending.remove(key(deviceId, folderId));
+                if (completion != null)
+                    update(deviceId, folderId, completion);
+            }
+        });
+    }
+
+    /**
+     * Stores the completion from a FolderCompletion event.
+     */
+    public void onFolderCompletion(String deviceId, String folderId, double completion) {
+        update(deviceId, folderId, completion);
+    }
+
+    /**
+     * Marks the completion of device for folder as stale, eg after a RemoteIndexUpdated event.
+     */
+    public void invalidate(String deviceId, String folderId) {
+        String key = key(deviceId, folderId);
+        if (mCompletion.containsKey(key))
+            mStale.add(key);
+    }
+
+    /**
+     * Marks the completion of all devices for folder as stale, eg after a LocalIndexUpdated
+     * event.
+     */
+    public void invalidateFolder(String folderId) {
+        String suffix = "/" + folderId;
+        for (String key : mCompletion.keySet()) {
+            if (key.endsWith(suffix))
+                mStale.add(key);
+        }
+    }
+
+    /**
+     * Drops all cached values, eg because syncthing was restarted.
+     */
+    public void clear() {
+        mGeneration++;
+        mCompletion.clear();
+        mStale.clear();
+        mPending.clear();
+    }
+
+    private void update(String deviceId, String folderId, double completion) {
+        String key = key(deviceId, folderId);
+        mStale.remove(key);
+        Double previous = mCompletion.put(key, completion);
+        if (previous == null || previous != completion)
+            mListener.onCompletionChanged(deviceId, getCompletion(deviceId));
+    }
+}
@@ -0,0 +1,179 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Typed, indexed view of the syncthing config at one point in time.
+ *
+ * Instances are immutable, and must be rebuilt whenever the config changes. Returned objects
+ * are shared and must not be modified (use {@link RestApi.Folder#copy()} and
+ * {@link RestApi.Device#copy()} for editing).
+ */
+public final class ConfigSnapshot {
+
+    private static final String TAG = "ConfigSnapshot";
+
+    public static final ConfigSnapshot EMPTY = new ConfigSnapshot(null, null);
+
+    private final List<RestApi.Folder> mFolders;
+
+    private final List<RestApi.Device> mDevices;
+
+    private final List<RestApi.Device> mRemoteDevices;
+
+    private final Map<String, RestApi.Folder> mFoldersById;
+
+    private final Map<String, RestApi.Device> mDevicesById;
+
+    private final Map<String, List<RestApi.Folder>> mFoldersByDevice;
+
+    /**
+     * @param config        The config as returned by syncthing, or null for an empty snapshot.
+     * @param localDeviceId Id of the local device, or null if not yet known.
+     */
+    public ConfigSnapshot(JSONObject config, String localDeviceId) {
+        List<RestApi.Folder> folders = new ArrayList<>();
+        List<RestApi.Device> devices = new ArrayList<>();
+        if (config != null) {
+            try {
+                JSONArray json = config.getJSONArray("folders");
+                for (int i = 0; i < json.length(); i++) {
+                    folders.add(parseFolder(json.getJSONObject(i)));
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Failed to read folders", e);
+                folders.clear();
+            }
+            try {
+                JSONArray json = config.getJSONArray("devices");
+                for (int i = 0; i < json.length(); i++) {
+                    devices.add(parseDevice(json.getJSONObject(i)));
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Failed to read devices", e);
+                devices.clear();
+            }
+        }
+
+        List<RestApi.Device> remoteDevices = new ArrayList<>(devices.size());
+        Map<String, RestApi.Device> devicesById = new HashMap<>();
+        for (RestApi.Device d : devices) {
+            devicesById.put(d.deviceID, d);
+            if (!d.deviceID.equals(localDeviceId))
+                remoteDevices.add(d);
+        }
+
+        Map<String, RestApi.Folder> foldersById = new HashMap<>();
+        Map<String, List<RestApi.Folder>> foldersByDevice = new HashMap<>();
+        for (RestApi.Folder f : folders) {
+            foldersById.put(f.id, f);
+            for (String deviceId : f.deviceIds) {
+                List<RestApi.Folder> shared = foldersByDevice.get(deviceId);
+                if (shared == null) {
+                    shared = new ArrayList<>();
+                    foldersByDevice.put(deviceId, shared);
+                }
+                shared.add(f);
+            }
+        }
+        for (Map.Entry<String, List<RestApi.Folder>> e : foldersByDevice.entrySet()) {
+            e.setValue(Collections.unmodifiableList(e.getValue()));
+        }
+
+        mFolders = Collections.unmodifiableList(folders);
+        mDevices = Collections.unmodifiableList(devices);
+        mRemoteDevices = Collections.unmodifiableList(remoteDevices);
+        mFoldersById = foldersById;
+        mDevicesById = devicesById;
+        mFoldersByDevice = foldersByDevice;
+    }
+
+    private static RestApi.Folder parseFolder(JSONObject json) throws JSONException {
+        RestApi.Folder r = new RestApi.Folder();
+        r.path = json.getString("path");
+        r.id = json.getString("id");
+        // TODO: Field seems to be missing sometimes.
+        // https://github.com/syncthing/syncthing-android/issues/291
+        r.invalid = json.optString("invalid");
+        r.deviceIds = new ArrayList<>();
+        JSONArray devices = json.getJSONArray("devices");
+        for (int j = 0; j < devices.length(); j++) {
+            JSONObject n = devices.getJSONObject(j);
+            r.deviceIds.add(n.getString("deviceID"));
+        }
+
+        r.readOnly = json.getBoolean("readOnly");
+        r.rescanIntervalS = json.getInt("rescanIntervalS");
+        JSONObject versioning = json.getJSONObject("versioning");
+        if (versioning.getString("type").equals("simple")) {
+            RestApi.SimpleVersioning sv = new RestApi.SimpleVersioning();
+            JSONObject params = versioning.getJSONObject("params");
+            sv.setParams(params.getInt("keep"));
+            r.versioning = sv;
+        } else {
+            r.versioning = new RestApi.Versioning();
+        }
+        return r;
+    }
+
+    private static RestApi.Device parseDevice(JSONObject json) throws JSONException {
+        RestApi.Device n = new RestApi.Device();
+        n.addresses = new ArrayList<>();
+        JSONArray addresses = json.optJSONArray("addresses");
+        if (addresses != null) {
+            for (int i = 0; i < addresses.length(); i++) {
+                n.addresses.add(addresses.getString(i));
+            }
+        }
+        n.name = json.getString("name");
+        n.deviceID = json.getString("deviceID");
+        n.compression = json.getString("compression");
+        n.introducer = json.getBoolean("introducer");
+        return n;
+    }
+
+    public List<RestApi.Folder> getFolders() {
+        return mFolders;
+    }
+
+    /**
+     * @param includeLocal True if the local device should be included in the result.
+     */
+    public List<RestApi.Device> getDevices(boolean includeLocal) {
+        return (includeLocal) ? mDevices : mRemoteDevices;
+    }
+
+    /**
+     * Returns the folder with the given id, or null if it does not exist.
+     */
+    public RestApi.Folder getFolder(String folderId) {
+        return mFoldersById.get(folderId);
+    }
+
+    /**
+     * Returns the device with the given id, or null if it does not exist.
+     */
+    public RestApi.Device getDevice(String deviceId) {
+        return mDevicesById.get(deviceId);
+    }
+
+    /**
+     * Returns all folders that are shared with the given device.
+     */
+    public List<RestApi.Folder> getSharedFolders(String deviceId) {
+        List<RestApi.Folder> folders = mFoldersByDevice.get(deviceId);
+        return (folders != null)
+                ? folders
+                : Collections.<RestApi.Folder>emptyList();
+    }
+}
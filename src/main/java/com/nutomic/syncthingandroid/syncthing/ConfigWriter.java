@@ -0,0 +1,190 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects config changes and sends them to syncthing in as few requests as possible.
+ *
+ * A commit is sent once no change was scheduled for {@link #DEBOUNCE_DELAY}. It is skipped if
+ * the serialized config equals the last one that syncthing accepted, and only one commit is
+ * running at any time.
+ *
+ * All methods must be called on the main thread, and listeners are notified on the main
+ * thread.
+ */
+public class ConfigWriter {
+
+    private static final String TAG = "ConfigWriter";
+
+    /**
+     * Time in ms without further changes after which the config is sent.
+     */
+    private static final long DEBOUNCE_DELAY = 500;
+
+    public interface OnConfigCommittedListener {
+        /**
+         * @param success True if syncthing has the current config, false if sending it failed.
+         */
+        void onConfigCommitted(boolean success);
+    }
+
+    /**
+     * Provides the config and sends it to syncthing.
+     */
+    public interface Backend {
+        /**
+         * Returns the current config as it would be sent.
+         */
+        String serializeConfig();
+
+        /**
+         * Sends config to syncthing. {@link #onCommitFinished} must be called once the request
+         * has completed.
+         */
+        void postConfig(String config);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Backend mBackend;
+
+    /**
+     * Listeners for changes that were not sent yet.
+     */
+    private List<OnConfigCommittedListener> mScheduled = new ArrayList<>();
+
+    /**
+     * Listeners for the commit that is running, or null if none is.
+     */
+    private List<OnConfigCommittedListener> mRunning;
+
+    private String mRunningConfig;
+
+    /**
+     * The config that syncthing accepted last, or null if unknown.
+     */
+    private String mCommitted;
+
+    private boolean mDirty = false;
+
+    private int mSent = 0;
+
+    private int mSkipped = 0;
+
+    private final Runnable mCommit = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+
+    public ConfigWriter(Backend backend) {
+        mBackend = backend;
+    }
+
+    /**
+     * Sets the config that syncthing currently uses, eg after it was loaded.
+     */
+    public void setCommitted(String config) {
+        mCommitted = config;
+    }
+
+    /**
+     * Sends the config once no further changes are scheduled for {@link #DEBOUNCE_DELAY}.
+     *
+     * @param listener Notified with the result of the commit that includes this change, may be
+     *                 null.
+     */
+    public void schedule(OnConfigCommittedListener listener) {
+        mDirty = true;
+        if (listener != null)
+            mScheduled.add(listener);
+        mHandler.removeCallbacks(mCommit);
+        mHandler.postDelayed(mCommit, DEBOUNCE_DELAY);
+    }
+
+    /**
+     * Sends all scheduled changes without waiting for further changes.
+     */
+    public void flush(OnConfigCommittedListener listener) {
+        mDirty = true;
+        if (listener != null)
+            mScheduled.add(listener);
+        mHandler.removeCallbacks(mCommit);
+        commit();
+    }
+
+    /**
+     * Drops scheduled changes, and reports them as failed.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mCommit);
+        mDirty = false;
+        List<OnConfigCommittedListener> scheduled = mScheduled;
+        mScheduled = new ArrayList<>();
+        deliver(scheduled, false);
+    }
+
+    private void commit() {
+        if (!mDirty)
+            return;
+
+        // Send again once the running commit has finished.
+        if (mRunning != null)
+            return;
+
+        mDirty = false;
+        List<OnConfigCommittedListener> listeners = mScheduled;
+        mScheduled = new ArrayList<>();
+        String config = mBackend.serializeConfig();
+        if (config.equals(mCommitted)) {
+            mSkipped++;
+            deliver(listeners, true);
+            return;
+        }
+
+        mSent++;
+        mRunning = listeners;
+        mRunningConfig = config;
+        mBackend.postConfig(config);
+    }
+
+    /**
+     * Must be called once a request from {@link Backend#postConfig} has completed.
+     */
+    public void onCommitFinished(boolean success) {
+        if (mRunning == null)
+            return;
+
+        if (success) {
+            mCommitted = mRunningConfig;
+        } else {
+            Log.w(TAG, "Failed to send config");
+        }
+        List<OnConfigCommittedListener> listeners = mRunning;
+        mRunning = null;
+        mRunningConfig = null;
+        deliver(listeners, success);
+        // Changes made while the request was running have waited long enough.
+        if (mDirty) {
+            mHandler.removeCallbacks(mCommit);
+            commit();
+        }
+    }
+
+    private void deliver(List<OnConfigCommittedListener> listeners, boolean success) {
+        for (OnConfigCommittedListener l : listeners) {
+            l.onConfigCommitted(success);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "sent=" + mSent + ", skipped=" + mSkipped;
+    }
+}
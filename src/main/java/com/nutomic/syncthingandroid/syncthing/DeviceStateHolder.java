@@ -8,9 +8,10 @@ import android.net.ConnectivityManager;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.BatteryManager;
+import android.os.PowerManager;
 
 /**
- * Holds information about the current wifi and charging state of the device.
+ * Holds information about the current wifi, charging and screen state of the device.
  * <p/>
  * This information is actively read on construction, and then updated from intents that are passed
  * to {@link #update(android.content.Intent)}.
@@ -36,6 +37,8 @@ public class DeviceStateHolder extends BroadcastReceiver {
 
     private boolean mIsCharging = false;
 
+    private boolean mIsScreenOn = true;
+
     @TargetApi(16)
     public DeviceStateHolder(Context context) {
         mContext = context;
@@ -47,6 +50,18 @@ public class DeviceStateHolder extends BroadcastReceiver {
         if (mIsWifiConnected) {
             updateWifiSsid();
         }
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mIsScreenOn = isInteractive(pm);
+    }
+
+    /**
+     * Returns true if the screen is on, using the replacement of the deprecated
+     * {@link PowerManager#isScreenOn()} where available.
+     */
+    @TargetApi(20)
+    @SuppressWarnings("deprecation")
+    private static boolean isInteractive(PowerManager pm) {
+        return (android.os.Build.VERSION.SDK_INT >= 20) ? pm.isInteractive() : pm.isScreenOn();
     }
 
     /**
@@ -64,6 +79,31 @@ public class DeviceStateHolder extends BroadcastReceiver {
         return mIsCharging;
     }
 
+    public boolean isScreenOn() {
+        return mIsScreenOn;
+    }
+
+    /**
+     * Updates charging and screen state from {@link Intent#ACTION_POWER_CONNECTED},
+     * {@link Intent#ACTION_POWER_DISCONNECTED}, {@link Intent#ACTION_SCREEN_ON} and
+     * {@link Intent#ACTION_SCREEN_OFF}.
+     */
+    public void updatePowerState(Intent intent) {
+        switch (intent.getAction()) {
+            case Intent.ACTION_POWER_CONNECTED:    mIsCharging = true;  break;
+            case Intent.ACTION_POWER_DISCONNECTED: mIsCharging = false; break;
+            case Intent.ACTION_SCREEN_ON:          mIsScreenOn = true;  break;
+            case Intent.ACTION_SCREEN_OFF:         mIsScreenOn = false; break;
+        }
+    }
+
+    /**
+     * Returns the scheduling profile that fits the current charging and screen state.
+     */
+    public SchedulingProfile getSchedulingProfile() {
+        return SchedulingProfile.select(mIsCharging, mIsScreenOn);
+    }
+
     public boolean isWifiConnected() {
         return mIsWifiConnected;
     }
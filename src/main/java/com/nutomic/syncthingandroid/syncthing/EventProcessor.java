@@ -6,7 +6,6 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.preference.PreferenceManager;
@@ -22,12 +21,17 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Run by the syncthing service to convert syncthing events into local broadcasts.
  *
- * It uses {@link RestApi#getEvents} to read the pending events and wait for new events.
+ * It uses {@link RestApi#pollEvents} on a background thread to wait for new events, and handles
+ * them on the main thread.
  */
 public class EventProcessor implements SyncthingService.OnWebGuiAvailableListener, Runnable,
         RestApi.OnReceiveEventListener {
@@ -36,10 +40,27 @@ public class EventProcessor implements SyncthingService.OnWebGuiAvailableListene
     private static final String PREF_LAST_SYNC_ID = "last_sync_id";
 
     /**
-     * Minimum interval in seconds at which the events are polled from syncthing and processed.
-     * This intervall will not wake up the device to save battery power.
+     * Maximum time in seconds that syncthing holds an event request open while waiting for
+     * new events.
      */
-    public static final long EVENT_UPDATE_INTERVAL = TimeUnit.SECONDS.toMillis(15);
+    public static final long EVENT_POLL_TIMEOUT = 60;
+
+    /**
+     * Event types handled in {@link #onEvent}. Other events are not requested from syncthing.
+     */
+    private static final Set<String> SUBSCRIBED_EVENTS = new HashSet<>(Arrays.asList(
+            "DeviceRejected", "FolderRejected", "ItemStarted", "ItemFinished",
+            "FolderCompletion", "RemoteIndexUpdated", "LocalIndexUpdated"));
+
+    /**
+     * Initial delay in ms before reconnecting after a failed event request.
+     */
+    private static final long MIN_RECONNECT_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Maximum delay in ms between reconnects while syncthing is not reachable.
+     */
+    private static final long MAX_RECONNECT_DELAY = TimeUnit.SECONDS.toMillis(60);
 
     /**
      * Use the MainThread for all callbacks and message handling
@@ -50,39 +71,87 @@ public class EventProcessor implements SyncthingService.OnWebGuiAvailableListene
     private volatile long mLastEventId = 0;
     private volatile boolean mShutdown = true;
 
+    /**
+     * Incremented whenever the event loop is started or stopped, so that a loop thread that is
+     * still blocked in a request exits instead of handling stale events.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
     private final Context mContext;
     private final RestApi mApi;
+    private final MediaIndexer mMediaIndexer;
 
     public EventProcessor(Context context, RestApi api) {
         mContext = context;
         mApi = api;
+        mMediaIndexer = new MediaIndexer(context);
     }
 
+    /**
+     * Event loop, runs on a background thread until {@link #shutdown()} is called or a new
+     * loop is started.
+     */
     @Override
     public void run() {
+        final int generation = mGeneration.get();
         // Restore the last event id if the event processor may have been restartet.
         if (mLastEventId == 0) {
             mLastEventId = PreferenceManager.getDefaultSharedPreferences(mContext)
                     .getLong(PREF_LAST_SYNC_ID, 0);
         }
 
-        // First check if the event number ran backwards.
-        // If that's the case we've to start at zero because syncthing was restarted.
-        mApi.getEvents(0, 1, new RestApi.OnReceiveEventListener() {
-            @Override
-            public void onEvent(long id, String eventType, JSONObject data) throws JSONException {
+        long reconnectDelay = MIN_RECONNECT_DELAY;
+        boolean checkRestart = true;
+        while (isCurrent(generation)) {
+            // Check if the event number ran backwards. If that's the case we've to start at zero
+            // because syncthing was restarted.
+            if (checkRestart) {
+                JsonStreamParser.EventBatch latest = mApi.pollEvents(0, 1, null, 0);
+                if (latest != null) {
+                    checkRestart = false;
+                    if (latest.lastId < mLastEventId)
+                        mLastEventId = 0;
+                    Log.d(TAG, "Reading events starting with id " + mLastEventId);
+                }
+            }
+
+            final JsonStreamParser.EventBatch events = (checkRestart)
+                    ? null
+                    : mApi.pollEvents(mLastEventId, 0, SUBSCRIBED_EVENTS, EVENT_POLL_TIMEOUT);
+            if (!isCurrent(generation))
+                break;
 
+            if (events == null) {
+                // Syncthing is probably restarting, so check event ids again once it is back.
+                checkRestart = true;
+                Log.d(TAG, "Failed to read events, reconnecting in " + reconnectDelay + " ms");
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                reconnectDelay = Math.min(2 * reconnectDelay, MAX_RECONNECT_DELAY);
+                continue;
             }
+            reconnectDelay = MIN_RECONNECT_DELAY;
 
-            @Override
-            public void onDone(long lastId) {
-                if (lastId < mLastEventId) mLastEventId = 0;
+            mLastEventId = Math.max(mLastEventId, events.lastId);
+            if (events.events.isEmpty())
+                continue;
 
-                Log.d(TAG, "Reading events starting with id " + mLastEventId);
+            mMainThreadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCurrent(generation))
+                        mApi.dispatchEvents(events, EventProcessor.this);
+                }
+            });
+        }
+        Log.d(TAG, "Event loop stopped");
+    }
 
-                mApi.getEvents(mLastEventId, 0, EventProcessor.this);
-            }
-        });
+    private boolean isCurrent(int generation) {
+        return !mShutdown && mGeneration.get() == generation;
     }
 
     /**
@@ -118,68 +187,81 @@ public class EventProcessor implements SyncthingService.OnWebGuiAvailableListene
                         .putExtra(FolderFragment.EXTRA_FOLDER_ID, folderId);
                 pi = PendingIntent.getActivity(mContext, 0, intent, 0);
 
-                String deviceName = null;
-                for (RestApi.Device d : mApi.getDevices(false)) {
-                    if (d.deviceID.equals(deviceId))
-                        deviceName = RestApi.getDeviceDisplayName(d);
-                }
+                RestApi.Device device = mApi.getConfigSnapshot().getDevice(deviceId);
+                String deviceName = (device != null)
+                        ? RestApi.getDeviceDisplayName(device)
+                        : null;
                 title = mContext.getString(R.string.folder_rejected, deviceName, folderId);
 
                 notify(title, pi);
                 break;
+            case "ItemStarted":
+                mApi.getSelfWriteTracker().onItemStarted(data.getString("folder"),
+                        data.getString("item"));
+                break;
             case "ItemFinished":
-                File updatedFile = new File(data.getString("folderpath"), data.getString("item"));
-                Log.i(TAG, "Notified media scanner about " + updatedFile.toString());
-                mContext.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
-                        Uri.fromFile(updatedFile)));
+                mApi.getSelfWriteTracker().onItemFinished(data.getString("folder"),
+                        data.getString("item"));
+                if (!data.isNull("error") || data.isNull("folderpath"))
+                    break;
+
+                mMediaIndexer.onItemFinished(
+                        new File(data.getString("folderpath"), data.getString("item")),
+                        "delete".equals(data.optString("action")));
                 break;
-            case "Ping":
-                // Ignored.
+            case "FolderCompletion":
+                mApi.getCompletionTracker().onFolderCompletion(data.getString("device"),
+                        data.getString("folder"), data.getDouble("completion"));
+                break;
+            case "RemoteIndexUpdated":
+                mApi.getCompletionTracker().invalidate(data.getString("device"),
+                        data.getString("folder"));
+                break;
+            case "LocalIndexUpdated":
+                mApi.getCompletionTracker().invalidateFolder(data.getString("folder"));
                 break;
             default:
                 Log.i(TAG, "Unhandled event " + type);
         }
     }
 
+    /**
+     * Stores the last event id in case we get killed.
+     */
     @Override
     public void onDone(long id) {
-        if (mLastEventId < id) {
-            mLastEventId = id;
-
-            // Store the last EventId in case we get killed
-            final SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
-
-            //noinspection CommitPrefEdits
-            sp.edit().putLong(PREF_LAST_SYNC_ID, mLastEventId).commit();
-        }
-
-        synchronized (mMainThreadHandler) {
-            if (!mShutdown) {
-                mMainThreadHandler.removeCallbacks(this);
-                mMainThreadHandler.postDelayed(this, EVENT_UPDATE_INTERVAL);
-            }
-        }
+        final SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
+        if (sp.getLong(PREF_LAST_SYNC_ID, 0) < id)
+            sp.edit().putLong(PREF_LAST_SYNC_ID, id).apply();
     }
 
     @Override
     public void onWebGuiAvailable() {
         Log.d(TAG, "WebGUI available. Starting event processor.");
 
-        // Remove all pending callbacks and add a new one. This makes sure that only one
+        // Stop any previous loop and start a new one. This makes sure that only one
         // event poller is running at any given time.
-        synchronized (mMainThreadHandler) {
+        synchronized (mGeneration) {
             mShutdown = false;
-            mMainThreadHandler.removeCallbacks(this);
-            mMainThreadHandler.postDelayed(this, EVENT_UPDATE_INTERVAL);
+            mGeneration.incrementAndGet();
+            new Thread(this, TAG).start();
         }
     }
 
     public void shutdown() {
         Log.d(TAG, "Shutdown event processor.");
-        synchronized (mMainThreadHandler) {
+        synchronized (mGeneration) {
             mShutdown = true;
-            mMainThreadHandler.removeCallbacks(this);
+            mGeneration.incrementAndGet();
         }
+        mMediaIndexer.flushNow();
+    }
+
+    /**
+     * Returns the stage that passes finished items to the media scanner.
+     */
+    public MediaIndexer getMediaIndexer() {
+        return mMediaIndexer;
     }
 
     private void notify(String title, PendingIntent pi) {
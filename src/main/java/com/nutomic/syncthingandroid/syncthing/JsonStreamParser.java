@@ -0,0 +1,203 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decodes REST API responses directly from the response stream, without building an
+ * intermediate String.
+ */
+public class JsonStreamParser {
+
+    private JsonStreamParser() {
+    }
+
+    /**
+     * Single event as returned by {@link GetTask#URI_EVENTS}.
+     */
+    public static class Event {
+        public long id;
+        public String type;
+        public JSONObject data;
+    }
+
+    /**
+     * Events returned by {@link #parseEvents}.
+     */
+    public static class EventBatch {
+        public final List<Event> events = new ArrayList<>();
+
+        /**
+         * The highest event id in the response, including events that were filtered out.
+         */
+        public long lastId;
+    }
+
+    /**
+     * Decodes the response of {@link GetTask#URI_CONFIG}.
+     */
+    public static JSONObject parseConfig(InputStream is) throws IOException {
+        JsonReader reader = newReader(is);
+        try {
+            return readObject(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Decodes the response of {@link GetTask#URI_MODEL}.
+     */
+    public static RestApi.Model parseModel(InputStream is) throws IOException {
+        JsonReader reader = newReader(is);
+        try {
+            RestApi.Model m = new RestApi.Model();
+            m.invalid = "";
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (name) {
+                    case "globalBytes":   m.globalBytes = reader.nextLong();   break;
+                    case "globalDeleted": m.globalDeleted = reader.nextLong(); break;
+                    case "globalFiles":   m.globalFiles = reader.nextLong();   break;
+                    case "localBytes":    m.localBytes = reader.nextLong();    break;
+                    case "localDeleted":  m.localDeleted = reader.nextLong();  break;
+                    case "localFiles":    m.localFiles = reader.nextLong();    break;
+                    case "inSyncBytes":   m.inSyncBytes = reader.nextLong();   break;
+                    case "inSyncFiles":   m.inSyncFiles = reader.nextLong();   break;
+                    case "needBytes":     m.needBytes = reader.nextLong();     break;
+                    case "needFiles":     m.needFiles = reader.nextLong();     break;
+                    case "state":         m.state = reader.nextString();       break;
+                    case "invalid":       m.invalid = reader.nextString();     break;
+                    default:              reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (m.state == null)
+                throw new IOException("Folder state missing in response");
+            return m;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Decodes the response of {@link GetTask#URI_EVENTS}.
+     *
+     * @param types Event types to return, or null for all events. The data of other events is
+     *              skipped without decoding it.
+     */
+    public static EventBatch parseEvents(InputStream is, Set<String> types) throws IOException {
+        JsonReader reader = newReader(is);
+        try {
+            EventBatch batch = new EventBatch();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                Event event = new Event();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    switch (name) {
+                        case "id":
+                            event.id = reader.nextLong();
+                            break;
+                        case "type":
+                            event.type = reader.nextString();
+                            break;
+                        case "data":
+                            // Syncthing sends the type before the data, so unwanted data can be
+                            // skipped here.
+                            boolean wanted = types == null || event.type == null ||
+                                    types.contains(event.type);
+                            event.data = (wanted && reader.peek() == JsonToken.BEGIN_OBJECT)
+                                    ? readObject(reader)
+                                    : null;
+                            if (event.data == null)
+                                reader.skipValue();
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                batch.lastId = Math.max(batch.lastId, event.id);
+                if (types == null || types.contains(event.type))
+                    batch.events.add(event);
+            }
+            reader.endArray();
+            return batch;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static JsonReader newReader(InputStream is) throws IOException {
+        return new JsonReader(new InputStreamReader(is, "UTF-8"));
+    }
+
+    /**
+     * Reads the next object from reader into a {@link JSONObject}.
+     */
+    static JSONObject readObject(JsonReader reader) throws IOException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        try {
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                object.put(name, readValue(reader));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Failed to decode JSON object", e);
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws IOException {
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.put(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+}
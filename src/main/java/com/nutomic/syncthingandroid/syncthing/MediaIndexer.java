@@ -0,0 +1,221 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the MediaStore up to date with files that were changed by syncthing.
+ *
+ * Finished items are collected for {@link #BATCH_WINDOW} and deduplicated by path, with the last
+ * action for a path winning. Updated files that still exist are then passed to
+ * {@link MediaScannerConnection#scanFile} in a single call, and the MediaStore rows of deleted
+ * files are removed directly.
+ */
+public class MediaIndexer {
+
+    private static final String TAG = "MediaIndexer";
+
+    /**
+     * Time in ms that finished items are collected before they are indexed.
+     */
+    private static final long BATCH_WINDOW = TimeUnit.SECONDS.toMillis(2);
+
+    /**
+     * Number of pending items at which a batch is indexed without waiting for the window.
+     */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * Maximum number of paths per MediaStore delete statement (SQLite's variable limit is 999).
+     */
+    private static final int MAX_DELETE_ARGS = 500;
+
+    private final Context mContext;
+
+    private final Handler mHandler;
+
+    /**
+     * Maps pending paths to true if they were deleted, false if they were updated.
+     */
+    private final Map<String, Boolean> mPending = new LinkedHashMap<>();
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mScanned = new AtomicLong();
+    private final AtomicLong mRemoved = new AtomicLong();
+    private final AtomicLong mBatches = new AtomicLong();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public MediaIndexer(Context context) {
+        mContext = context;
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Queues the given file for indexing. If it was deleted, it is removed from the MediaStore
+     * once the batch is processed. Otherwise it is scanned if it still exists at that time, and
+     * removed if it doesn't.
+     *
+     * @param deleted True if the item was finished with action "delete".
+     */
+    public void onItemFinished(File file, boolean deleted) {
+        synchronized (mPending) {
+            mReceived.incrementAndGet();
+            if (mPending.put(file.getAbsolutePath(), deleted) != null) {
+                mDuplicates.incrementAndGet();
+                return;
+            }
+            if (mPending.size() == 1) {
+                mHandler.postDelayed(mFlush, BATCH_WINDOW);
+            } else if (mPending.size() >= MAX_BATCH_SIZE) {
+                mHandler.removeCallbacks(mFlush);
+                mHandler.post(mFlush);
+            }
+        }
+    }
+
+    /**
+     * Indexes all pending items immediately.
+     */
+    public void flushNow() {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(mFlush);
+    }
+
+    /**
+     * Indexes all pending items, then stops the indexer thread. Items that are added later are
+     * not indexed.
+     */
+    public void quit() {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    /**
+     * Runs on the indexer thread.
+     */
+    private void flush() {
+        Map<String, Boolean> items;
+        synchronized (mPending) {
+            if (mPending.isEmpty())
+                return;
+
+            items = new LinkedHashMap<>(mPending);
+            mPending.clear();
+        }
+
+        List<String> existing = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        for (Map.Entry<String, Boolean> e : items.entrySet()) {
+            if (!e.getValue() && new File(e.getKey()).exists()) {
+                existing.add(e.getKey());
+            } else {
+                deleted.add(e.getKey());
+            }
+        }
+
+        if (!existing.isEmpty()) {
+            MediaScannerConnection.scanFile(mContext,
+                    existing.toArray(new String[existing.size()]), null, null);
+            mScanned.addAndGet(existing.size());
+        }
+        if (!deleted.isEmpty()) {
+            mRemoved.addAndGet(removeFromMediaStore(deleted));
+        }
+        mBatches.incrementAndGet();
+        Log.i(TAG, "Notified media scanner about " + existing.size() + " files, removed " +
+                deleted.size() + " deleted files (" + getStats() + ")");
+    }
+
+    /**
+     * Deletes the MediaStore rows of the given paths.
+     *
+     * @return The number of deleted rows.
+     */
+    private int removeFromMediaStore(List<String> paths) {
+        ContentResolver resolver = mContext.getContentResolver();
+        Uri uri = MediaStore.Files.getContentUri("external");
+        int removed = 0;
+        for (int i = 0; i < paths.size(); i += MAX_DELETE_ARGS) {
+            List<String> chunk = paths.subList(i, Math.min(i + MAX_DELETE_ARGS, paths.size()));
+            String placeholders = getPlaceholders(chunk.size());
+            try {
+                removed += resolver.delete(uri,
+                        MediaStore.Files.FileColumns.DATA + " IN (" + placeholders + ")",
+                        chunk.toArray(new String[chunk.size()]));
+            } catch (IllegalArgumentException | SecurityException e) {
+                Log.w(TAG, "Failed to remove deleted files from MediaStore", e);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns a comma separated list of count SQL placeholders.
+     */
+    private static String getPlaceholders(int count) {
+        String[] placeholders = new String[count];
+        Arrays.fill(placeholders, "?");
+        return TextUtils.join(",", placeholders);
+    }
+
+    /**
+     * Returns a summary of the throughput counters.
+     */
+    public String getStats() {
+        return "received=" + mReceived.get() + ", duplicates=" + mDuplicates.get() +
+                ", scanned=" + mScanned.get() + ", removed=" + mRemoved.get() +
+                ", batches=" + mBatches.get();
+    }
+
+    public long getReceivedCount() {
+        return mReceived.get();
+    }
+
+    public long getDuplicateCount() {
+        return mDuplicates.get();
+    }
+
+    public long getScannedCount() {
+        return mScanned.get();
+    }
+
+    public long getRemovedCount() {
+        return mRemoved.get();
+    }
+
+    public long getBatchCount() {
+        return mBatches.get();
+    }
+}
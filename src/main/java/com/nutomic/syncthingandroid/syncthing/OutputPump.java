@@ -0,0 +1,328 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.nutomic.syncthingandroid.util.LogStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads the output of the syncthing binary without ever blocking it.
+ *
+ * One reader thread per stream drains the pipe in chunks and puts complete lines into a lock
+ * free queue. A single consumer thread stores the lines in {@link LogStore} and forwards them
+ * to logcat. If the consumer falls behind by more than {@link #MAX_QUEUED} lines, new info
+ * lines are dropped instead of waiting. Warnings, errors and the line that reports the API as
+ * listening have their own limit of {@link #MAX_PRIORITY_QUEUED} lines. The listener is still
+ * notified if the API line itself had to be dropped.
+ *
+ * Forwarding to logcat is limited to {@link #LOGCAT_LINES_PER_SECOND}. Above that, only every
+ * {@link #INFO_SAMPLE_INTERVAL}th info line and every {@link #WARN_SAMPLE_INTERVAL}th warning
+ * is forwarded. All lines are still stored in {@link LogStore}.
+ */
+public class OutputPump {
+
+    private static final String TAG = "OutputPump";
+
+    private static final String TAG_NATIVE = "SyncthingNativeCode";
+
+    /**
+     * Printed by syncthing once the REST API accepts connections.
+     */
+    private static final String API_LISTENING = "API listening";
+
+    /**
+     * Size in bytes of each read from a stream.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * Lines longer than this many bytes are split.
+     */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /**
+     * Maximum number of lines waiting for the consumer.
+     */
+    private static final int MAX_QUEUED = 5000;
+
+    /**
+     * Maximum number of warnings and errors waiting for the consumer.
+     */
+    private static final int MAX_PRIORITY_QUEUED = 500;
+
+    private static final int LOGCAT_LINES_PER_SECOND = 100;
+
+    private static final int INFO_SAMPLE_INTERVAL = 100;
+
+    private static final int WARN_SAMPLE_INTERVAL = 10;
+
+    /**
+     * Maximum time the consumer sleeps before checking the queue again.
+     */
+    private static final long IDLE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Line {
+        final int priority;
+        final String text;
+        final boolean watchApi;
+        final boolean keep;
+
+        Line(int priority, String text, boolean watchApi, boolean keep) {
+            this.priority = priority;
+            this.text = text;
+            this.watchApi = watchApi;
+            this.keep = keep;
+        }
+    }
+
+    private final LogStore mLogStore;
+
+    private final SyncthingRunnable.OnApiListeningListener mOnApiListeningListener;
+
+    private final int mMaxQueued;
+
+    private final int mMaxPriorityQueued;
+
+    private final ConcurrentLinkedQueue<Line> mQueue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger mQueued = new AtomicInteger();
+
+    private final AtomicInteger mPriorityQueued = new AtomicInteger();
+
+    private final AtomicBoolean mApiListeningDropped = new AtomicBoolean();
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    private final List<Thread> mReaders = new ArrayList<>();
+
+    private final Thread mConsumer;
+
+    private volatile boolean mReadersDone = false;
+
+    // Only accessed by the consumer thread.
+    private long mWindowStart;
+    private int mForwarded;
+    private int mInfoSample;
+    private int mWarnSample;
+    private long mSuppressed;
+    private long mTotalSuppressed;
+
+    /**
+     * @param listener Notified from the consumer thread when syncthing reports that its API
+     *                 is listening.
+     */
+    public OutputPump(LogStore logStore, SyncthingRunnable.OnApiListeningListener listener) {
+        this(logStore, listener, MAX_QUEUED);
+    }
+
+    /**
+     * @param maxQueued Number of lines waiting for the consumer above which info lines are
+     *                  dropped.
+     */
+    public OutputPump(LogStore logStore, SyncthingRunnable.OnApiListeningListener listener,
+                      int maxQueued) {
+        this(logStore, listener, maxQueued, MAX_PRIORITY_QUEUED);
+    }
+
+    /**
+     * @param maxPriorityQueued Number of warnings and errors waiting for the consumer above
+     *                          which they are dropped as well.
+     */
+    public OutputPump(LogStore logStore, SyncthingRunnable.OnApiListeningListener listener,
+                      int maxQueued, int maxPriorityQueued) {
+        mLogStore = logStore;
+        mMaxQueued = maxQueued;
+        mMaxPriorityQueued = maxPriorityQueued;
+        mOnApiListeningListener = listener;
+        mConsumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, TAG_NATIVE);
+        mConsumer.start();
+    }
+
+    /**
+     * Starts reading the given stream until it is closed.
+     *
+     * @param priority The priority of lines from this stream.
+     * @param watchApi True if the listener should be notified when this stream reports that
+     *                 the API is listening.
+     */
+    public void pump(final InputStream is, final int priority, final boolean watchApi) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(is, priority, watchApi);
+            }
+        }, TAG_NATIVE);
+        mReaders.add(t);
+        t.start();
+    }
+
+    /**
+     * Waits until all streams are closed and their lines were handled.
+     */
+    public void join() throws InterruptedException {
+        for (Thread t : mReaders) {
+            t.join();
+        }
+        mReadersDone = true;
+        LockSupport.unpark(mConsumer);
+        mConsumer.join();
+
+        long dropped = mDropped.get();
+        if (dropped > 0 || mTotalSuppressed > 0) {
+            Log.i(TAG, "Dropped " + dropped + " lines of syncthing output, and did not " +
+                    "forward " + mTotalSuppressed + " lines to logcat");
+        }
+    }
+
+    /**
+     * Returns the number of lines that were dropped because the consumer fell behind. Only
+     * complete after {@link #join()}.
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    /**
+     * Returns the number of lines that were not forwarded to logcat. Only valid after
+     * {@link #join()}.
+     */
+    public long getSuppressed() {
+        return mTotalSuppressed;
+    }
+
+    private void read(InputStream is, int priority, boolean watchApi) {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        try {
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] != '\n')
+                        continue;
+
+                    partial.write(buffer, start, i - start);
+                    enqueue(partial, priority, watchApi);
+                    start = i + 1;
+                }
+                partial.write(buffer, start, n - start);
+                if (partial.size() > MAX_LINE_LENGTH)
+                    enqueue(partial, priority, watchApi);
+            }
+            if (partial.size() > 0)
+                enqueue(partial, priority, watchApi);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read Syncthing's command line output", e);
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close stream", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the content of partial to the queue as one line, and resets partial.
+     */
+    private void enqueue(ByteArrayOutputStream partial, int priority, boolean watchApi) {
+        String text = new String(partial.toByteArray(), UTF_8);
+        partial.reset();
+        if (text.endsWith("\r"))
+            text = text.substring(0, text.length() - 1);
+
+        boolean api = watchApi && text.contains(API_LISTENING);
+        boolean keep = priority >= Log.WARN || api;
+        AtomicInteger counter = (keep) ? mPriorityQueued : mQueued;
+        int queued = counter.incrementAndGet();
+        if (queued > ((keep) ? mMaxPriorityQueued : mMaxQueued)) {
+            counter.decrementAndGet();
+            mDropped.incrementAndGet();
+            if (api) {
+                mApiListeningDropped.set(true);
+                LockSupport.unpark(mConsumer);
+            }
+            return;
+        }
+        mQueue.offer(new Line(priority, text, watchApi, keep));
+        // The consumer only sleeps once the queue is empty.
+        if (queued == 1)
+            LockSupport.unpark(mConsumer);
+    }
+
+    private void consume() {
+        mWindowStart = SystemClock.elapsedRealtime();
+        while (true) {
+            if (mApiListeningDropped.getAndSet(false) && mOnApiListeningListener != null)
+                mOnApiListeningListener.onApiListening();
+
+            Line line = mQueue.poll();
+            if (line != null) {
+                ((line.keep) ? mPriorityQueued : mQueued).decrementAndGet();
+                handle(line);
+                continue;
+            }
+            // Readers are finished, so nothing can be added after this check.
+            if (mReadersDone && mQueue.isEmpty() && !mApiListeningDropped.get())
+                break;
+
+            LockSupport.parkNanos(this, IDLE_TIMEOUT);
+        }
+        mTotalSuppressed += mSuppressed;
+    }
+
+    private void handle(Line line) {
+        mLogStore.append(line.priority, line.text);
+        if (line.watchApi && mOnApiListeningListener != null &&
+                line.text.contains(API_LISTENING))
+            mOnApiListeningListener.onApiListening();
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - mWindowStart >= 1000) {
+            if (mSuppressed > 0)
+                Log.i(TAG, "Did not forward " + mSuppressed + " lines of syncthing output to " +
+                        "logcat, see the log screen for all lines");
+            mTotalSuppressed += mSuppressed;
+            mSuppressed = 0;
+            mForwarded = 0;
+            mWindowStart = now;
+        }
+
+        boolean forward;
+        if (mForwarded < LOGCAT_LINES_PER_SECOND) {
+            forward = true;
+        } else if (line.priority >= Log.WARN) {
+            forward = ++mWarnSample % WARN_SAMPLE_INTERVAL == 0;
+        } else {
+            forward = ++mInfoSample % INFO_SAMPLE_INTERVAL == 0;
+        }
+
+        if (forward) {
+            mForwarded++;
+            Log.println(line.priority, TAG_NATIVE, line.text);
+        } else {
+            mSuppressed++;
+        }
+    }
+
+}
@@ -2,6 +2,7 @@ package com.nutomic.syncthingandroid.syncthing;
 
 
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.nutomic.syncthingandroid.util.Https;
@@ -13,50 +14,111 @@ import org.apache.http.client.methods.HttpHead;
 import org.apache.http.conn.HttpHostConnectException;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Polls SYNCTHING_URL until it returns HTTP status OK, then calls all listeners
- * in mOnWebGuiAvailableListeners and clears it.
+ * Waits until the web GUI at SYNCTHING_URL is available, then calls {@link #onPostExecute}.
+ *
+ * The web GUI is considered available as soon as {@link #onApiListening()} is called, which
+ * happens when syncthing prints that its API is listening. Until then, the URL is polled with
+ * increasing intervals in case that line is missed. If the web GUI does not become available
+ * within {@link #WEB_GUI_TIMEOUT}, the task is cancelled instead.
  */
-public abstract class PollWebGuiAvailableTask extends AsyncTask<String, Void, Void> {
+public abstract class PollWebGuiAvailableTask extends AsyncTask<String, Void, Void>
+        implements SyncthingRunnable.OnApiListeningListener {
 
     private static final String TAG = "PollWebGuiAvailableTask";
 
     /**
-     * Interval in ms, at which connections to the web gui are performed on first start
-     * to find out if it's online.
+     * Interval in ms before the first poll of the web gui, doubled after every failed poll.
      */
-    private static final long WEB_GUI_POLL_INTERVAL = 100;
+    private static final long WEB_GUI_POLL_INTERVAL = 250;
 
-    private String mHttpsCertPath;
+    private static final long WEB_GUI_POLL_INTERVAL_MAX = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Time in ms after which we give up waiting for the web gui.
+     */
+    private static final long WEB_GUI_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+    private final String mHttpsCertPath;
+
+    private final CountDownLatch mApiListening = new CountDownLatch(1);
+
+    private volatile long mTimeToReady = -1;
 
     public PollWebGuiAvailableTask(String httpsCertPath) {
         mHttpsCertPath = httpsCertPath;
     }
 
+    /**
+     * Marks the web GUI as available without waiting for the next poll. May be called from any
+     * thread.
+     */
+    @Override
+    public void onApiListening() {
+        mApiListening.countDown();
+    }
+
+    /**
+     * Returns the time in ms it took until the web GUI was available, or -1 if it is not
+     * available yet.
+     */
+    public long getTimeToReady() {
+        return mTimeToReady;
+    }
+
     /**
      * @param @url The URL of the web GUI (eg 127.0.0.1:8384).
      */
     @Override
     protected Void doInBackground(String... url) {
-        int status = 0;
+        long start = SystemClock.elapsedRealtime();
         HttpClient httpclient = Https.createHttpsClient(mHttpsCertPath);
         HttpHead head = new HttpHead(url[0]);
-        do {
-            try {
-                Thread.sleep(WEB_GUI_POLL_INTERVAL);
-                HttpResponse response = httpclient.execute(head);
-                // NOTE: status is not really needed, as HttpHostConnectException is thrown
-                // earlier.
-                status = response.getStatusLine().getStatusCode();
-            } catch (HttpHostConnectException e) {
-                // We catch this in every call, as long as the service is not online,
-                // so we ignore and continue.
-            } catch (IOException|InterruptedException|IllegalArgumentException e) {
-                Log.w(TAG, "Failed to poll for web interface", e);
+        long interval = WEB_GUI_POLL_INTERVAL;
+        try {
+            while (!mApiListening.await(interval, TimeUnit.MILLISECONDS)) {
+                if (isCancelled())
+                    return null;
+
+                if (poll(httpclient, head))
+                    break;
+
+                if (SystemClock.elapsedRealtime() - start > WEB_GUI_TIMEOUT) {
+                    Log.w(TAG, "Web interface not available after " + WEB_GUI_TIMEOUT + " ms");
+                    cancel(false);
+                    return null;
+                }
+                interval = Math.min(interval * 2, WEB_GUI_POLL_INTERVAL_MAX);
             }
-        } while (status != HttpStatus.SC_OK && status != HttpStatus.SC_UNAUTHORIZED);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for web interface", e);
+            cancel(false);
+            return null;
+        } finally {
+            httpclient.getConnectionManager().shutdown();
+        }
+        mTimeToReady = SystemClock.elapsedRealtime() - start;
         return null;
     }
 
+    /**
+     * Returns true if the web gui responded.
+     */
+    private boolean poll(HttpClient httpclient, HttpHead head) {
+        try {
+            HttpResponse response = httpclient.execute(head);
+            int status = response.getStatusLine().getStatusCode();
+            return status == HttpStatus.SC_OK || status == HttpStatus.SC_UNAUTHORIZED;
+        } catch (HttpHostConnectException e) {
+            // We catch this in every call, as long as the service is not online,
+            // so we ignore and continue.
+        } catch (IOException|IllegalArgumentException e) {
+            Log.w(TAG, "Failed to poll for web interface", e);
+        }
+        return false;
+    }
+
 }
@@ -5,6 +5,7 @@ import android.util.Log;
 
 import com.nutomic.syncthingandroid.util.Https;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
@@ -24,10 +25,28 @@ public class PostConfigTask extends AsyncTask<String, Void, Boolean> {
 
     private String mHttpsCertPath;
 
+    private HttpClient mHttpClient;
+
     public PostConfigTask(String httpsCertPath) {
         mHttpsCertPath = httpsCertPath;
     }
 
+    /**
+     * Sends the request over the given (pooled) client instead of creating a new one.
+     */
+    public PostConfigTask(HttpClient httpClient) {
+        mHttpClient = httpClient;
+    }
+
+    /**
+     * Returns the shared client if one was passed, or creates a new client otherwise.
+     */
+    private HttpClient getHttpClient() {
+        return (mHttpClient != null)
+                ? mHttpClient
+                : Https.createHttpsClient(mHttpsCertPath);
+    }
+
     /**
      * params[0] Syncthing hostname
      * params[1] Syncthing API key
@@ -38,16 +57,20 @@ public class PostConfigTask extends AsyncTask<String, Void, Boolean> {
         String fullUri = params[0] + URI_CONFIG;
         Log.v(TAG, "Calling Rest API at " + fullUri);
 
-        HttpClient httpclient = Https.createHttpsClient(mHttpsCertPath);
+        HttpClient httpclient = getHttpClient();
         HttpPost post = new HttpPost(fullUri);
         post.addHeader(new BasicHeader(RestApi.HEADER_API_KEY, params[1]));
 
         try {
             post.setEntity(new StringEntity(params[2], HTTP.UTF_8));
             Log.v(TAG, "API call parameters: " + params[2]);
-            httpclient.execute(post);
+            HttpEntity entity = httpclient.execute(post).getEntity();
+            // Release the connection back to the pool.
+            if (entity != null)
+                entity.consumeContent();
         } catch (IOException|IllegalArgumentException e) {
             Log.w(TAG, "Failed to call Rest API at " + fullUri, e);
+            post.abort();
             return false;
         }
         return true;
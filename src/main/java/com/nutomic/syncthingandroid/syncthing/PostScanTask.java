@@ -1,10 +1,13 @@
 package com.nutomic.syncthingandroid.syncthing;
 
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.nutomic.syncthingandroid.util.Https;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
@@ -19,6 +22,8 @@ import java.util.LinkedList;
 
 /**
  * Performs a POST request to {@link #URI_SCAN} to notify Syncthing of a changed file or folder.
+ *
+ * Failed requests are retried in the same way as in {@link StreamingGetTask}.
  */
 public class PostScanTask extends AsyncTask<String, Void, Void> {
 
@@ -28,10 +33,46 @@ public class PostScanTask extends AsyncTask<String, Void, Void> {
 
     private String mHttpsCertPath;
 
+    private HttpClient mHttpClient;
+
+    private RetryPolicy mRetryPolicy;
+
+    private volatile boolean mRetryPending = false;
+
+    /**
+     * The latest retry of the request, if any.
+     */
+    private volatile RestExecutor.Retry mRetry;
+
     public PostScanTask(String httpsCertPath) {
         mHttpsCertPath = httpsCertPath;
     }
 
+    /**
+     * Sends the request over the given (pooled) client instead of creating a new one.
+     */
+    public PostScanTask(HttpClient httpClient) {
+        mHttpClient = httpClient;
+    }
+
+    /**
+     * Like {@link #PostScanTask(HttpClient)}, but retries failed requests according to
+     * retryPolicy.
+     */
+    public PostScanTask(HttpClient httpClient, RetryPolicy retryPolicy) {
+        this(httpClient);
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the shared client if one was passed, or creates a new client otherwise.
+     */
+    private HttpClient getHttpClient() {
+        return (mHttpClient != null)
+                ? mHttpClient
+                : Https.createHttpsClient(mHttpsCertPath);
+    }
+
     /**
      * params[0] Syncthing hostname
      * params[1] Syncthing API key
@@ -40,6 +81,57 @@ public class PostScanTask extends AsyncTask<String, Void, Void> {
      */
     @Override
     protected Void doInBackground(String... params) {
+        if (mRetryPolicy != null && !mRetryPolicy.allowRequest(URI_SCAN)) {
+            Log.d(TAG, "Not calling " + URI_SCAN + ", syncthing is not available");
+            return null;
+        }
+
+        if (!attempt(params) && mRetryPolicy != null && !isCancelled()) {
+            // Finish this task, and call onPostExecute after the retry.
+            mRetryPending = true;
+            cancel(false);
+            scheduleRetry(params, 1);
+        }
+        return null;
+    }
+
+    /**
+     * Suppresses the cancel callback if the task was only finished to retry the request.
+     */
+    @Override
+    protected void onCancelled(Void result) {
+        if (!mRetryPending)
+            super.onCancelled(result);
+    }
+
+    private void scheduleRetry(final String[] params, final int retry) {
+        Log.w(TAG, "Retrying Rest API call to " + URI_SCAN + " (" + retry + "/" +
+                (RetryPolicy.MAX_ATTEMPTS - 1) + ")");
+        mRetry = mRetryPolicy.scheduleRetry(new Runnable() {
+            @Override
+            public void run() {
+                if (mRetryPolicy.allowRequest(URI_SCAN) && !attempt(params) &&
+                        retry + 1 < RetryPolicy.MAX_ATTEMPTS && !mRetry.isCancelled()) {
+                    scheduleRetry(params, retry + 1);
+                    return;
+                }
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mRetry.isCancelled())
+                            onPostExecute(null);
+                    }
+                });
+            }
+        }, retry);
+    }
+
+    /**
+     * Performs the request once on the calling thread.
+     *
+     * @return True on success.
+     */
+    private boolean attempt(String... params) {
         String fullUri = params[0] + URI_SCAN;
 
         LinkedList<NameValuePair> urlParams = new LinkedList<>();
@@ -48,31 +140,26 @@ public class PostScanTask extends AsyncTask<String, Void, Void> {
         fullUri += "?" + URLEncodedUtils.format(urlParams, HTTP.UTF_8);
         Log.v(TAG, "Calling Rest API at " + fullUri);
 
-        // Retry at most 5 times before failing
-        for (int i = 0; i < 5; i++) {
-            HttpClient httpclient = Https.createHttpsClient(mHttpsCertPath);
-            HttpPost post = new HttpPost(fullUri);
-            post.addHeader(new BasicHeader(RestApi.HEADER_API_KEY, params[1]));
-
-            if (isCancelled())
-                return null;
-
-            try {
-                HttpResponse response = httpclient.execute(post);
-                if (response.getEntity() != null)
-                    return null;
-            } catch (IOException | IllegalArgumentException e) {
-                Log.w(TAG, "Failed to call Rest API at " + fullUri);
+        HttpPost post = new HttpPost(fullUri);
+        post.addHeader(new BasicHeader(RestApi.HEADER_API_KEY, params[1]));
+        try {
+            HttpResponse response = getHttpClient().execute(post);
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                // Release the connection back to the pool.
+                entity.consumeContent();
+                if (mRetryPolicy != null)
+                    mRetryPolicy.onSuccess(URI_SCAN);
+                return true;
             }
-            try {
-                // Don't push the API too hard
-                Thread.sleep(500 * i);
-            } catch (InterruptedException e) {
-                Log.w(TAG, e);
-            }
-            Log.w(TAG, "Retrying GetTask Rest API call (" + (i + 1) + "/5)");
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to call Rest API at " + fullUri);
+            // Drop the connection instead of returning it to the pool.
+            post.abort();
         }
-        return null;
+        if (mRetryPolicy != null)
+            mRetryPolicy.onFailure(URI_SCAN);
+        return false;
     }
 
 }
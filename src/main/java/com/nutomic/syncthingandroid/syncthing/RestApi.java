@@ -6,20 +6,29 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.nutomic.syncthingandroid.BuildConfig;
 import com.nutomic.syncthingandroid.R;
 import com.nutomic.syncthingandroid.activities.RestartActivity;
+import com.nutomic.syncthingandroid.util.ConnectionStats;
+import com.nutomic.syncthingandroid.util.EndpointStats;
 import com.nutomic.syncthingandroid.util.FolderObserver;
+import com.nutomic.syncthingandroid.util.Https;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicHeader;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -27,13 +36,18 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Provides functions to interact with the syncthing REST API.
  */
 public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
-        FolderObserver.OnFolderFileChangeListener {
+        SyncthingService.OnApiChangeListener, FolderObserver.OnFolderFileChangeListener {
 
     private static final String TAG = "RestApi";
 
@@ -52,6 +66,8 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      */
     public static final String HEADER_API_KEY = "X-API-Key";
 
+    private static final String URI_SHUTDOWN = "/rest/system/shutdown";
+
     /**
      * Key of the map element containing connection info for the local device, in the return
      * value of {@link #getConnections}
@@ -64,6 +80,19 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
         public String deviceID;
         public String compression;
         public boolean introducer;
+
+        /**
+         * Returns a copy of this device that can be modified.
+         */
+        public Device copy() {
+            Device d = new Device();
+            d.addresses = (addresses != null) ? new ArrayList<>(addresses) : null;
+            d.name = name;
+            d.deviceID = deviceID;
+            d.compression = compression;
+            d.introducer = introducer;
+            return d;
+        }
     }
 
     public static class SystemInfo {
@@ -84,6 +113,21 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
         public boolean readOnly;
         public int rescanIntervalS;
         public Versioning versioning;
+
+        /**
+         * Returns a copy of this folder that can be modified.
+         */
+        public Folder copy() {
+            Folder f = new Folder();
+            f.path = path;
+            f.id = id;
+            f.invalid = invalid;
+            f.deviceIds = (deviceIds != null) ? new ArrayList<>(deviceIds) : null;
+            f.readOnly = readOnly;
+            f.rescanIntervalS = rescanIntervalS;
+            f.versioning = versioning;
+            return f;
+        }
     }
 
     public static class Versioning implements Serializable {
@@ -154,12 +198,107 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
 
     private final String mHttpsCertPath;
 
+    /**
+     * Counts requests and handshakes of {@link #mHttpClient}.
+     */
+    private final ConnectionStats mConnectionStats = new ConnectionStats();
+
+    /**
+     * Pooled client shared by all requests, so that connections to syncthing are reused.
+     */
+    private final HttpClient mHttpClient;
+
+    /**
+     * Counts received bytes and decoding time per endpoint.
+     */
+    private final EndpointStats mEndpointStats = new EndpointStats();
+
+    /**
+     * Runs all asynchronous requests, so that user initiated requests are not delayed by
+     * background work.
+     */
+    private final RestExecutor mExecutor = new RestExecutor();
+
+    /**
+     * Schedules retries of failed requests, and fails requests fast while syncthing is down.
+     */
+    private final RetryPolicy mRetryPolicy = new RetryPolicy(mExecutor);
+
+    /**
+     * Default time in ms that status results are reused instead of sending a new request.
+     */
+    public static final long DEFAULT_RESPONSE_FRESHNESS = 1000;
+
+    /**
+     * Deduplicate concurrent status requests, which are sent by several views at the same time.
+     */
+    private final SingleFlight<SystemInfo> mSystemInfoFlight =
+            new SingleFlight<>(DEFAULT_RESPONSE_FRESHNESS);
+
+    private final SingleFlight<Map<String, Connection>> mConnectionsFlight =
+            new SingleFlight<>(DEFAULT_RESPONSE_FRESHNESS);
+
+    private final SingleFlight<Model> mModelFlight =
+            new SingleFlight<>(DEFAULT_RESPONSE_FRESHNESS);
+
     private JSONObject mConfig;
 
+    /**
+     * Parsed view of {@link #mConfig}, or null if it has to be rebuilt.
+     */
+    private ConfigSnapshot mConfigSnapshot;
+
     private String mLocalDeviceId;
 
     private boolean mRestartPostponed = false;
 
+    /**
+     * Sends changes of {@link #mConfig} to syncthing.
+     */
+    private final ConfigWriter mConfigWriter = new ConfigWriter(new ConfigWriter.Backend() {
+        @Override
+        public String serializeConfig() {
+            return mConfig.toString();
+        }
+
+        @Override
+        public void postConfig(String config) {
+            mExecutor.execute(new PostConfigTask(mHttpClient) {
+                @Override
+                protected void onPostExecute(Boolean success) {
+                    mConfigWriter.onCommitFinished(success);
+                }
+
+                @Override
+                protected void onCancelled() {
+                    mConfigWriter.onCommitFinished(false);
+                }
+            }, RestExecutor.Priority.USER, null, mUrl, mApiKey, config);
+        }
+    });
+
+    /**
+     * Number of open config transactions, see {@link #beginConfigTransaction()}.
+     */
+    private int mTransactionDepth = 0;
+
+    /**
+     * True if the config was changed during the current transaction.
+     */
+    private boolean mTransactionChanged = false;
+
+    /**
+     * True if {@link #requireRestart} was called during the current transaction.
+     */
+    private boolean mTransactionRestart = false;
+
+    private boolean mInSyncCheckRunning = false;
+
+    private boolean mInSyncCheckAgain = false;
+
+    private final List<ConfigWriter.OnConfigCommittedListener> mTransactionListeners =
+            new ArrayList<>();
+
     /**
      * Stores the result of the last successful request to {@link GetTask#URI_CONNECTIONS},
      * or an empty Map.
@@ -171,16 +310,49 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      */
     private long mPreviousConnectionTime = 0;
 
+    private volatile CompletionTracker.OnCompletionChangedListener mOnCompletionChangedListener;
+
     /**
-     * Stores the latest result of {@link #getModel(String, OnReceiveModelListener)} for each folder,
-     * for calculating device percentage in {@link #getConnections(OnReceiveConnectionsListener)}.
+     * Provides device completion for {@link #getConnections(OnReceiveConnectionsListener)}.
+     *
+     * Values that arrive later are written into {@link #mPreviousConnections}, and passed to
+     * {@link #mOnCompletionChangedListener} so that views are updated immediately.
      */
-    private HashMap<String, Model> mCachedModelInfo = new HashMap<>();
+    private final CompletionTracker mCompletionTracker = new CompletionTracker(this,
+            new CompletionTracker.OnCompletionChangedListener() {
+                @Override
+                public void onCompletionChanged(String deviceId, int completion) {
+                    Connection c = mPreviousConnections.get(deviceId);
+                    if (c != null)
+                        c.completion = completion;
+                    CompletionTracker.OnCompletionChangedListener listener =
+                            mOnCompletionChangedListener;
+                    if (listener != null)
+                        listener.onCompletionChanged(deviceId, completion);
+                }
+            });
+
+    private final SelfWriteTracker mSelfWriteTracker = new SelfWriteTracker();
 
     /**
-     * Stores a hash map to resolve folders to paths for events.
+     * Coalesces changes reported by {@link FolderObserver} into scan requests.
      */
-    private final Map<String, String> mCacheFolderPathLookup = new HashMap<String, String>();
+    private final ScanScheduler mScanScheduler = new ScanScheduler(new ScanScheduler.Scanner() {
+        @Override
+        public void requestScan(final String folderId, final String path) {
+            mExecutor.execute(new PostScanTask(mHttpClient, mRetryPolicy) {
+                @Override
+                protected void onPostExecute(Void aVoid) {
+                    mScanScheduler.onScanFinished(folderId, path);
+                }
+
+                @Override
+                protected void onCancelled() {
+                    mScanScheduler.onScanFinished(folderId, path);
+                }
+            }, RestExecutor.Priority.BACKGROUND, null, mUrl, mApiKey, folderId, path);
+        }
+    }, mSelfWriteTracker);
 
     public RestApi(Context context, String url, String apiKey, String guiUser, String guiPassword,
                    OnApiAvailableListener apiListener, OnConfigChangedListener configListener) {
@@ -190,22 +362,18 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
         mGuiUser = guiUser;
         mGuiPassword = guiPassword;
         mHttpsCertPath = mContext.getFilesDir() + "/" + SyncthingService.HTTPS_CERT_FILE;
+        mHttpClient = Https.createPooledHttpsClient(mHttpsCertPath, mConnectionStats);
         mOnApiAvailableListener = apiListener;
         mOnConfigChangedListener = configListener;
     }
 
-    /**
-     * Number of previous calls to {@link #tryIsAvailable()}.
-     */
-    private AtomicInteger mAvailableCount = new AtomicInteger(0);
-
-    /**
-     * Number of asynchronous calls performed in {@link #onWebGuiAvailable()}.
-     */
-    private static final int TOTAL_STARTUP_CALLS = 3;
-
     public interface OnApiAvailableListener {
         public void onApiAvailable();
+
+        /**
+         * Called if the API did not become available although the web GUI is online.
+         */
+        public void onApiFailed();
     }
 
     private final OnApiAvailableListener mOnApiAvailableListener;
@@ -213,60 +381,148 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
     private final OnConfigChangedListener mOnConfigChangedListener;
 
     /**
-     * Gets local device ID, syncthing version and config, then calls all OnApiAvailableListeners.
+     * Owners of the requests sent by {@link #mHandshake}, by fetch. Only used on the main thread.
      */
-    @Override
-    public void onWebGuiAvailable() {
-        mAvailableCount.set(0);
-        new GetTask(mHttpsCertPath) {
-            @Override
-            protected void onPostExecute(String s) {
-                if (s == null)
-                    return;
+    private final Map<String, Object> mStartupRequestOwners = new HashMap<>();
 
-                try {
-                    JSONObject json = new JSONObject(s);
-                    mVersion = json.getString("version");
-                    Log.i(TAG, "Syncthing version is " + mVersion);
-                    tryIsAvailable();
+    /**
+     * Requests local device ID, syncthing version and config, and calls
+     * {@link OnApiAvailableListener} once all of them were received.
+     */
+    private final StartupHandshake mHandshake = new StartupHandshake(
+            new StartupHandshake.Callback() {
+                @Override
+                public void sendRequest(String fetch, int requestId) {
+                    sendStartupRequest(fetch, requestId);
                 }
-                catch (JSONException e) {
-                    Log.w(TAG, "Failed to parse config", e);
+
+                @Override
+                public void cancelRequest(String fetch) {
+                    mExecutor.cancel(getStartupRequestOwner(fetch));
                 }
-            }
-        }.execute(mUrl, GetTask.URI_VERSION, mApiKey);
-        new GetTask(mHttpsCertPath) {
-            @Override
-            protected void onPostExecute(String config) {
-                try {
-                    mConfig = new JSONObject(config);
-                    tryIsAvailable();
-                } catch (JSONException e) {
-                    Log.w(TAG, "Failed to parse config", e);
+
+                @Override
+                public void onReady() {
+                    mOnApiAvailableListener.onApiAvailable();
                 }
-            }
-        }.execute(mUrl, GetTask.URI_CONFIG, mApiKey);
-        getSystemInfo(new OnReceiveSystemInfoListener() {
-            @Override
-            public void onReceiveSystemInfo(SystemInfo info) {
-                mLocalDeviceId = info.myID;
-                tryIsAvailable();
-            }
-        });
+
+                @Override
+                public void onFailed() {
+                    mOnApiAvailableListener.onApiFailed();
+                }
+            });
+
+    /**
+     * Gets local device ID, syncthing version and config, then calls all OnApiAvailableListeners.
+     */
+    @Override
+    public void onWebGuiAvailable() {
+        mRetryPolicy.setAvailable(true);
+        mHandshake.start(GetTask.URI_VERSION, GetTask.URI_CONFIG, GetTask.URI_SYSTEM);
     }
 
     /**
-     * Increments mAvailableCount by one, and, if it reached TOTAL_STARTUP_CALLS,
-     * calls {@link SyncthingService#onApiChange()}.
+     * Sends one of the requests of {@link #mHandshake}, and reports the result to it.
+     *
+     * The requests are sent without {@link #mRetryPolicy}, as the handshake already retries
+     * them.
      */
-    private void tryIsAvailable() {
-        int value = mAvailableCount.incrementAndGet();
-        if (BuildConfig.DEBUG && value > TOTAL_STARTUP_CALLS) {
-            throw new AssertionError("Too many startup calls");
+    private void sendStartupRequest(final String fetch, final int requestId) {
+        Object owner = getStartupRequestOwner(fetch);
+        switch (fetch) {
+            case GetTask.URI_VERSION:
+                mExecutor.execute(new GetTask(mHttpClient, mEndpointStats) {
+                    @Override
+                    protected void onPostExecute(String s) {
+                        try {
+                            if (s == null) {
+                                mHandshake.onFailure(fetch, requestId);
+                                return;
+                            }
+
+                            JSONObject json = new JSONObject(s);
+                            mVersion = json.getString("version");
+                            Log.i(TAG, "Syncthing version is " + mVersion);
+                            mHandshake.onSuccess(fetch, requestId);
+                        } catch (JSONException e) {
+                            Log.w(TAG, "Failed to parse version", e);
+                            mHandshake.onFailure(fetch, requestId);
+                        }
+                    }
+                }, RestExecutor.Priority.USER, owner, mUrl, fetch, mApiKey);
+                break;
+            case GetTask.URI_CONFIG:
+                mExecutor.execute(new StreamingGetTask<JSONObject>(
+                        mHttpClient, mEndpointStats) {
+                    @Override
+                    protected JSONObject readResponse(InputStream is) throws IOException {
+                        return JsonStreamParser.parseConfig(is);
+                    }
+
+                    @Override
+                    protected void onPostExecute(JSONObject config) {
+                        if (config == null) {
+                            mHandshake.onFailure(fetch, requestId);
+                            return;
+                        }
+
+                        mConfig = config;
+                        mConfigWriter.setCommitted(config.toString());
+                        invalidateConfigSnapshot();
+                        mHandshake.onSuccess(fetch, requestId);
+                    }
+                }, RestExecutor.Priority.USER, owner, mUrl, fetch, mApiKey);
+                break;
+            case GetTask.URI_SYSTEM:
+                mExecutor.execute(new GetTask(mHttpClient, mEndpointStats) {
+                    @Override
+                    protected void onPostExecute(String s) {
+                        SystemInfo info = parseSystemInfo(s);
+                        if (info == null) {
+                            mHandshake.onFailure(fetch, requestId);
+                            return;
+                        }
+
+                        mLocalDeviceId = info.myID;
+                        invalidateConfigSnapshot();
+                        mHandshake.onSuccess(fetch, requestId);
+                    }
+                }, RestExecutor.Priority.USER, owner, mUrl, fetch, mApiKey);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown startup request " + fetch);
         }
-        if (value == TOTAL_STARTUP_CALLS) {
-            mOnApiAvailableListener.onApiAvailable();
+    }
+
+    /**
+     * Returns the owner of requests for fetch sent by {@link #mHandshake}, so that they can be
+     * aborted one by one.
+     */
+    private Object getStartupRequestOwner(String fetch) {
+        Object owner = mStartupRequestOwners.get(fetch);
+        if (owner == null) {
+            owner = new Object();
+            mStartupRequestOwners.put(fetch, owner);
         }
+        return owner;
+    }
+
+    /**
+     * Returns the time in ms each request sent at startup took until it succeeded, by URI.
+     * Requests that did not succeed yet are missing.
+     */
+    public Map<String, Long> getStartupDurations() {
+        return mHandshake.getDurations();
+    }
+
+    /**
+     * Makes requests fail immediately while syncthing is not active. They are allowed again by
+     * {@link #onWebGuiAvailable()}, which is called once the web GUI responds.
+     */
+    @Override
+    public void onApiChange(SyncthingService.State currentState) {
+        if (currentState != SyncthingService.State.ACTIVE)
+            mRetryPolicy.setAvailable(false);
     }
 
     /**
@@ -276,6 +532,35 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
         return mVersion;
     }
 
+    /**
+     * Asks syncthing to exit, and returns true if it accepted the request.
+     *
+     * The request is sent on a separate thread, and aborted if it did not complete within
+     * timeout ms.
+     */
+    public boolean requestShutdown(long timeout) {
+        final HttpPost post = new HttpPost(mUrl + URI_SHUTDOWN);
+        post.addHeader(new BasicHeader(HEADER_API_KEY, mApiKey));
+        FutureTask<Boolean> request = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                HttpResponse response = mHttpClient.execute(post);
+                if (response.getEntity() != null)
+                    response.getEntity().consumeContent();
+                return response.getStatusLine().getStatusCode() == HttpStatus.SC_OK;
+            }
+        });
+        new Thread(request, "RestShutdown").start();
+        try {
+            return request.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            Log.w(TAG, "Failed to request shutdown", e);
+            // Unblocks the request thread, which HttpClient does not do on interrupt.
+            post.abort();
+            return false;
+        }
+    }
+
     /**
      * Stops syncthing and cancels notification. For use by {@link SyncthingService}.
      */
@@ -288,6 +573,67 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
                 mContext.getSystemService(Context.NOTIFICATION_SERVICE);
         nm.cancel(RestartActivity.NOTIFICATION_RESTART);
         mRestartPostponed = false;
+
+        // Pooled connections are useless once the syncthing binary is stopped.
+        if (mHttpClient != null)
+            mHttpClient.getConnectionManager().closeIdleConnections(0, TimeUnit.MILLISECONDS);
+        Log.d(TAG, "Connection stats: " + mConnectionStats);
+        Log.d(TAG, "Endpoint stats: " + mEndpointStats);
+        Log.d(TAG, "Scan stats: " + mScanScheduler.getStats());
+        Log.d(TAG, "Self write stats: " + mSelfWriteTracker.getStats());
+        Log.d(TAG, "Retry stats: " + mRetryPolicy);
+        Log.d(TAG, "Config write stats: " + mConfigWriter);
+        Log.d(TAG, "Coalescing stats: system " + mSystemInfoFlight + "; connections " +
+                mConnectionsFlight + "; model " + mModelFlight);
+        mScanScheduler.cancelAll();
+        mConfigWriter.cancel();
+        mHandshake.cancel();
+        mSystemInfoFlight.clear();
+        mConnectionsFlight.clear();
+        mModelFlight.clear();
+        mCompletionTracker.clear();
+    }
+
+    /**
+     * Cancels all pending requests that were started with the given listener. Their results
+     * are not delivered.
+     */
+    public void cancelRequests(Object listener) {
+        mExecutor.cancel(listener);
+        // Abort shared requests that no other caller is waiting for.
+        for (Object owner : mSystemInfoFlight.cancel(listener)) {
+            mExecutor.cancel(owner);
+        }
+        for (Object owner : mConnectionsFlight.cancel(listener)) {
+            mExecutor.cancel(owner);
+        }
+        for (Object owner : mModelFlight.cancel(listener)) {
+            mExecutor.cancel(owner);
+        }
+    }
+
+    /**
+     * Sets the time in ms that results of {@link #getSystemInfo}, {@link #getConnections} and
+     * {@link #getModel} are reused for identical calls. 0 only deduplicates concurrent calls.
+     */
+    public void setResponseFreshness(long freshness) {
+        mSystemInfoFlight.setFreshness(freshness);
+        mConnectionsFlight.setFreshness(freshness);
+        mModelFlight.setFreshness(freshness);
+    }
+
+    /**
+     * Returns request, connection and handshake counters of the shared HTTPS client.
+     */
+    public ConnectionStats getConnectionStats() {
+        return mConnectionStats;
+    }
+
+    /**
+     * Returns received bytes and decoding time per REST endpoint.
+     */
+    public EndpointStats getEndpointStats() {
+        return mEndpointStats;
     }
 
     /**
@@ -326,52 +672,200 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      * @param value   The new value to set, either String, Boolean or Integer.
      * @param isArray True if value is a space seperated String that should be converted to array.
      */
-    public <T> void setValue(String name, String key, T value, boolean isArray, Activity activity) {
+    public <T> void setValue(String name, String key, T value, boolean isArray) {
         try {
             mConfig.getJSONObject(name).put(key, (isArray)
                     ? new JSONArray(Arrays.asList(((String) value).split(",")))
                     : value);
-            requireRestart(activity);
+            onConfigEdited();
         } catch (JSONException e) {
             Log.w(TAG, "Failed to set value for " + key, e);
         }
     }
 
-    private List<String> jsonToList(JSONArray array) throws JSONException {
-        ArrayList<String> list = new ArrayList<>(array.length());
-        for (int i = 0; i < array.length(); i++) {
-            list.add(array.getString(i));
+    /**
+     * Shows a restart dialog unless the restart was postponed (see {@link #mRestartPostponed}).
+     *
+     * Only needed for changes that syncthing can not apply while running, eg its environment.
+     * Config changes are applied without restart if possible. Pending config changes are sent
+     * as well. Inside a config transaction, nothing happens until the transaction is committed.
+     */
+    public void requireRestart(Activity activity) {
+        invalidateConfigSnapshot();
+        if (mTransactionDepth > 0) {
+            mTransactionRestart = true;
+            return;
         }
-        return list;
+
+        mConfigWriter.schedule(null);
+        if (!mRestartPostponed)
+            activity.startActivity(new Intent(mContext, RestartActivity.class));
+        mOnConfigChangedListener.onConfigChanged();
     }
 
     /**
-     * Either shows a restart dialog, or only updates the config, depending on
-     * {@link #mRestartPostponed}.
+     * Sends the changed config to syncthing. A restart dialog is only shown if syncthing can not
+     * apply the change while running.
+     *
+     * Changes are collected for a short time and sent together. Inside a config transaction,
+     * nothing happens until the transaction is committed.
      */
-    public void requireRestart(Activity activity) {
-        if (mRestartPostponed) {
-            new PostConfigTask(mHttpsCertPath).execute(mUrl, mApiKey, mConfig.toString());
-        } else {
-            activity.startActivity(new Intent(mContext, RestartActivity.class));
+    private void onConfigEdited() {
+        invalidateConfigSnapshot();
+        if (mTransactionDepth > 0) {
+            mTransactionChanged = true;
+            return;
         }
+
+        sendConfig(null);
+    }
+
+    /**
+     * Schedules the config to be sent, and checks afterwards if syncthing needs a restart.
+     */
+    private void sendConfig(final ConfigWriter.OnConfigCommittedListener listener) {
+        mConfigWriter.schedule(new ConfigWriter.OnConfigCommittedListener() {
+            @Override
+            public void onConfigCommitted(boolean success) {
+                if (listener != null)
+                    listener.onConfigCommitted(success);
+                if (success)
+                    checkConfigInSync();
+            }
+        });
         mOnConfigChangedListener.onConfigChanged();
     }
 
+    /**
+     * Asks syncthing if it applied the config, and shows a restart dialog if it did not.
+     */
+    private void checkConfigInSync() {
+        if (mInSyncCheckRunning) {
+            mInSyncCheckAgain = true;
+            return;
+        }
+
+        mInSyncCheckRunning = true;
+        mExecutor.execute(new GetTask(mHttpClient, mEndpointStats, mRetryPolicy) {
+            @Override
+            protected void onPostExecute(String s) {
+                mInSyncCheckRunning = false;
+                // Another commit finished in the meantime, only its result matters.
+                if (mInSyncCheckAgain) {
+                    mInSyncCheckAgain = false;
+                    checkConfigInSync();
+                    return;
+                }
+
+                Boolean inSync = parseConfigInSync(s);
+                if (inSync == null) {
+                    // Do not force a restart on a failed request, the next commit checks again.
+                    Log.w(TAG, "Could not check if config change was applied");
+                } else if (inSync) {
+                    Log.i(TAG, "Config change applied without restart");
+                } else if (!mRestartPostponed) {
+                    mContext.startActivity(new Intent(mContext, RestartActivity.class)
+                            .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK));
+                }
+            }
+
+            @Override
+            protected void onCancelled() {
+                mInSyncCheckRunning = false;
+                mInSyncCheckAgain = false;
+            }
+        }, RestExecutor.Priority.USER, null, mUrl, GetTask.URI_CONFIG_INSYNC, mApiKey);
+    }
+
+    /**
+     * Returns the value of configInSync in the response of {@link GetTask#URI_CONFIG_INSYNC},
+     * or null if the request failed or the response could not be parsed.
+     */
+    public static Boolean parseConfigInSync(String response) {
+        if (response == null)
+            return null;
+
+        try {
+            return new JSONObject(response).getBoolean("configInSync");
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to parse config sync state", e);
+            return null;
+        }
+    }
+
+    /**
+     * Starts a config transaction. Changes made until the matching
+     * {@link #commitConfigTransaction} are sent together, and show at most one restart dialog.
+     *
+     * Transactions may be nested, only the outermost commit has an effect. Must be called on the
+     * main thread.
+     */
+    public void beginConfigTransaction() {
+        mTransactionDepth++;
+    }
+
+    /**
+     * Ends a transaction started with {@link #beginConfigTransaction()}.
+     *
+     * @param listener Notified once the changes of the transaction were sent, or immediately
+     *                 with success true if nothing was changed. May be null.
+     */
+    public void commitConfigTransaction(Activity activity,
+                                        ConfigWriter.OnConfigCommittedListener listener) {
+        if (mTransactionDepth == 0)
+            throw new IllegalStateException("No config transaction is open");
+
+        if (listener != null)
+            mTransactionListeners.add(listener);
+        if (--mTransactionDepth > 0)
+            return;
+
+        final List<ConfigWriter.OnConfigCommittedListener> listeners =
+                new ArrayList<>(mTransactionListeners);
+        mTransactionListeners.clear();
+        boolean restart = mTransactionRestart;
+        boolean changed = mTransactionChanged;
+        mTransactionRestart = false;
+        mTransactionChanged = false;
+        if (!restart && !changed) {
+            for (ConfigWriter.OnConfigCommittedListener l : listeners) {
+                l.onConfigCommitted(true);
+            }
+            return;
+        }
+
+        ConfigWriter.OnConfigCommittedListener notifyAll =
+                new ConfigWriter.OnConfigCommittedListener() {
+                    @Override
+                    public void onConfigCommitted(boolean success) {
+                        for (ConfigWriter.OnConfigCommittedListener l : listeners) {
+                            l.onConfigCommitted(success);
+                        }
+                    }
+                };
+        if (restart) {
+            mConfigWriter.schedule(notifyAll);
+            if (!mRestartPostponed)
+                activity.startActivity(new Intent(mContext, RestartActivity.class));
+            mOnConfigChangedListener.onConfigChanged();
+        } else {
+            sendConfig(notifyAll);
+        }
+    }
+
     /**
      * Sends the current config to Syncthing and restarts it.
      *
      * This executes a restart immediately, and does not show a dialog.
      */
     public void updateConfig() {
-        new PostConfigTask(mHttpsCertPath) {
+        mConfigWriter.flush(new ConfigWriter.OnConfigCommittedListener() {
             @Override
-            protected void onPostExecute(Boolean aBoolean) {
+            public void onConfigCommitted(boolean success) {
                 mContext.startService(new Intent(mContext, SyncthingService.class)
                         .setAction(SyncthingService.ACTION_RESTART));
             }
-        }.execute(mUrl, mApiKey, mConfig.toString());
-
+        });
     }
 
     /**
@@ -380,29 +874,7 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      * @param includeLocal True if the local device should be included in the result.
      */
     public List<Device> getDevices(boolean includeLocal) {
-        if (mConfig == null)
-            return new ArrayList<>();
-
-        try {
-            JSONArray devices = mConfig.getJSONArray("devices");
-            List<Device> ret = new ArrayList<>(devices.length());
-            for (int i = 0; i < devices.length(); i++) {
-                JSONObject json = devices.getJSONObject(i);
-                Device n = new Device();
-                n.addresses = jsonToList(json.optJSONArray("addresses"));
-                n.name = json.getString("name");
-                n.deviceID = json.getString("deviceID");
-                n.compression = json.getString("compression");
-                n.introducer = json.getBoolean("introducer");
-                if (includeLocal || !mLocalDeviceId.equals(n.deviceID)) {
-                    ret.add(n);
-                }
-            }
-            return ret;
-        } catch (JSONException e) {
-            Log.w(TAG, "Failed to read devices", e);
-            return new ArrayList<>();
-        }
+        return getConfigSnapshot().getDevices(includeLocal);
     }
 
     /**
@@ -418,81 +890,65 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      * @param listener Callback invoked when the result is received.
      */
     public void getSystemInfo(final OnReceiveSystemInfoListener listener) {
-        new GetTask(mHttpsCertPath) {
+        boolean send = mSystemInfoFlight.join(GetTask.URI_SYSTEM, listener,
+                new SingleFlight.Callback<SystemInfo>() {
+                    @Override
+                    public void onResult(SystemInfo info) {
+                        listener.onReceiveSystemInfo(info);
+                    }
+                });
+        if (!send)
+            return;
+
+        final Object owner = mSystemInfoFlight.getRequestOwner(GetTask.URI_SYSTEM);
+        mExecutor.execute(new GetTask(mHttpClient, mEndpointStats, mRetryPolicy) {
             @Override
             protected void onPostExecute(String s) {
-                if (s == null)
-                    return;
+                mSystemInfoFlight.complete(GetTask.URI_SYSTEM, owner, parseSystemInfo(s));
+            }
 
-                try {
-                    JSONObject system = new JSONObject(s);
-                    SystemInfo si = new SystemInfo();
-                    si.alloc = system.getLong("alloc");
-                    si.cpuPercent = system.getDouble("cpuPercent");
-                    if (system.has("discoveryEnabled")) {
-                        si.extAnnounceTotal = system.getInt("discoveryMethods");
-                        si.extAnnounceConnected =
-                            si.extAnnounceTotal - system.getJSONObject("discoveryErrors").length();
-                    } else {
-                        si.extAnnounceTotal = 0;
-                        si.extAnnounceConnected = 0;
-                    }
-                    si.goroutines = system.getInt("goroutines");
-                    si.myID = system.getString("myID");
-                    si.sys = system.getLong("sys");
-                    listener.onReceiveSystemInfo(si);
-                } catch (JSONException e) {
-                    Log.w(TAG, "Failed to read system info", e);
-                }
+            @Override
+            protected void onCancelled() {
+                mSystemInfoFlight.complete(GetTask.URI_SYSTEM, owner, null);
             }
-        }.execute(mUrl, GetTask.URI_SYSTEM, mApiKey);
+        }, RestExecutor.Priority.UI, owner, mUrl, GetTask.URI_SYSTEM, mApiKey);
     }
 
     /**
-     * Returns a list of all existing folders.
+     * Parses the response of {@link GetTask#URI_SYSTEM}, returns null if s is null or invalid.
      */
-    public List<Folder> getFolders() {
-        if (mConfig == null)
-            return new ArrayList<>();
+    private SystemInfo parseSystemInfo(String s) {
+        if (s == null)
+            return null;
 
-        List<Folder> ret;
         try {
-            JSONArray folders = mConfig.getJSONArray("folders");
-            ret = new ArrayList<>(folders.length());
-            for (int i = 0; i < folders.length(); i++) {
-                JSONObject json = folders.getJSONObject(i);
-                Folder r = new Folder();
-                r.path = json.getString("path");
-                r.id = json.getString("id");
-                // TODO: Field seems to be missing sometimes.
-                // https://github.com/syncthing/syncthing-android/issues/291
-                r.invalid = json.optString("invalid");
-                r.deviceIds = new ArrayList<>();
-                JSONArray devices = json.getJSONArray("devices");
-                for (int j = 0; j < devices.length(); j++) {
-                    JSONObject n = devices.getJSONObject(j);
-                    r.deviceIds.add(n.getString("deviceID"));
-                }
-
-                r.readOnly = json.getBoolean("readOnly");
-                r.rescanIntervalS = json.getInt("rescanIntervalS");
-                JSONObject versioning = json.getJSONObject("versioning");
-                if (versioning.getString("type").equals("simple")) {
-                    SimpleVersioning sv = new SimpleVersioning();
-                    JSONObject params = versioning.getJSONObject("params");
-                    sv.setParams(params.getInt("keep"));
-                    r.versioning = sv;
-                } else {
-                    r.versioning = new Versioning();
-                }
-
-                ret.add(r);
+            JSONObject system = new JSONObject(s);
+            SystemInfo si = new SystemInfo();
+            si.alloc = system.getLong("alloc");
+            si.cpuPercent = system.getDouble("cpuPercent");
+            if (system.has("discoveryEnabled")) {
+                si.extAnnounceTotal = system.getInt("discoveryMethods");
+                si.extAnnounceConnected =
+                    si.extAnnounceTotal - system.getJSONObject("discoveryErrors").length();
+            } else {
+                si.extAnnounceTotal = 0;
+                si.extAnnounceConnected = 0;
             }
+            si.goroutines = system.getInt("goroutines");
+            si.myID = system.getString("myID");
+            si.sys = system.getLong("sys");
+            return si;
         } catch (JSONException e) {
-            Log.w(TAG, "Failed to read devices", e);
-            return new ArrayList<>();
+            Log.w(TAG, "Failed to read system info", e);
+            return null;
         }
-        return ret;
+    }
+
+    /**
+     * Returns a list of all existing folders.
+     */
+    public List<Folder> getFolders() {
+        return getConfigSnapshot().getFolders();
     }
 
     /**
@@ -543,95 +999,93 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      * Use the key {@link #TOTAL_STATS} to get connection info for the local device.
      */
     public void getConnections(final OnReceiveConnectionsListener listener) {
-        new GetTask(mHttpsCertPath) {
+        boolean send = mConnectionsFlight.join(GetTask.URI_CONNECTIONS, listener,
+                new SingleFlight.Callback<Map<String, Connection>>() {
+                    @Override
+                    public void onResult(Map<String, Connection> connections) {
+                        listener.onReceiveConnections(connections);
+                    }
+                });
+        if (!send)
+            return;
+
+        final Object owner = mConnectionsFlight.getRequestOwner(GetTask.URI_CONNECTIONS);
+        mExecutor.execute(new GetTask(mHttpClient, mEndpointStats, mRetryPolicy) {
             @Override
             protected void onPostExecute(String s) {
-                if (s == null)
-                    return;
-
-                Long now = System.currentTimeMillis();
-                Long timeElapsed = (now - mPreviousConnectionTime) / 1000;
-                if (timeElapsed < 1) {
-                    listener.onReceiveConnections(mPreviousConnections);
-                    return;
-                }
-
-                try {
-                    JSONObject json = new JSONObject(s);
-                    Map<String, JSONObject> jsonConnections = new HashMap<>();
-                    jsonConnections.put(TOTAL_STATS, json.getJSONObject(TOTAL_STATS));
-                    JSONArray extConnections = json.getJSONObject("connections").names();
-                    if (extConnections != null) {
-                        for (int i = 0; i < extConnections.length(); i++) {
-                            String deviceId = extConnections.get(i).toString();
-                            jsonConnections.put(deviceId, json.getJSONObject("connections").getJSONObject(deviceId));
-                        }
-                    }
-                    Map<String, Connection> connections = new HashMap<>();
-                    for (Map.Entry<String, JSONObject> jsonConnection : jsonConnections.entrySet()) {
-                        String deviceId = jsonConnection.getKey();
-                        Connection c = new Connection();
-                        JSONObject conn = jsonConnection.getValue();
-                        c.address = deviceId;
-                        c.at = conn.getString("at");
-                        c.inBytesTotal = conn.getLong("inBytesTotal");
-                        c.outBytesTotal = conn.getLong("outBytesTotal");
-                        c.address = conn.getString("address");
-                        c.clientVersion = conn.getString("clientVersion");
-                        c.completion = getDeviceCompletion(deviceId);
-                        c.connected = conn.getBoolean("connected");
-
-                        Connection prev = (mPreviousConnections.containsKey(deviceId))
-                                ? mPreviousConnections.get(deviceId)
-                                : new Connection();
-                        mPreviousConnectionTime = now;
-                        c.inBits = Math.max(0, 8 *
-                                (conn.getLong("inBytesTotal") - prev.inBytesTotal) / timeElapsed);
-                        c.outBits = Math.max(0, 8 *
-                                (conn.getLong("outBytesTotal") - prev.outBytesTotal) / timeElapsed);
-
-                        connections.put(deviceId, c);
+                mConnectionsFlight.complete(GetTask.URI_CONNECTIONS, owner,
+                        (s != null) ? parseConnections(s) : null);
+            }
 
-                    }
-                    mPreviousConnections = connections;
-                    listener.onReceiveConnections(mPreviousConnections);
-                } catch (JSONException e) {
-                    Log.w(TAG, "Failed to parse connections", e);
-                }
+            @Override
+            protected void onCancelled() {
+                mConnectionsFlight.complete(GetTask.URI_CONNECTIONS, owner, null);
             }
-        }.execute(mUrl, GetTask.URI_CONNECTIONS, mApiKey);
+        }, RestExecutor.Priority.UI, owner, mUrl, GetTask.URI_CONNECTIONS, mApiKey);
     }
 
     /**
-     * Calculates completion percentage for the given device using {@link #mCachedModelInfo}.
+     * Parses the result of {@link GetTask#URI_CONNECTIONS} and calculates transfer rates
+     * since the previous call.
+     *
+     * @return The connections, or null on failure.
      */
-    private int getDeviceCompletion(String deviceId) {
-        int folderCount = 0;
-        float percentageSum = 0;
-        for (Map.Entry<String, Model> modelInfo : mCachedModelInfo.entrySet()) {
-            boolean isShared = false;
-            outerloop:
-            for (Folder r : getFolders()) {
-                for (String n : r.deviceIds) {
-                    if (n.equals(deviceId)) {
-                        isShared = true;
-                        break outerloop;
-                    }
+    private Map<String, Connection> parseConnections(String s) {
+        Long now = System.currentTimeMillis();
+        Long timeElapsed = (now - mPreviousConnectionTime) / 1000;
+        if (timeElapsed < 1)
+            return mPreviousConnections;
 
+        try {
+            JSONObject json = new JSONObject(s);
+            Map<String, JSONObject> jsonConnections = new HashMap<>();
+            jsonConnections.put(TOTAL_STATS, json.getJSONObject(TOTAL_STATS));
+            JSONArray extConnections = json.getJSONObject("connections").names();
+            if (extConnections != null) {
+                for (int i = 0; i < extConnections.length(); i++) {
+                    String deviceId = extConnections.get(i).toString();
+                    jsonConnections.put(deviceId, json.getJSONObject("connections").getJSONObject(deviceId));
                 }
             }
-            if (isShared) {
-                long global = modelInfo.getValue().globalBytes;
-                long local = modelInfo.getValue().inSyncBytes;
-                percentageSum += (global != 0)
-                        ? (local * 100f) / global
-                        : 100f;
-                folderCount++;
+            Map<String, Connection> connections = new HashMap<>();
+            for (Map.Entry<String, JSONObject> jsonConnection : jsonConnections.entrySet()) {
+                String deviceId = jsonConnection.getKey();
+                Connection c = new Connection();
+                JSONObject conn = jsonConnection.getValue();
+                c.address = deviceId;
+                c.at = conn.getString("at");
+                c.inBytesTotal = conn.getLong("inBytesTotal");
+                c.outBytesTotal = conn.getLong("outBytesTotal");
+                c.address = conn.getString("address");
+                c.clientVersion = conn.getString("clientVersion");
+                c.completion = getDeviceCompletion(deviceId);
+                c.connected = conn.getBoolean("connected");
+
+                Connection prev = (mPreviousConnections.containsKey(deviceId))
+                        ? mPreviousConnections.get(deviceId)
+                        : new Connection();
+                mPreviousConnectionTime = now;
+                c.inBits = Math.max(0, 8 *
+                        (conn.getLong("inBytesTotal") - prev.inBytesTotal) / timeElapsed);
+                c.outBits = Math.max(0, 8 *
+                        (conn.getLong("outBytesTotal") - prev.outBytesTotal) / timeElapsed);
+
+                connections.put(deviceId, c);
+
             }
+            mPreviousConnections = connections;
+            return connections;
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to parse connections", e);
+            return null;
         }
-        return (folderCount != 0)
-                ? Math.round(percentageSum / folderCount)
-                : 100;
+    }
+
+    /**
+     * Returns the completion percentage of the given device, see {@link CompletionTracker}.
+     */
+    private int getDeviceCompletion(String deviceId) {
+        return mCompletionTracker.getCompletion(deviceId);
     }
 
     /**
@@ -641,6 +1095,58 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
         public void onReceiveModel(String folderId, Model model);
     }
 
+    /**
+     * Listener for {@link #getCompletion}.
+     */
+    public interface OnReceiveCompletionListener {
+        /**
+         * @param completion Completion in percent, or null if the request failed.
+         */
+        public void onReceiveCompletion(String deviceId, String folderId, Double completion);
+    }
+
+    /**
+     * Requests how far the given device has synced the given folder, in percent.
+     */
+    public void getCompletion(final String deviceId, final String folderId,
+                              final OnReceiveCompletionListener listener) {
+        mExecutor.execute(new GetTask(mHttpClient, mEndpointStats, mRetryPolicy) {
+            @Override
+            protected void onPostExecute(String s) {
+                Double completion = null;
+                try {
+                    if (s != null)
+                        completion = new JSONObject(s).getDouble("completion");
+                } catch (JSONException e) {
+                    Log.w(TAG, "Failed to parse completion", e);
+                }
+                listener.onReceiveCompletion(deviceId, folderId, completion);
+            }
+
+            @Override
+            protected void onCancelled() {
+                listener.onReceiveCompletion(deviceId, folderId, null);
+            }
+        }, RestExecutor.Priority.BACKGROUND, listener, mUrl, GetTask.URI_COMPLETION, mApiKey,
+                "device", deviceId, "folder", folderId);
+    }
+
+    /**
+     * Sets the listener that is notified when device completion changes outside of
+     * {@link #getConnections}, or null.
+     */
+    public void setOnCompletionChangedListener(
+            CompletionTracker.OnCompletionChangedListener listener) {
+        mOnCompletionChangedListener = listener;
+    }
+
+    /**
+     * Returns the cache of remote device completion.
+     */
+    public CompletionTracker getCompletionTracker() {
+        return mCompletionTracker;
+    }
+
     /**
      * Listener for {@link #getEvents}.
      */
@@ -667,56 +1173,42 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      * Returns status information about the folder with the given id.
      */
     public void getModel(final String folderId, final OnReceiveModelListener listener) {
-        new GetTask(mHttpsCertPath) {
+        boolean send = mModelFlight.join(folderId, listener, new SingleFlight.Callback<Model>() {
             @Override
-            protected void onPostExecute(String s) {
-                if (s == null)
-                    return;
+            public void onResult(Model model) {
+                listener.onReceiveModel(folderId, model);
+            }
+        });
+        if (!send)
+            return;
 
-                try {
-                    JSONObject json = new JSONObject(s);
-                    Model m = new Model();
-                    m.globalBytes = json.getLong("globalBytes");
-                    m.globalDeleted = json.getLong("globalDeleted");
-                    m.globalFiles = json.getLong("globalFiles");
-                    m.localBytes = json.getLong("localBytes");
-                    m.localDeleted = json.getLong("localDeleted");
-                    m.localFiles = json.getLong("localFiles");
-                    m.inSyncBytes = json.getLong("inSyncBytes");
-                    m.inSyncFiles = json.getLong("inSyncFiles");
-                    m.needBytes = json.getLong("needBytes");
-                    m.needFiles = json.getLong("needFiles");
-                    m.state = json.getString("state");
-                    m.invalid = json.optString("invalid");
-                    mCachedModelInfo.put(folderId, m);
-                    listener.onReceiveModel(folderId, m);
-                } catch (JSONException e) {
-                    Log.w(TAG, "Failed to read folder info", e);
-                }
+        final Object owner = mModelFlight.getRequestOwner(folderId);
+        mExecutor.execute(new StreamingGetTask<Model>(
+                mHttpClient, mEndpointStats, mRetryPolicy) {
+            @Override
+            protected Model readResponse(InputStream is) throws IOException {
+                return JsonStreamParser.parseModel(is);
             }
-        }.execute(mUrl, GetTask.URI_MODEL, mApiKey, "folder", folderId);
-    }
 
-    /**
-     * Refreshes the lookup table to convert folder names to paths for events.
-     */
-    private String getPathForFolder(String folderName) {
-        synchronized(mCacheFolderPathLookup) {
-            if (!mCacheFolderPathLookup.containsKey(folderName)) {
-                mCacheFolderPathLookup.clear();
-                for (Folder folder : getFolders()) {
-                    mCacheFolderPathLookup.put(folder.id, folder.path);
-                }
+            @Override
+            protected void onPostExecute(Model m) {
+                mModelFlight.complete(folderId, owner, m);
             }
 
-            return mCacheFolderPathLookup.get(folderName);
-        }
+            @Override
+            protected void onCancelled() {
+                mModelFlight.complete(folderId, owner, null);
+            }
+        }, RestExecutor.Priority.UI, owner,
+                mUrl, GetTask.URI_MODEL, mApiKey, "folder", folderId);
     }
 
-    private void clearFolderCache() {
-        synchronized(mCacheFolderPathLookup) {
-            mCacheFolderPathLookup.clear();
-        }
+    /**
+     * Returns the path of the folder with the given id, or null if it does not exist.
+     */
+    private String getPathForFolder(String folderId) {
+        Folder folder = getConfigSnapshot().getFolder(folderId);
+        return (folder != null) ? folder.path : null;
     }
 
     /**
@@ -725,44 +1217,100 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      * The OnReceiveEventListeners onEvent method is called for each event.
      */
     public final void getEvents(final long sinceId, final long limit, final OnReceiveEventListener listener) {
-        new GetTask(mHttpsCertPath) {
-            @Override
-            protected void onPostExecute(String s) {
-                if (s == null)
-                    return;
-
-                try {
-                    JSONArray jsonEvents = new JSONArray(s);
-                    long lastId = 0;
+        getEvents(sinceId, limit, null, listener);
+    }
 
-                    for (int i = 0; i < jsonEvents.length(); i++) {
-                        JSONObject json = jsonEvents.getJSONObject(i);
-                        String type     = json.getString("type");
-                        long id         = json.getLong("id");
+    /**
+     * Retrieves the events of the given types that have accumulated since the given event id.
+     *
+     * The OnReceiveEventListeners onEvent method is called for each event.
+     *
+     * @param types Event types to receive, or null for all events.
+     */
+    public final void getEvents(final long sinceId, final long limit, final Set<String> types,
+                                final OnReceiveEventListener listener) {
+        mExecutor.execute(new StreamingGetTask<JsonStreamParser.EventBatch>(
+                mHttpClient, mEndpointStats, mRetryPolicy) {
+            @Override
+            protected JsonStreamParser.EventBatch readResponse(InputStream is)
+                    throws IOException {
+                return JsonStreamParser.parseEvents(is, types);
+            }
 
-                        if (lastId < id)
-                            lastId = id;
+            @Override
+            protected void onPostExecute(JsonStreamParser.EventBatch events) {
+                if (events == null)
+                    return;
 
-                        JSONObject data = json.optJSONObject("data");
+                dispatchEvents(events, listener);
+            }
+        }, RestExecutor.Priority.BACKGROUND, listener,
+                getEventParams(sinceId, limit, types, null));
+    }
 
-                        // Add folder path to data.
-                        if (data != null && data.has("folder")) {
-                            String folder = data.getString("folder");
-                            String folderPath = getPathForFolder(folder);
-                            data.put("folderpath", folderPath);
-                        }
+    /**
+     * Waits for events after the given event id on the calling thread. Must not be called on the
+     * main thread.
+     *
+     * @param types Event types to receive, or null for all events.
+     * @param timeoutS Maximum time in seconds that syncthing waits for a new event.
+     * @return The received events (empty if the timeout expired), or null on failure.
+     */
+    public JsonStreamParser.EventBatch pollEvents(long sinceId, long limit,
+                                                  final Set<String> types, long timeoutS) {
+        return new StreamingGetTask<JsonStreamParser.EventBatch>(mHttpClient, mEndpointStats) {
+            @Override
+            protected JsonStreamParser.EventBatch readResponse(InputStream is)
+                    throws IOException {
+                return JsonStreamParser.parseEvents(is, types);
+            }
+        }.executeBlocking(getEventParams(sinceId, limit, types, timeoutS));
+    }
 
-                        listener.onEvent(id, type, data);
-                    }
+    /**
+     * Returns the parameters for a request to {@link GetTask#URI_EVENTS}.
+     *
+     * The types are sent to syncthing as event filter. Versions that don't support it ignore the
+     * parameter, so the events are filtered again in {@link JsonStreamParser#parseEvents}.
+     */
+    private String[] getEventParams(long sinceId, long limit, Set<String> types, Long timeoutS) {
+        List<String> params = new ArrayList<>(Arrays.asList(mUrl, GetTask.URI_EVENTS, mApiKey,
+                "since", String.valueOf(sinceId), "limit", String.valueOf(limit)));
+        if (types != null) {
+            params.add("events");
+            params.add(TextUtils.join(",", types));
+        }
+        if (timeoutS != null) {
+            params.add("timeout");
+            params.add(String.valueOf(timeoutS));
+        }
+        return params.toArray(new String[params.size()]);
+    }
 
-                    listener.onDone(lastId);
-                }
-                catch (JSONException e) {
-                    Log.w(TAG, "Failed to read events", e);
+    /**
+     * Adds folder paths to the given events and passes them to listener. Must be called on the
+     * main thread.
+     */
+    void dispatchEvents(JsonStreamParser.EventBatch events, OnReceiveEventListener listener) {
+        try {
+            for (JsonStreamParser.Event event : events.events) {
+                JSONObject data = event.data;
+
+                // Add folder path to data.
+                if (data != null && data.has("folder")) {
+                    String folder = data.getString("folder");
+                    String folderPath = getPathForFolder(folder);
+                    data.put("folderpath", folderPath);
                 }
+
+                listener.onEvent(event.id, event.type, data);
             }
-        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, mUrl, GetTask.URI_EVENTS, mApiKey,
-                "since", String.valueOf(sinceId), "limit", String.valueOf(limit));
+
+            listener.onDone(events.lastId);
+        }
+        catch (JSONException e) {
+            Log.w(TAG, "Failed to read events", e);
+        }
     }
 
     /**
@@ -771,8 +1319,7 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      * @param device Settings of the device to edit. To create a device, pass a non-existant device ID.
      * @param listener for the normalized device ID (may be null).
      */
-    public void editDevice(final Device device, final Activity activity,
-            final OnDeviceIdNormalizedListener listener) {
+    public void editDevice(final Device device, final OnDeviceIdNormalizedListener listener) {
         normalizeDeviceId(device.deviceID,
                 new RestApi.OnDeviceIdNormalizedListener() {
                     @Override
@@ -782,47 +1329,51 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
                             return;
 
                         device.deviceID = normalizedId;
-                        // If the device already exists, just update it.
-                        boolean create = true;
-                        for (RestApi.Device n : getDevices(true)) {
-                            if (n.deviceID.equals(device.deviceID)) {
-                                create = false;
-                            }
-                        }
-
-                        try {
-                            JSONArray devices = mConfig.getJSONArray("devices");
-                            JSONObject n = null;
-                            if (create) {
-                                n = new JSONObject();
-                                devices.put(n);
-                            } else {
-                                for (int i = 0; i < devices.length(); i++) {
-                                    JSONObject json = devices.getJSONObject(i);
-                                    if (device.deviceID.equals(json.getString("deviceID"))) {
-                                        n = devices.getJSONObject(i);
-                                        break;
-                                    }
-                                }
-                            }
-                            n.put("deviceID", device.deviceID);
-                            n.put("name", device.name);
-                            n.put("addresses", new JSONArray(device.addresses));
-                            n.put("compression", device.compression);
-                            n.put("introducer", device.introducer);
-                            requireRestart(activity);
-                        } catch (JSONException e) {
-                            Log.w(TAG, "Failed to read devices", e);
-                        }
+                        editNormalizedDevice(device);
                     }
                 }
         );
     }
 
+    /**
+     * Like {@link #editDevice}, but for a device ID that is already normalized, eg the local
+     * device. The change is made before returning, so it is part of the current config
+     * transaction.
+     */
+    public void editNormalizedDevice(Device device) {
+        // If the device already exists, just update it.
+        boolean create = getConfigSnapshot().getDevice(device.deviceID) == null;
+
+        try {
+            JSONArray devices = mConfig.getJSONArray("devices");
+            JSONObject n = null;
+            if (create) {
+                n = new JSONObject();
+                devices.put(n);
+            } else {
+                for (int i = 0; i < devices.length(); i++) {
+                    JSONObject json = devices.getJSONObject(i);
+                    if (device.deviceID.equals(json.getString("deviceID"))) {
+                        n = devices.getJSONObject(i);
+                        break;
+                    }
+                }
+            }
+            n.put("deviceID", device.deviceID);
+            n.put("name", device.name);
+            n.put("addresses", new JSONArray(device.addresses));
+            n.put("compression", device.compression);
+            n.put("introducer", device.introducer);
+            onConfigEdited();
+        } catch (JSONException e) {
+            Log.w(TAG, "Failed to read devices", e);
+        }
+    }
+
     /**
      * Deletes the given device from syncthing.
      */
-    public boolean deleteDevice(Device device, Activity activity) {
+    public boolean deleteDevice(Device device) {
         try {
             JSONArray devices = mConfig.getJSONArray("devices");
 
@@ -834,7 +1385,7 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
                     break;
                 }
             }
-            requireRestart(activity);
+            onConfigEdited();
         } catch (JSONException e) {
             Log.w(TAG, "Failed to edit folder", e);
             return false;
@@ -845,7 +1396,7 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
     /**
      * Updates or creates the given device.
      */
-    public boolean editFolder(Folder folder, boolean create, Activity activity) {
+    public boolean editFolder(Folder folder, boolean create) {
         try {
             JSONArray folders = mConfig.getJSONArray("folders");
             JSONObject r = null;
@@ -881,20 +1432,18 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
             }
             r.put("rescanIntervalS", folder.rescanIntervalS);
             r.put("versioning", versioning);
-            requireRestart(activity);
+            onConfigEdited();
         } catch (JSONException e) {
             Log.w(TAG, "Failed to edit folder " + folder.id + " at " + folder.path, e);
             return false;
         }
-
-        clearFolderCache();
         return true;
     }
 
     /**
      * Deletes the given folder from syncthing.
      */
-    public boolean deleteFolder(Folder folder, Activity activity) {
+    public boolean deleteFolder(Folder folder) {
         try {
             JSONArray folders = mConfig.getJSONArray("folders");
 
@@ -906,13 +1455,11 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
                     break;
                 }
             }
-            requireRestart(activity);
+            onConfigEdited();
         } catch (JSONException e) {
             Log.w(TAG, "Failed to edit folder", e);
             return false;
         }
-
-        clearFolderCache();
         return true;
     }
 
@@ -946,7 +1493,7 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      * Normalizes a given device ID.
      */
     public void normalizeDeviceId(final String id, final OnDeviceIdNormalizedListener listener) {
-        new GetTask(mHttpsCertPath) {
+        mExecutor.execute(new GetTask(mHttpClient, mEndpointStats, mRetryPolicy) {
             @Override
             protected void onPostExecute(String s) {
                 super.onPostExecute(s);
@@ -964,7 +1511,7 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
                 }
                 listener.onDeviceIdNormalized(normalized, error);
             }
-        }.execute(mUrl, GetTask.URI_DEVICEID, mApiKey, "id", id);
+        }, RestExecutor.Priority.USER, listener, mUrl, GetTask.URI_DEVICEID, mApiKey, "id", id);
     }
 
     /**
@@ -998,19 +1545,49 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      */
     @Override
     public void onFolderFileChange(String folderId, String relativePath) {
-        new PostScanTask(mHttpsCertPath).execute(mUrl, mApiKey, folderId, relativePath);
+        mScanScheduler.onFileChange(folderId, relativePath);
+    }
+
+    /**
+     * Returns the tracker for files that syncthing is writing itself.
+     */
+    public SelfWriteTracker getSelfWriteTracker() {
+        return mSelfWriteTracker;
+    }
+
+    /**
+     * Returns the scheduler that turns file changes into scan requests.
+     */
+    public ScanScheduler getScanScheduler() {
+        return mScanScheduler;
     }
 
     /**
      * Returns the object representing the local device.
      */
     public Device getLocalDevice() {
-        for (Device d : getDevices(true)) {
-            if (d.deviceID.equals(mLocalDeviceId)) {
-                return d;
-            }
-        }
-        return new Device();
+        Device d = getConfigSnapshot().getDevice(mLocalDeviceId);
+        return (d != null) ? d : new Device();
+    }
+
+    /**
+     * Returns the current config as an indexed snapshot. The snapshot is only rebuilt after the
+     * config was changed.
+     */
+    public synchronized ConfigSnapshot getConfigSnapshot() {
+        if (mConfig == null)
+            return ConfigSnapshot.EMPTY;
+
+        if (mConfigSnapshot == null)
+            mConfigSnapshot = new ConfigSnapshot(mConfig, mLocalDeviceId);
+        return mConfigSnapshot;
+    }
+
+    /**
+     * Must be called after every change to {@link #mConfig}.
+     */
+    private synchronized void invalidateConfigSnapshot() {
+        mConfigSnapshot = null;
     }
 
     public String getApiKey() {
@@ -1052,7 +1629,7 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
     /**
      * Sets new value for usage reporting preference.
      */
-    public void setUsageReportAccepted(UsageReportSetting value, Activity activity) {
+    public void setUsageReportAccepted(UsageReportSetting value) {
         int v = 0;
         switch (value) {
             case ACCEPTED:  v =  1; break;
@@ -1063,7 +1640,7 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
         } catch (JSONException e) {
             Log.w(TAG, "Failed to set usage report value", e);
         }
-        requireRestart(activity);
+        onConfigEdited();
     }
 
     /**
@@ -1077,7 +1654,7 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
      * Returns prettyfied usage report.
      */
     public void getUsageReport(final OnReceiveUsageReportListener listener) {
-        new GetTask(mHttpsCertPath) {
+        mExecutor.execute(new GetTask(mHttpClient, mEndpointStats, mRetryPolicy) {
             @Override
             protected void onPostExecute(String s) {
                 try {
@@ -1089,7 +1666,7 @@ public class RestApi implements SyncthingService.OnWebGuiAvailableListener,
                     throw new RuntimeException("Failed to prettify usage report", e);
                 }
             }
-        }.execute(mUrl, GetTask.URI_REPORT, mApiKey);
+        }, RestExecutor.Priority.USER, listener, mUrl, GetTask.URI_REPORT, mApiKey);
     }
 
     /**
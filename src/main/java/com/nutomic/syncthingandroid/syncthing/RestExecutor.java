@@ -0,0 +1,252 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.os.AsyncTask;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs REST API tasks in priority lanes, so that slow or background requests can not delay
+ * requests the user is waiting for.
+ *
+ * {@link Priority#USER} and {@link Priority#UI} tasks share a pool in which user tasks are always
+ * started first. {@link Priority#BACKGROUND} tasks run in a separate, smaller pool.
+ *
+ * Tasks can be tagged with an owner (usually the result listener), and all pending tasks of an
+ * owner can be cancelled with {@link #cancel}, eg when a fragment is paused.
+ *
+ * Tasks can retry their request with {@link #executeRetry}, which runs the retry in the same
+ * lane and for the same owner.
+ */
+public class RestExecutor {
+
+    public enum Priority {
+        USER,       // The user is waiting for the result (eg after a button press).
+        UI,         // Periodic refresh of visible information.
+        BACKGROUND, // Scans, events and other work without visible result.
+    }
+
+    private static final int FOREGROUND_THREADS = 3;
+
+    private static final int BACKGROUND_THREADS = 2;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * State of a retry started with {@link #executeRetry}.
+     */
+    public interface Retry {
+        /**
+         * Returns true once the owner of the retried task was cancelled. The result of the retry
+         * must not be delivered then.
+         */
+        boolean isCancelled();
+    }
+
+    private final ThreadPoolExecutor mForeground = createPool("RestForeground",
+            FOREGROUND_THREADS, new PriorityBlockingQueue<Runnable>());
+
+    private final ThreadPoolExecutor mBackground = createPool("RestBackground",
+            BACKGROUND_THREADS, new LinkedBlockingQueue<Runnable>());
+
+    /**
+     * Only waits for the delay of retries, which are then run in their lane.
+     */
+    private final ScheduledThreadPoolExecutor mRetryTimer =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "RestRetryTimer");
+                }
+            });
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * The task that is running on the current thread.
+     */
+    private final ThreadLocal<TaskRunnable> mCurrent = new ThreadLocal<>();
+
+    /**
+     * Tasks that have not finished yet, by owner.
+     */
+    private final Map<Object, Set<TaskRunnable>> mTasks = new HashMap<>();
+
+    private class TaskRunnable implements Runnable, Comparable<TaskRunnable>, Retry {
+        final Runnable runnable;
+        final AsyncTask<?, ?, ?> task;
+        final Priority priority;
+        final long sequence = mSequence.incrementAndGet();
+        final Object owner;
+        volatile boolean cancelled = false;
+
+        TaskRunnable(Runnable runnable, AsyncTask<?, ?, ?> task, Priority priority,
+                     Object owner) {
+            this.runnable = runnable;
+            this.task = task;
+            this.priority = priority;
+            this.owner = owner;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled)
+                return;
+
+            mCurrent.set(this);
+            try {
+                runnable.run();
+            } finally {
+                mCurrent.remove();
+                unregister(this);
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(TaskRunnable another) {
+            if (priority != another.priority)
+                return priority.compareTo(another.priority);
+
+            return (sequence < another.sequence) ? -1 : ((sequence == another.sequence) ? 0 : 1);
+        }
+    }
+
+    private static ThreadPoolExecutor createPool(final String name, int threads,
+                                                 BlockingQueue<Runnable> queue) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, queue, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + " #" + mCount.incrementAndGet());
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Executes task in the lane for priority.
+     *
+     * @param owner Object that tasks can be cancelled by, or null.
+     */
+    public void execute(final AsyncTask<String, ?, ?> task, final Priority priority,
+                        final Object owner, String... params) {
+        task.executeOnExecutor(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                TaskRunnable r = new TaskRunnable(runnable, task, priority, owner);
+                register(r);
+                getPool(priority).execute(r);
+            }
+        }, params);
+    }
+
+    /**
+     * Runs retry after delay ms, in the lane and for the owner of the task that is running on
+     * the calling thread. Retries started outside of a task run as background tasks without
+     * owner.
+     *
+     * The retry is dropped if the owner is cancelled while it waits.
+     */
+    public Retry executeRetry(Runnable retry, long delay) {
+        TaskRunnable current = mCurrent.get();
+        final TaskRunnable r = (current != null)
+                ? new TaskRunnable(retry, current.task, current.priority, current.owner)
+                : new TaskRunnable(retry, null, Priority.BACKGROUND, null);
+        register(r);
+        mRetryTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (r.cancelled)
+                    return;
+
+                getPool(r.priority).execute(r);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return r;
+    }
+
+    private ThreadPoolExecutor getPool(Priority priority) {
+        return (priority == Priority.BACKGROUND) ? mBackground : mForeground;
+    }
+
+    /**
+     * Cancels all unfinished tasks of the given owner. Results of cancelled tasks are not
+     * delivered.
+     */
+    public void cancel(Object owner) {
+        if (owner == null)
+            return;
+
+        Set<TaskRunnable> tasks;
+        synchronized (mTasks) {
+            tasks = mTasks.remove(owner);
+        }
+        if (tasks == null)
+            return;
+
+        for (TaskRunnable r : tasks) {
+            r.cancelled = true;
+            if (r.task != null)
+                r.task.cancel(true);
+            mForeground.remove(r);
+            mBackground.remove(r);
+        }
+    }
+
+    /**
+     * Returns the number of tasks that are queued or running.
+     */
+    public int getPendingCount() {
+        return mForeground.getQueue().size() + mForeground.getActiveCount() +
+                mBackground.getQueue().size() + mBackground.getActiveCount();
+    }
+
+    private void register(TaskRunnable r) {
+        if (r.owner == null)
+            return;
+
+        synchronized (mTasks) {
+            Set<TaskRunnable> tasks = mTasks.get(r.owner);
+            if (tasks == null) {
+                tasks = new HashSet<>();
+                mTasks.put(r.owner, tasks);
+            }
+            tasks.add(r);
+        }
+    }
+
+    private void unregister(TaskRunnable r) {
+        if (r.owner == null)
+            return;
+
+        synchronized (mTasks) {
+            Set<TaskRunnable> tasks = mTasks.get(r.owner);
+            if (tasks == null)
+                return;
+
+            tasks.remove(r);
+            if (tasks.isEmpty())
+                mTasks.remove(r.owner);
+        }
+    }
+}
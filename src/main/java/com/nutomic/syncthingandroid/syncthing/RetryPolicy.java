@@ -0,0 +1,165 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides if and when failed REST requests are retried.
+ *
+ * Retries are scheduled with jittered exponential delays instead of sleeping on the request
+ * thread, and run through {@link RestExecutor} with the priority and owner of the failed task.
+ * Each endpoint has a circuit breaker that opens after {@link #FAILURE_THRESHOLD} consecutive
+ * failures, and requests fail immediately while it is open. All breakers are open while
+ * syncthing is not available, and are closed once the web GUI responds again.
+ */
+public class RetryPolicy {
+
+    private static final String TAG = "RetryPolicy";
+
+    /**
+     * Maximum number of attempts for one request, including the first.
+     */
+    public static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * Delay in ms before the first retry, doubled for every further retry.
+     */
+    private static final long BASE_DELAY = 250;
+
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(8);
+
+    /**
+     * Number of consecutive failures of an endpoint after which its breaker opens.
+     */
+    public static final int FAILURE_THRESHOLD = 5;
+
+    /**
+     * Time in ms after which an open breaker lets a single request through again.
+     */
+    private static final long DEFAULT_OPEN_DURATION = TimeUnit.SECONDS.toMillis(30);
+
+    private static class Breaker {
+        int failures;
+        long openUntil;
+    }
+
+    private final RestExecutor mExecutor;
+
+    private final long mOpenDuration;
+
+    private final Random mRandom = new Random();
+
+    private final Map<String, Breaker> mBreakers = new HashMap<>();
+
+    private volatile boolean mAvailable = true;
+
+    private final AtomicLong mRetries = new AtomicLong();
+
+    private final AtomicLong mRejected = new AtomicLong();
+
+    public RetryPolicy(RestExecutor executor) {
+        this(executor, DEFAULT_OPEN_DURATION);
+    }
+
+    /**
+     * @param openDuration Time in ms after which an open breaker lets a single request through
+     *                     again.
+     */
+    public RetryPolicy(RestExecutor executor, long openDuration) {
+        mExecutor = executor;
+        mOpenDuration = openDuration;
+    }
+
+    /**
+     * Returns false if requests to endpoint should fail immediately.
+     */
+    public boolean allowRequest(String endpoint) {
+        if (!mAvailable) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+
+        synchronized (mBreakers) {
+            Breaker b = mBreakers.get(endpoint);
+            if (b == null || b.failures < FAILURE_THRESHOLD)
+                return true;
+
+            long now = SystemClock.elapsedRealtime();
+            if (now < b.openUntil) {
+                mRejected.incrementAndGet();
+                return false;
+            }
+            // Half open: let this request through, and wait again if it fails.
+            b.openUntil = now + mOpenDuration;
+            return true;
+        }
+    }
+
+    public void onSuccess(String endpoint) {
+        synchronized (mBreakers) {
+            mBreakers.remove(endpoint);
+        }
+    }
+
+    public void onFailure(String endpoint) {
+        synchronized (mBreakers) {
+            Breaker b = mBreakers.get(endpoint);
+            if (b == null) {
+                b = new Breaker();
+                mBreakers.put(endpoint, b);
+            }
+            b.failures++;
+            if (b.failures == FAILURE_THRESHOLD) {
+                b.openUntil = SystemClock.elapsedRealtime() + mOpenDuration;
+                Log.w(TAG, "Too many failures, not calling " + endpoint + " for " +
+                        mOpenDuration + " ms");
+            }
+        }
+    }
+
+    /**
+     * Returns the delay in ms before the given retry (starting at 1), between half and all of
+     * the exponential delay.
+     */
+    public long getDelay(int retry) {
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(retry - 1, 16));
+        synchronized (mRandom) {
+            return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        }
+    }
+
+    /**
+     * Runs the retry after the delay for the given retry number, without blocking the caller.
+     * Must be called from the task that is retried.
+     *
+     * @see RestExecutor#executeRetry
+     */
+    public RestExecutor.Retry scheduleRetry(Runnable retry, int retryNumber) {
+        mRetries.incrementAndGet();
+        return mExecutor.executeRetry(retry, getDelay(retryNumber));
+    }
+
+    /**
+     * Sets whether syncthing is available. Requests fail immediately while it is not, and all
+     * breakers are closed once it is available again.
+     */
+    public void setAvailable(boolean available) {
+        if (available) {
+            synchronized (mBreakers) {
+                mBreakers.clear();
+            }
+        }
+        mAvailable = available;
+    }
+
+    @Override
+    public String toString() {
+        return "retries=" + mRetries.get() + ", rejected=" + mRejected.get();
+    }
+}
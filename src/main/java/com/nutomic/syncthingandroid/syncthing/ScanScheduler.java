@@ -0,0 +1,317 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects changed paths per folder and turns them into as few scan requests as possible.
+ *
+ * Paths are collected until no change happened for {@link #QUIET_PERIOD} (but at most for
+ * {@link #MAX_DELAY}). They are then merged with {@link #coalesce}, and at most
+ * {@link #MAX_CONCURRENT_SCANS} scans are running per folder at any time. A path is not scanned
+ * while a scan of it or one of its parents is running. Changes that a {@link SelfWriteTracker}
+ * attributes to syncthing itself are dropped before merging.
+ */
+public class ScanScheduler {
+
+    private static final String TAG = "ScanScheduler";
+
+    /**
+     * Time in ms without changes in a folder after which the collected paths are scanned.
+     */
+    private static final long QUIET_PERIOD = TimeUnit.SECONDS.toMillis(3);
+
+    /**
+     * Maximum time in ms that a changed path waits for a scan, even if changes continue.
+     */
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Maximum number of scans that are running at the same time for one folder.
+     */
+    private static final int MAX_CONCURRENT_SCANS = 2;
+
+    /**
+     * Number of changed entries in one directory at which the whole directory is scanned instead.
+     */
+    public static final int MERGE_THRESHOLD = 8;
+
+    /**
+     * Performs the actual scan requests.
+     */
+    public interface Scanner {
+        /**
+         * Requests a scan of path in the given folder. {@link #onScanFinished} must be called
+         * once the scan request has completed.
+         *
+         * @param path Path relative to the folder root, or an empty string for the whole folder.
+         */
+        void requestScan(String folderId, String path);
+    }
+
+    private class FolderState {
+        final String folderId;
+        /**
+         * Changed paths, with the time of their last change.
+         */
+        final Map<String, Long> dirty = new HashMap<>();
+        final LinkedList<String> queued = new LinkedList<>();
+        final Set<String> running = new HashSet<>();
+        long firstDirtyTime;
+        final Runnable flush = new Runnable() {
+            @Override
+            public void run() {
+                flush(FolderState.this);
+            }
+        };
+
+        FolderState(String folderId) {
+            this.folderId = folderId;
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Scanner mScanner;
+
+    private final SelfWriteTracker mSelfWriteTracker;
+
+    /**
+     * Only accessed on the main thread.
+     */
+    private final Map<String, FolderState> mFolders = new HashMap<>();
+
+    private final AtomicLong mEventsIn = new AtomicLong();
+
+    private final AtomicLong mScansOut = new AtomicLong();
+
+    public ScanScheduler(Scanner scanner) {
+        this(scanner, null);
+    }
+
+    /**
+     * @param selfWriteTracker Used to drop changes made by syncthing, may be null.
+     */
+    public ScanScheduler(Scanner scanner, SelfWriteTracker selfWriteTracker) {
+        mScanner = scanner;
+        mSelfWriteTracker = selfWriteTracker;
+    }
+
+    /**
+     * Marks path in folder as changed. May be called from any thread.
+     *
+     * @param path Path relative to the folder root.
+     */
+    public void onFileChange(final String folderId, final String path) {
+        mEventsIn.incrementAndGet();
+        final long time = SystemClock.elapsedRealtime();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                FolderState state = mFolders.get(folderId);
+                if (state == null) {
+                    state = new FolderState(folderId);
+                    mFolders.put(folderId, state);
+                }
+                long now = SystemClock.elapsedRealtime();
+                if (state.dirty.isEmpty())
+                    state.firstDirtyTime = now;
+                state.dirty.put(normalize(path), time);
+
+                long delay = Math.min(QUIET_PERIOD, state.firstDirtyTime + MAX_DELAY - now);
+                mHandler.removeCallbacks(state.flush);
+                mHandler.postDelayed(state.flush, Math.max(0, delay));
+            }
+        });
+    }
+
+    /**
+     * Must be called by the {@link Scanner} once a scan request has completed.
+     */
+    public void onScanFinished(final String folderId, final String path) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                FolderState state = mFolders.get(folderId);
+                if (state == null)
+                    return;
+
+                state.running.remove(path);
+                startQueued(state);
+            }
+        });
+    }
+
+    /**
+     * Drops all pending scans, eg because syncthing is stopped.
+     */
+    public void cancelAll() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (FolderState state : mFolders.values()) {
+                    mHandler.removeCallbacks(state.flush);
+                }
+                mFolders.clear();
+            }
+        });
+    }
+
+    private void flush(FolderState state) {
+        List<String> paths = new ArrayList<>();
+        for (Map.Entry<String, Long> e : state.dirty.entrySet()) {
+            if (mSelfWriteTracker == null ||
+                    !mSelfWriteTracker.isSelfWrite(state.folderId, e.getKey(), e.getValue()))
+                paths.add(e.getKey());
+        }
+        paths.addAll(state.queued);
+        state.dirty.clear();
+        state.queued.clear();
+        state.queued.addAll(coalesce(paths, MERGE_THRESHOLD));
+        startQueued(state);
+    }
+
+    private void startQueued(FolderState state) {
+        for (Iterator<String> it = state.queued.iterator();
+             it.hasNext() && state.running.size() < MAX_CONCURRENT_SCANS; ) {
+            String path = it.next();
+            // Changes during a scan may be missed by it, so the path is scanned again once the
+            // running scan has finished.
+            if (isCovered(state.running, path))
+                continue;
+
+            it.remove();
+            state.running.add(path);
+            mScansOut.incrementAndGet();
+            mScanner.requestScan(state.folderId, path);
+        }
+        Log.v(TAG, "Scans running in " + state.folderId + ": " + state.running.size() +
+                ", queued: " + state.queued.size() + " (" + getStats() + ")");
+    }
+
+    /**
+     * Returns the given paths without leading or trailing slashes.
+     */
+    private static String normalize(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/')
+            start++;
+        while (end > start && path.charAt(end - 1) == '/')
+            end--;
+        return path.substring(start, end);
+    }
+
+    /**
+     * Returns the parent of the given normalized path, or null for the folder root.
+     */
+    private static String getParent(String path) {
+        if (path.isEmpty())
+            return null;
+
+        int index = path.lastIndexOf('/');
+        return (index == -1)
+                ? ""
+                : path.substring(0, index);
+    }
+
+    /**
+     * Merges the given paths into a minimal list of paths to scan.
+     *
+     * If at least mergeThreshold entries of a directory are contained, they are replaced with
+     * the directory itself. Paths that are below another path in the result are dropped.
+     *
+     * @param paths Paths relative to the folder root. An empty string stands for the whole folder.
+     */
+    public static List<String> coalesce(Collection<String> paths, int mergeThreshold) {
+        Set<String> result = new TreeSet<>();
+        for (String p : paths) {
+            result.add(normalize(p));
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            removeCovered(result);
+            Map<String, Integer> siblings = new HashMap<>();
+            for (String p : result) {
+                String parent = getParent(p);
+                if (parent == null)
+                    continue;
+
+                Integer count = siblings.get(parent);
+                siblings.put(parent, (count == null) ? 1 : count + 1);
+            }
+            for (Map.Entry<String, Integer> e : siblings.entrySet()) {
+                if (e.getValue() >= mergeThreshold && result.add(e.getKey()))
+                    changed = true;
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Removes all paths that have an ancestor in paths.
+     */
+    private static void removeCovered(Set<String> paths) {
+        List<String> covered = new ArrayList<>();
+        for (String p : paths) {
+            for (String parent = getParent(p); parent != null; parent = getParent(parent)) {
+                if (paths.contains(parent)) {
+                    covered.add(p);
+                    break;
+                }
+            }
+        }
+        paths.removeAll(covered);
+    }
+
+    /**
+     * Returns true if path or one of its parents is contained in paths.
+     *
+     * @param paths Normalized paths relative to the folder root.
+     */
+    public static boolean isCovered(Collection<String> paths, String path) {
+        for (String p = normalize(path); p != null; p = getParent(p)) {
+            if (paths.contains(p))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of file change events received.
+     */
+    public long getEventsIn() {
+        return mEventsIn.get();
+    }
+
+    /**
+     * Returns the number of scan requests sent.
+     */
+    public long getScansOut() {
+        return mScansOut.get();
+    }
+
+    public String getStats() {
+        long in = getEventsIn();
+        long out = getScansOut();
+        return "events=" + in + ", scans=" + out + ", ratio=" +
+                ((out == 0) ? "-" : String.format("%.1f", (float) in / out));
+    }
+}
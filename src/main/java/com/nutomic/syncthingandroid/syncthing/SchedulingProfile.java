@@ -0,0 +1,55 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+/**
+ * CPU and I/O priorities for the syncthing binary, depending on the device state.
+ *
+ * @see SyncthingRunnable#setSchedulingProfile
+ */
+public enum SchedulingProfile {
+
+    /**
+     * Screen is off and the device is on battery.
+     */
+    BACKGROUND(10, "be", 7),
+
+    /**
+     * Screen is on and the device is on battery, so the app in the foreground comes first.
+     */
+    INTERACTIVE(19, "idle", 7),
+
+    /**
+     * Device is charging, so sync at full speed.
+     */
+    CHARGING_FAST(0, "be", 4);
+
+    /**
+     * CPU nice value, from -20 (highest priority) to 19 (lowest priority).
+     */
+    public final int nice;
+
+    /**
+     * I/O scheduling class as understood by ionice ("rt", "be" or "idle").
+     */
+    public final String ioClass;
+
+    /**
+     * I/O priority within {@link #ioClass}, from 0 (highest) to 7 (lowest).
+     */
+    public final int ioPriority;
+
+    SchedulingProfile(int nice, String ioClass, int ioPriority) {
+        this.nice = nice;
+        this.ioClass = ioClass;
+        this.ioPriority = ioPriority;
+    }
+
+    /**
+     * Returns the profile to use for the given device state.
+     */
+    public static SchedulingProfile select(boolean charging, boolean screenOn) {
+        if (charging)
+            return CHARGING_FAST;
+
+        return (screenOn) ? INTERACTIVE : BACKGROUND;
+    }
+}
@@ -0,0 +1,119 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which files syncthing is writing or has just written, so that the resulting file
+ * change events do not cause another scan of the same files.
+ *
+ * Items are added from ItemStarted and ItemFinished events. A change is a self write if it
+ * happened while syncthing was handling the same path, allowing for the delay until events
+ * are received.
+ *
+ * All methods must be called on the main thread.
+ */
+public class SelfWriteTracker {
+
+    /**
+     * Time in ms that a file change may happen before the ItemStarted event is received.
+     */
+    private static final long START_SLACK = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Time in ms that a file change may be received after the ItemFinished event.
+     */
+    private static final long FINISH_SLACK = TimeUnit.SECONDS.toMillis(2);
+
+    /**
+     * Time in ms that finished items are kept. Must be longer than changes wait in
+     * {@link ScanScheduler}.
+     */
+    private static final long RETENTION = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * Items that did not finish after this time in ms are forgotten.
+     */
+    private static final long MAX_ITEM_DURATION = TimeUnit.MINUTES.toMillis(30);
+
+    private static class Item {
+        final long started;
+        long finished = -1;
+
+        Item(long started) {
+            this.started = started;
+        }
+    }
+
+    /**
+     * Items by folder and path, see {@link #key}.
+     */
+    private final Map<String, Item> mItems = new HashMap<>();
+
+    private long mSuppressed = 0;
+
+    private long mForwarded = 0;
+
+    public void onItemStarted(String folderId, String item) {
+        long now = SystemClock.elapsedRealtime();
+        prune(now);
+        mItems.put(key(folderId, item), new Item(now));
+    }
+
+    public void onItemFinished(String folderId, String item) {
+        long now = SystemClock.elapsedRealtime();
+        Item i = mItems.get(key(folderId, item));
+        // ItemStarted may have been missed, eg when the event processor was restarted.
+        if (i == null) {
+            i = new Item(now);
+            mItems.put(key(folderId, item), i);
+        }
+        i.finished = now;
+    }
+
+    /**
+     * Returns true if a change of path at the given time was most likely made by syncthing.
+     *
+     * @param path Path relative to the folder root.
+     * @param time Time of the change, in {@link SystemClock#elapsedRealtime()}.
+     */
+    public boolean isSelfWrite(String folderId, String path, long time) {
+        Item i = mItems.get(key(folderId, path));
+        boolean self = i != null && time >= i.started - START_SLACK &&
+                (i.finished == -1 || time <= i.finished + FINISH_SLACK);
+        if (self)
+            mSuppressed++;
+        else
+            mForwarded++;
+        return self;
+    }
+
+    /**
+     * Forgets items that finished too long ago to match any change.
+     */
+    private void prune(long now) {
+        for (Iterator<Item> it = mItems.values().iterator(); it.hasNext(); ) {
+            Item i = it.next();
+            if ((i.finished != -1 && now - i.finished > RETENTION) ||
+                    now - i.started > MAX_ITEM_DURATION)
+                it.remove();
+        }
+    }
+
+    private static String key(String folderId, String path) {
+        int start = 0;
+        while (start < path.length() && path.charAt(start) == '/')
+            start++;
+        return folderId + "/" + path.substring(start);
+    }
+
+    public String getStats() {
+        return "suppressed=" + mSuppressed + ", forwarded=" + mForwarded + ", tracked=" +
+                mItems.size();
+    }
+
+}
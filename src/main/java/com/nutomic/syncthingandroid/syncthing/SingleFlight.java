@@ -0,0 +1,215 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deduplicates identical requests that are in flight at the same time.
+ *
+ * The first caller for a key sends the request, later callers for the same key are attached to
+ * it and receive the same result. Results are kept for a short freshness window, during which
+ * they are returned without a new request.
+ *
+ * Results are always delivered on the main thread. Each pending request has its own owner (see
+ * {@link #getRequestOwner}), so that it can be aborted once all its callers were cancelled.
+ */
+public class SingleFlight<T> {
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private static class Waiter<T> {
+        final Object owner;
+        final Callback<T> callback;
+
+        Waiter(Object owner, Callback<T> callback) {
+            this.owner = owner;
+            this.callback = callback;
+        }
+    }
+
+    /**
+     * A pending request. The instance itself is used as the owner of the request.
+     */
+    private static class Flight<T> {
+        final List<Waiter<T>> waiters = new ArrayList<>();
+    }
+
+    private static class Result<T> {
+        final T value;
+        final long time;
+
+        Result(T value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<String, Flight<T>> mPending = new HashMap<>();
+
+    private final Map<String, Result<T>> mResults = new HashMap<>();
+
+    /**
+     * Callbacks of cached results that were posted, but not run yet.
+     */
+    private final List<Waiter<T>> mPosted = new ArrayList<>();
+
+    private long mFreshness;
+
+    private long mRequests;
+
+    private long mJoined;
+
+    private long mCached;
+
+    /**
+     * @param freshness Time in ms that a result is returned without a new request.
+     */
+    public SingleFlight(long freshness) {
+        mFreshness = freshness;
+    }
+
+    public synchronized void setFreshness(long freshness) {
+        mFreshness = freshness;
+    }
+
+    /**
+     * Registers callback for the result of the request identified by key.
+     *
+     * @param owner Object that the callback can be removed by with {@link #cancel}, or null.
+     * @return True if the caller must send the request with the owner from
+     *         {@link #getRequestOwner}, and call {@link #complete} once it has finished. False if
+     *         the result will be delivered from a pending request or from memory.
+     */
+    public boolean join(String key, Object owner, final Callback<T> callback) {
+        final Result<T> result;
+        final Waiter<T> waiter = new Waiter<>(owner, callback);
+        synchronized (this) {
+            result = mResults.get(key);
+            if (result == null || SystemClock.elapsedRealtime() - result.time >= mFreshness) {
+                Flight<T> flight = mPending.get(key);
+                if (flight != null) {
+                    mJoined++;
+                    flight.waiters.add(waiter);
+                    return false;
+                }
+                mRequests++;
+                flight = new Flight<>();
+                flight.waiters.add(waiter);
+                mPending.put(key, flight);
+                return true;
+            }
+            mCached++;
+            mPosted.add(waiter);
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // The owner may have been cancelled in the meantime.
+                synchronized (SingleFlight.this) {
+                    if (!mPosted.remove(waiter))
+                        return;
+                }
+                callback.onResult(result.value);
+            }
+        });
+        return false;
+    }
+
+    /**
+     * Returns the owner to send the pending request for key with, or null if there is none.
+     */
+    public synchronized Object getRequestOwner(String key) {
+        return mPending.get(key);
+    }
+
+    /**
+     * Delivers the result of the request for key to all registered callbacks. Must be called on
+     * the main thread.
+     *
+     * @param requestOwner The owner returned by {@link #getRequestOwner} when the request was
+     *                     sent. Results of requests that were aborted by {@link #cancel} are
+     *                     ignored.
+     * @param value The result, or null if the request failed. Failures are not delivered to
+     *              callbacks and not cached.
+     */
+    public void complete(String key, Object requestOwner, T value) {
+        Flight<T> flight;
+        synchronized (this) {
+            flight = mPending.get(key);
+            if (flight == null || flight != requestOwner)
+                return;
+
+            mPending.remove(key);
+            if (value != null)
+                mResults.put(key, new Result<>(value, SystemClock.elapsedRealtime()));
+        }
+        if (value == null)
+            return;
+
+        for (Waiter<T> w : flight.waiters) {
+            w.callback.onResult(value);
+        }
+    }
+
+    /**
+     * Removes all callbacks of owner from pending requests and cached results that were not
+     * delivered yet. Requests that other callers are still waiting for are completed as usual.
+     *
+     * @return The owners of requests that no caller waits for anymore. These requests should be
+     *         aborted, their results are ignored.
+     */
+    public synchronized List<Object> cancel(Object owner) {
+        List<Object> abandoned = new ArrayList<>();
+        if (owner == null)
+            return abandoned;
+
+        Iterator<Waiter<T>> posted = mPosted.iterator();
+        while (posted.hasNext()) {
+            if (posted.next().owner == owner)
+                posted.remove();
+        }
+
+        Iterator<Flight<T>> flights = mPending.values().iterator();
+        while (flights.hasNext()) {
+            Flight<T> flight = flights.next();
+            Iterator<Waiter<T>> it = flight.waiters.iterator();
+            boolean removed = false;
+            while (it.hasNext()) {
+                if (it.next().owner == owner) {
+                    it.remove();
+                    removed = true;
+                }
+            }
+            if (removed && flight.waiters.isEmpty()) {
+                flights.remove();
+                abandoned.add(flight);
+            }
+        }
+        return abandoned;
+    }
+
+    /**
+     * Drops all cached results and pending callbacks.
+     */
+    public synchronized void clear() {
+        mPending.clear();
+        mPosted.clear();
+        mResults.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "requests=" + mRequests + ", joined=" + mJoined + ", cached=" + mCached;
+    }
+}
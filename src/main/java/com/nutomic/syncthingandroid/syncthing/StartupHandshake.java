@@ -0,0 +1,217 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the requests that are needed before the API can be used, and reports once all of them
+ * succeeded.
+ *
+ * All fetches are sent at the same time. A fetch that fails is sent again after
+ * {@link #RETRY_DELAY}. Requests that did not finish within {@link #ROUND_TIMEOUT} are aborted
+ * and sent again, so a lost response can not stall startup. The requests must not be retried
+ * elsewhere. If the handshake did not finish within {@link #DEADLINE}, it is given up.
+ *
+ * All methods must be called on the main thread.
+ */
+public class StartupHandshake {
+
+    private static final String TAG = "StartupHandshake";
+
+    /**
+     * Time in ms after which unfinished fetches are sent again.
+     */
+    private static final long ROUND_TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+
+    /**
+     * Time in ms before a failed fetch is sent again.
+     */
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Time in ms after which the handshake fails if not all fetches succeeded.
+     */
+    private static final long DEADLINE = TimeUnit.MINUTES.toMillis(2);
+
+    public interface Callback {
+        /**
+         * Sends the request for fetch, which must be answered with {@link #onSuccess} or
+         * {@link #onFailure} using the same request id.
+         */
+        void sendRequest(String fetch, int requestId);
+
+        /**
+         * Aborts the request for fetch that is in flight, if any.
+         */
+        void cancelRequest(String fetch);
+
+        /**
+         * Called once all fetches succeeded.
+         */
+        void onReady();
+
+        /**
+         * Called if not all fetches succeeded before {@link #DEADLINE}.
+         */
+        void onFailed();
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Callback mCallback;
+
+    private final Set<String> mPending = new LinkedHashSet<>();
+
+    private final Map<String, Long> mDurations = new LinkedHashMap<>();
+
+    private final Map<String, Integer> mAttempts = new HashMap<>();
+
+    /**
+     * Ids of the requests that are in flight, by fetch. Results of other requests are ignored.
+     */
+    private final Map<String, Integer> mInFlight = new HashMap<>();
+
+    private int mNextRequestId = 0;
+
+    private final long mRoundTimeout;
+
+    private final long mRetryDelay;
+
+    private final long mDeadlineTime;
+
+    private long mStartTime;
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            // Fetches that are not in flight already have a retry scheduled.
+            List<String> timedOut = new ArrayList<>(mInFlight.keySet());
+            Log.w(TAG, "Startup requests timed out, sending again: " + timedOut);
+            for (String fetch : timedOut) {
+                mCallback.cancelRequest(fetch);
+                send(fetch);
+            }
+            mHandler.postDelayed(this, mRoundTimeout);
+        }
+    };
+
+    private final Runnable mDeadline = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "Startup requests did not finish after " + mDeadlineTime + " ms: " +
+                    mPending + ", attempts: " + mAttempts);
+            cancel();
+            mCallback.onFailed();
+        }
+    };
+
+    public StartupHandshake(Callback callback) {
+        this(callback, ROUND_TIMEOUT, RETRY_DELAY, DEADLINE);
+    }
+
+    /**
+     * Constructs a handshake with custom timeouts in ms, for tests.
+     */
+    public StartupHandshake(Callback callback, long roundTimeout, long retryDelay,
+                            long deadline) {
+        mCallback = callback;
+        mRoundTimeout = roundTimeout;
+        mRetryDelay = retryDelay;
+        mDeadlineTime = deadline;
+    }
+
+    /**
+     * Starts a new handshake with the given fetches, abandoning any previous one.
+     */
+    public void start(String... fetches) {
+        cancel();
+        mDurations.clear();
+        mAttempts.clear();
+        mStartTime = SystemClock.elapsedRealtime();
+        Collections.addAll(mPending, fetches);
+        for (String fetch : fetches) {
+            send(fetch);
+        }
+        mHandler.postDelayed(mTimeout, mRoundTimeout);
+        mHandler.postDelayed(mDeadline, mDeadlineTime);
+    }
+
+    /**
+     * Stops the current handshake and aborts its requests. Results that arrive later are
+     * ignored.
+     */
+    public void cancel() {
+        for (String fetch : mInFlight.keySet()) {
+            mCallback.cancelRequest(fetch);
+        }
+        mInFlight.clear();
+        mPending.clear();
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    public void onSuccess(String fetch, int requestId) {
+        if (!isInFlight(fetch, requestId))
+            return;
+
+        mInFlight.remove(fetch);
+        mPending.remove(fetch);
+
+        mDurations.put(fetch, SystemClock.elapsedRealtime() - mStartTime);
+        if (!mPending.isEmpty())
+            return;
+
+        mHandler.removeCallbacksAndMessages(null);
+        Log.i(TAG, "Startup requests finished after " +
+                (SystemClock.elapsedRealtime() - mStartTime) + " ms: " + mDurations +
+                ", attempts: " + mAttempts);
+        mCallback.onReady();
+    }
+
+    public void onFailure(final String fetch, int requestId) {
+        if (!isInFlight(fetch, requestId))
+            return;
+
+        mInFlight.remove(fetch);
+        Log.w(TAG, "Startup request " + fetch + " failed, sending again");
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (mPending.contains(fetch) && !mInFlight.containsKey(fetch))
+                    send(fetch);
+            }
+        }, mRetryDelay);
+    }
+
+    /**
+     * Returns the time in ms from the start of the handshake until each fetch succeeded,
+     * including retries.
+     */
+    public Map<String, Long> getDurations() {
+        return Collections.unmodifiableMap(mDurations);
+    }
+
+    private boolean isInFlight(String fetch, int requestId) {
+        Integer current = mInFlight.get(fetch);
+        return current != null && current == requestId;
+    }
+
+    private void send(String fetch) {
+        Integer attempts = mAttempts.get(fetch);
+        mAttempts.put(fetch, (attempts == null) ? 1 : attempts + 1);
+        int requestId = ++mNextRequestId;
+        mInFlight.put(fetch, requestId);
+        mCallback.sendRequest(fetch, requestId);
+    }
+}
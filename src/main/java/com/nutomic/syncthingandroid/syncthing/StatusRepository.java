@@ -0,0 +1,207 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Polls system info, connections and folder models, and pushes the latest state to listeners.
+ *
+ * Polling only happens while syncthing is active and at least one listener is registered, so
+ * the number of requests does not depend on the number of open views. All methods must be
+ * called on the main thread, and listeners are notified on the main thread.
+ */
+public class StatusRepository implements SyncthingService.OnApiChangeListener,
+        RestApi.OnReceiveSystemInfoListener, RestApi.OnReceiveConnectionsListener,
+        RestApi.OnReceiveModelListener, CompletionTracker.OnCompletionChangedListener {
+
+    public interface OnStatusChangedListener {
+        /**
+         * Called when any part of the status was updated. Values that were not received yet
+         * are null or empty.
+         */
+        void onStatusChanged(StatusRepository status);
+    }
+
+    private final SyncthingService mService;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Set<OnStatusChangedListener> mListeners = new LinkedHashSet<>();
+
+    private SyncthingService.State mState = SyncthingService.State.INIT;
+
+    private boolean mPolling = false;
+
+    private RestApi.SystemInfo mSystemInfo;
+
+    private Map<String, RestApi.Connection> mConnections = Collections.emptyMap();
+
+    private final Map<String, RestApi.Model> mModels = new HashMap<>();
+
+    private final Runnable mPoll = new Runnable() {
+        @Override
+        public void run() {
+            poll();
+            mHandler.postDelayed(this, SyncthingService.GUI_UPDATE_INTERVAL);
+        }
+    };
+
+    private final Runnable mNotify = new Runnable() {
+        @Override
+        public void run() {
+            for (OnStatusChangedListener l : new HashSet<>(mListeners)) {
+                l.onStatusChanged(StatusRepository.this);
+            }
+        }
+    };
+
+    public StatusRepository(SyncthingService service) {
+        mService = service;
+    }
+
+    /**
+     * Registers listener for status changes. The listener is notified with the current status
+     * immediately if any is available. Registering a listener twice has no effect.
+     */
+    public void registerOnStatusChangedListener(OnStatusChangedListener listener) {
+        if (!mListeners.add(listener))
+            return;
+
+        if (mSystemInfo != null || !mConnections.isEmpty() || !mModels.isEmpty())
+            notifyListeners();
+        updatePolling();
+    }
+
+    public void unregisterOnStatusChangedListener(OnStatusChangedListener listener) {
+        mListeners.remove(listener);
+        updatePolling();
+    }
+
+    /**
+     * Requests new status immediately, eg after the config was changed.
+     */
+    public void refresh() {
+        if (!mPolling)
+            return;
+
+        mHandler.removeCallbacks(mPoll);
+        mHandler.post(mPoll);
+    }
+
+    @Override
+    public void onApiChange(SyncthingService.State currentState) {
+        mState = currentState;
+        updatePolling();
+    }
+
+    /**
+     * Stops polling and drops all listeners.
+     */
+    public void shutdown() {
+        mListeners.clear();
+        updatePolling();
+    }
+
+    private void updatePolling() {
+        boolean poll = mState == SyncthingService.State.ACTIVE && !mListeners.isEmpty();
+        if (poll == mPolling)
+            return;
+
+        mPolling = poll;
+        mHandler.removeCallbacks(mPoll);
+        RestApi api = mService.getApi();
+        if (poll) {
+            if (api != null)
+                api.setOnCompletionChangedListener(this);
+            mHandler.post(mPoll);
+        } else {
+            mHandler.removeCallbacks(mNotify);
+            if (api != null) {
+                api.setOnCompletionChangedListener(null);
+                api.cancelRequests(this);
+            }
+        }
+    }
+
+    private void poll() {
+        RestApi api = mService.getApi();
+        if (api == null)
+            return;
+
+        api.getSystemInfo(this);
+        api.getConnections(this);
+        Set<String> folderIds = new HashSet<>();
+        for (RestApi.Folder f : api.getFolders()) {
+            folderIds.add(f.id);
+            api.getModel(f.id, this);
+        }
+        mModels.keySet().retainAll(folderIds);
+    }
+
+    /**
+     * Notifies listeners once for all results that arrive in the same message loop iteration.
+     */
+    private void notifyListeners() {
+        mHandler.removeCallbacks(mNotify);
+        mHandler.post(mNotify);
+    }
+
+    @Override
+    public void onReceiveSystemInfo(RestApi.SystemInfo info) {
+        mSystemInfo = info;
+        notifyListeners();
+    }
+
+    @Override
+    public void onReceiveConnections(Map<String, RestApi.Connection> connections) {
+        mConnections = connections;
+        notifyListeners();
+    }
+
+    @Override
+    public void onReceiveModel(String folderId, RestApi.Model model) {
+        mModels.put(folderId, model);
+        notifyListeners();
+    }
+
+    /**
+     * Updates the completion of a device that was received after its connection.
+     */
+    @Override
+    public void onCompletionChanged(String deviceId, int completion) {
+        RestApi.Connection c = mConnections.get(deviceId);
+        if (c == null)
+            return;
+
+        c.completion = completion;
+        notifyListeners();
+    }
+
+    /**
+     * Returns the latest system info, or null if none was received yet.
+     */
+    public RestApi.SystemInfo getSystemInfo() {
+        return mSystemInfo;
+    }
+
+    /**
+     * Returns the latest connections, see {@link RestApi#getConnections}.
+     */
+    public Map<String, RestApi.Connection> getConnections() {
+        return mConnections;
+    }
+
+    /**
+     * Returns the latest model of each folder, by folder id.
+     */
+    public Map<String, RestApi.Model> getModels() {
+        return Collections.unmodifiableMap(mModels);
+    }
+}
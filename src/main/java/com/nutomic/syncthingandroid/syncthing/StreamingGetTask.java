@@ -0,0 +1,286 @@
+package com.nutomic.syncthingandroid.syncthing;
+
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.nutomic.syncthingandroid.util.EndpointStats;
+import com.nutomic.syncthingandroid.util.Https;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.protocol.HTTP;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+
+/**
+ * Performs a GET request to the URL in uri[0] with the path in uri[1], and decodes the response
+ * stream with {@link #readResponse} on the worker thread.
+ *
+ * If a {@link RetryPolicy} is set, failed requests are retried through {@link RestExecutor}
+ * with the same priority and owner. The task is then finished without calling
+ * {@link #onCancelled()}, and the final result is passed to {@link #onPostExecute} once the
+ * retries are done, unless the owner was cancelled in the meantime.
+ *
+ * Parameters are the same as for {@link GetTask}.
+ */
+public abstract class StreamingGetTask<Result> extends AsyncTask<String, Void, Result> {
+
+    private static final String TAG = "StreamingGetTask";
+
+    private String mHttpsCertPath;
+
+    private HttpClient mHttpClient;
+
+    private EndpointStats mEndpointStats;
+
+    private RetryPolicy mRetryPolicy;
+
+    /**
+     * True once the request was handed over to {@link #mRetryPolicy}.
+     */
+    private volatile boolean mRetryPending = false;
+
+    /**
+     * The latest retry of the request, if any.
+     */
+    private volatile RestExecutor.Retry mRetry;
+
+    public StreamingGetTask(String httpsCertPath) {
+        mHttpsCertPath = httpsCertPath;
+    }
+
+    /**
+     * Sends the request over the given (pooled) client instead of creating a new one.
+     *
+     * @param endpointStats Receives byte and time counters for the request (may be null).
+     */
+    public StreamingGetTask(HttpClient httpClient, EndpointStats endpointStats) {
+        mHttpClient = httpClient;
+        mEndpointStats = endpointStats;
+    }
+
+    /**
+     * Like {@link #StreamingGetTask(HttpClient, EndpointStats)}, but retries failed requests
+     * according to retryPolicy.
+     */
+    public StreamingGetTask(HttpClient httpClient, EndpointStats endpointStats,
+                            RetryPolicy retryPolicy) {
+        this(httpClient, endpointStats);
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the shared client if one was passed, or creates a new client otherwise.
+     */
+    private HttpClient getHttpClient() {
+        return (mHttpClient != null)
+                ? mHttpClient
+                : Https.createHttpsClient(mHttpsCertPath);
+    }
+
+    /**
+     * Decodes the response body. Called on the worker thread.
+     *
+     * @param is The response body. Closed by the caller.
+     */
+    protected abstract Result readResponse(InputStream is) throws IOException;
+
+    /**
+     * Performs the request once on the calling thread and returns the decoded result, or null on
+     * failure. Must not be called on the main thread. Does not retry, even if a
+     * {@link RetryPolicy} is set.
+     *
+     * Parameters are the same as for {@link #doInBackground}.
+     */
+    public Result executeBlocking(String... params) {
+        try {
+            return request(params);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * params[0] Syncthing hostname
+     * params[1] URI to call
+     * params[2] Syncthing API key
+     * params[3] optional parameter key
+     * params[4] optional parameter value
+     */
+    @Override
+    protected Result doInBackground(String... params) {
+        if (mRetryPolicy != null && !mRetryPolicy.allowRequest(params[1])) {
+            Log.d(TAG, "Not calling " + params[1] + ", syncthing is not available");
+            return null;
+        }
+
+        try {
+            return attempt(params);
+        } catch (IOException e) {
+            if (mRetryPolicy == null || isCancelled())
+                return null;
+
+            // Finish this task without results, and deliver them after the retry.
+            mRetryPending = true;
+            cancel(false);
+            scheduleRetry(params, 1);
+            return null;
+        }
+    }
+
+    /**
+     * Suppresses the cancel callback if the task was only finished to retry the request.
+     */
+    @Override
+    protected void onCancelled(Result result) {
+        if (!mRetryPending)
+            super.onCancelled(result);
+    }
+
+    private void scheduleRetry(final String[] params, final int retry) {
+        Log.w(TAG, "Retrying Rest API call to " + params[1] + " (" + retry + "/" +
+                (RetryPolicy.MAX_ATTEMPTS - 1) + ")");
+        mRetry = mRetryPolicy.scheduleRetry(new Runnable() {
+            @Override
+            public void run() {
+                Result result = null;
+                if (mRetryPolicy.allowRequest(params[1])) {
+                    try {
+                        result = attempt(params);
+                    } catch (IOException e) {
+                        if (retry + 1 < RetryPolicy.MAX_ATTEMPTS && !mRetry.isCancelled()) {
+                            scheduleRetry(params, retry + 1);
+                            return;
+                        }
+                    }
+                }
+                final Result finalResult = result;
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mRetry.isCancelled())
+                            onPostExecute(finalResult);
+                    }
+                });
+            }
+        }, retry);
+    }
+
+    /**
+     * Performs the request once, and reports the outcome to the retry policy.
+     */
+    private Result attempt(String... params) throws IOException {
+        try {
+            Result result = request(params);
+            if (mRetryPolicy != null)
+                mRetryPolicy.onSuccess(params[1]);
+            return result;
+        } catch (IOException e) {
+            if (mRetryPolicy != null)
+                mRetryPolicy.onFailure(params[1]);
+            throw e;
+        }
+    }
+
+    /**
+     * Performs the request once on the calling thread.
+     *
+     * @throws IOException If the request failed.
+     */
+    private Result request(String... params) throws IOException {
+        String fullUri = params[0] + params[1];
+        Log.v(TAG, "Calling Rest API at " + fullUri);
+
+        if (params.length >= 5) {
+            LinkedList<NameValuePair> urlParams = new LinkedList<>();
+            for (int paramCounter = 3; paramCounter + 1 < params.length; ) {
+                urlParams.add(new BasicNameValuePair(params[paramCounter++], params[paramCounter++]));
+            }
+            fullUri += "?" + URLEncodedUtils.format(urlParams, HTTP.UTF_8);
+        }
+
+        HttpGet get = new HttpGet(fullUri);
+        get.addHeader(new BasicHeader(RestApi.HEADER_API_KEY, params[2]));
+
+        long start = SystemClock.elapsedRealtime();
+        CountingInputStream is = null;
+        try {
+            HttpResponse response = getHttpClient().execute(get);
+            HttpEntity entity = response.getEntity();
+            if (entity == null)
+                throw new IOException("Empty response");
+
+            is = new CountingInputStream(entity.getContent());
+            Result result = readResponse(is);
+            if (mEndpointStats != null) {
+                mEndpointStats.onResponse(params[1], is.getCount(),
+                        SystemClock.elapsedRealtime() - start);
+            }
+            return result;
+        } catch (IOException|IllegalArgumentException|IllegalStateException e) {
+            Log.w(TAG, "Failed to call Rest API at " + fullUri);
+            // Drop the connection instead of returning it to the pool.
+            get.abort();
+            throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+        } finally {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close response stream", e);
+            }
+        }
+    }
+
+    /**
+     * Counts the number of bytes read from the wrapped stream.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long mCount = 0;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0)
+                mCount += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+    }
+
+}
@@ -4,20 +4,33 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.nutomic.syncthingandroid.util.LogStore;
+
 import java.io.BufferedReader;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import eu.chainfire.libsuperuser.Shell;
+import eu.chainfire.libsuperuser.StreamGobbler;
 
 /**
  * Runs the syncthing binary from command line, and prints its output to logcat.
@@ -28,15 +41,62 @@ public class SyncthingRunnable implements Runnable {
 
     private static final String TAG = "SyncthingRunnable";
 
-    private static final String TAG_NATIVE = "SyncthingNativeCode";
-
     private static final String TAG_NICE = "SyncthingRunnableIoNice";
 
     private static final String TAG_KILL = "SyncthingRunnableKill";
 
     public static final String UNIT_TEST_PATH = "was running";
 
-    private static final AtomicReference<Process> mSyncthing = new AtomicReference<>();
+    /**
+     * Time in ms that the shutdown request over the REST API and the following exit of syncthing
+     * may take.
+     */
+    private static final long GRACEFUL_TIMEOUT = 2500;
+
+    /**
+     * Time in ms that syncthing gets to exit after SIGINT.
+     */
+    private static final long SIGINT_TIMEOUT = 1000;
+
+    /**
+     * Time in ms to wait for the process to disappear after SIGKILL.
+     */
+    private static final long SIGKILL_TIMEOUT = 500;
+
+    private static final int SIGINT = 2;
+
+    /**
+     * Number of times to look for the syncthing process when running as root, one second apart.
+     */
+    private static final int PROCESS_LOOKUP_ATTEMPTS = 10;
+
+    /**
+     * A syncthing process started by this class.
+     */
+    private static class RunningProcess {
+        final Process process;
+
+        /**
+         * Counted down when the process has exited.
+         */
+        final CountDownLatch exited = new CountDownLatch(1);
+
+        /**
+         * Set by {@link #killSyncthing}, so that the exit code is not treated as a crash.
+         */
+        volatile boolean stopping = false;
+
+        RunningProcess(Process process) {
+            this.process = process;
+        }
+    }
+
+    private static final AtomicReference<RunningProcess> mSyncthing = new AtomicReference<>();
+
+    /**
+     * Stops syncthing processes one after the other, off the main thread.
+     */
+    private static final ExecutorService mKillExecutor = Executors.newSingleThreadExecutor();
 
     private final Context mContext;
 
@@ -44,7 +104,87 @@ public class SyncthingRunnable implements Runnable {
 
     private String[] mCommand;
 
-    private String mErrorLog;
+    private final LogStore mLogStore;
+
+    private volatile SchedulingProfile mSchedulingProfile = SchedulingProfile.BACKGROUND;
+
+    /**
+     * Applies scheduling profiles one after the other.
+     */
+    private static final ExecutorService mSchedulingExecutor =
+            Executors.newSingleThreadExecutor();
+
+    /**
+     * Shell used to apply scheduling profiles. Only accessed on {@link #mSchedulingExecutor}.
+     */
+    private Shell.Interactive mShell;
+
+    /**
+     * True if {@link #mShell} runs as root.
+     */
+    private boolean mShellRoot;
+
+    private volatile OnApiListeningListener mOnApiListeningListener;
+
+    /**
+     * Passes events to {@link #mOnApiListeningListener}, which may change while syncthing runs.
+     */
+    private final OnApiListeningListener mApiListeningForwarder = new OnApiListeningListener() {
+        @Override
+        public void onApiListening() {
+            OnApiListeningListener listener = mOnApiListeningListener;
+            if (listener != null)
+                listener.onApiListening();
+        }
+    };
+
+    /**
+     * Called from a background thread when syncthing reports that its API is available.
+     */
+    public interface OnApiListeningListener {
+        void onApiListening();
+    }
+
+    /**
+     * Called on the main thread once {@link #killSyncthing} has finished.
+     */
+    public interface OnSyncthingKilledListener {
+        /**
+         * @param exited False if syncthing might still be running.
+         */
+        void onSyncthingKilled(boolean exited);
+    }
+
+    /**
+     * The steps that {@link #stop} takes to end a process.
+     */
+    public interface StopSteps {
+        /**
+         * Asks the process to shut down, returns true if it accepted.
+         */
+        boolean requestShutdown(long timeout);
+
+        /**
+         * Sends SIGINT, returns false if that is not possible.
+         */
+        boolean interrupt();
+
+        /**
+         * Sends SIGKILL.
+         */
+        void destroy();
+
+        /**
+         * Waits up to timeout ms for the process to exit, returns true if it has.
+         */
+        boolean awaitExit(long timeout);
+    }
+
+    public enum StopMethod {
+        SHUTDOWN_REQUEST,
+        SIGINT,
+        SIGKILL,
+    }
 
     public enum Command {
         generate, // Generate keys, a config file and immediately exit.
@@ -59,6 +199,7 @@ public class SyncthingRunnable implements Runnable {
      */
     public SyncthingRunnable(Context context, Command command) {
         mContext = context;
+        mLogStore = LogStore.getInstance(context);
         mSyncthingBinary = mContext.getApplicationInfo().dataDir + "/" + SyncthingService.BINARY_NAME;
         switch (command) {
             case generate:
@@ -82,10 +223,18 @@ public class SyncthingRunnable implements Runnable {
      */
     public SyncthingRunnable(Context context, String[] manualCommand) {
         mContext = context;
+        mLogStore = LogStore.getInstance(context);
         mSyncthingBinary = mContext.getApplicationInfo().dataDir + "/" + SyncthingService.BINARY_NAME;
         mCommand = manualCommand;
     }
 
+    /**
+     * Sets a listener that is called whenever syncthing reports that its API is available.
+     */
+    public void setOnApiListeningListener(OnApiListeningListener listener) {
+        mOnApiListeningListener = listener;
+    }
+
     @Override
     public void run() {
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(mContext);
@@ -123,21 +272,27 @@ public class SyncthingRunnable implements Runnable {
                 env.put("STGUIAUTH", sp.getString("gui_user", "") + ":" +
                         sp.getString("gui_password", ""));
                 process = pb.start();
-                mSyncthing.set(process);
+                RunningProcess running = new RunningProcess(process);
+                mSyncthing.set(running);
 
-                mErrorLog = "";
-                Thread lInfo = log(process.getInputStream(), Log.INFO, false);
-                Thread lWarn = log(process.getErrorStream(), Log.WARN, true);
+                long logStart = mLogStore.getNextSequence();
+                OutputPump pump = new OutputPump(mLogStore, mApiListeningForwarder);
+                pump.pump(process.getInputStream(), Log.INFO, true);
+                pump.pump(process.getErrorStream(), Log.WARN, false);
 
-                niceSyncthing();
+                applySchedulingProfile(process);
 
                 ret = process.waitFor();
-                mSyncthing.set(null);
-                lInfo.join();
-                lWarn.join();
+                mSyncthing.compareAndSet(running, null);
+                running.exited.countDown();
+                pump.join();
 
+                if (running.stopping) {
+                    Log.i(TAG, "Syncthing was stopped with exit code " + ret);
+                    break;
+                }
                 // Restart if that was requested via Rest API call.
-                if (ret == 3) {
+                else if (ret == 3) {
                     Log.i(TAG, "Restarting syncthing");
                     mContext.startService(new Intent(mContext, SyncthingService.class)
                             .setAction(SyncthingService.ACTION_RESTART));
@@ -145,7 +300,8 @@ public class SyncthingRunnable implements Runnable {
                 // Force crash if Syncthing exits with an error.
                 else if (ret == 1 || ret > 4) {
                     throw new RuntimeException("Syncthing binary crashed with error code " +
-                            Integer.toString(ret) + ", output:\n" + mErrorLog);
+                            Integer.toString(ret) + ", output:\n" +
+                            mLogStore.getText(logStart, Log.WARN));
                 }
             } while (ret == 3);
         } catch (IOException | InterruptedException e) {
@@ -155,6 +311,13 @@ public class SyncthingRunnable implements Runnable {
                 wakeLock.release();
             if (process != null)
                 process.destroy();
+            // Close the shell once all pending scheduling profiles were applied.
+            mSchedulingExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeShell();
+                }
+            });
         }
     }
 
@@ -175,51 +338,276 @@ public class SyncthingRunnable implements Runnable {
     }
 
     /**
-     * Look for a running libsyncthing.so process and nice its IO.
+     * Sets CPU and I/O priorities of syncthing, and applies them immediately if it is running.
+     */
+    public void setSchedulingProfile(SchedulingProfile profile) {
+        mSchedulingProfile = profile;
+        RunningProcess running = mSyncthing.get();
+        if (running != null)
+            applySchedulingProfile(running.process);
+    }
+
+    /**
+     * Applies {@link #mSchedulingProfile} to all threads of process.
+     *
+     * Runs on {@link #mSchedulingExecutor}, so that the latest profile is applied last.
      */
-    private void niceSyncthing() {
-        new Thread() {
+    private void applySchedulingProfile(final Process process) {
+        mSchedulingExecutor.execute(new Runnable() {
+            @Override
             public void run() {
-                Process nice = null;
-                DataOutputStream niceOut = null;
-                int ret = 1;
-                try {
-                    Thread.sleep(1000); // Wait a second before getting the pid
-                    nice = Runtime.getRuntime().exec((useRoot()) ? "su" : "sh");
-                    niceOut = new DataOutputStream(nice.getOutputStream());
-                    niceOut.writeBytes("set `ps | grep libsyncthing.so`\n");
-                    niceOut.writeBytes("ionice $2 be 7\n"); // best-effort, low priority
-                    niceOut.writeBytes("exit\n");
-                    log(nice.getErrorStream(), Log.WARN, false);
-                    niceOut.flush();
-                    ret = nice.waitFor();
-                    Log.i(TAG_NICE, "ionice performed on libsyncthing.so");
-                } catch (IOException | InterruptedException e) {
-                    Log.e(TAG_NICE, "Failed to execute ionice binary", e);
-                } finally {
-                    try {
-                        if (niceOut != null) {
-                            niceOut.close();
+                SchedulingProfile profile = mSchedulingProfile;
+                String ionice = "ionice %s " + profile.ioClass + " " + profile.ioPriority + "\n";
+                StringBuilder commands = new StringBuilder();
+                int threads = 0;
+                boolean root = useRoot();
+                if (root) {
+                    // The process we know is su, so look up syncthing itself. It may not be
+                    // started yet, so try again a few times. Priorities are per thread, so all
+                    // of its threads are changed.
+                    commands.append("pid=''; i=0\n");
+                    commands.append("while [ -z \"$pid\" ] && [ $i -lt ")
+                            .append(PROCESS_LOOKUP_ATTEMPTS).append(" ]; do\n");
+                    commands.append("set -- `ps | grep libsyncthing.so`; pid=$2; i=$((i+1))\n");
+                    commands.append("[ -z \"$pid\" ] && sleep 1\n");
+                    commands.append("done\n");
+                    commands.append("if [ -z \"$pid\" ]; then false; else\n");
+                    commands.append("for tid in `ls /proc/$pid/task`; do\n");
+                    commands.append("renice ").append(profile.nice).append(" $tid\n");
+                    commands.append(String.format(ionice, "$tid"));
+                    commands.append("done; fi\n");
+                } else {
+                    int pid = getPid(process);
+                    if (pid <= 0)
+                        return;
+
+                    // Priorities are per thread, new threads inherit them from their creator.
+                    for (int tid : getThreadIds(pid)) {
+                        try {
+                            android.os.Process.setThreadPriority(tid, profile.nice);
+                        } catch (IllegalArgumentException | SecurityException e) {
+                            Log.w(TAG_NICE, "Failed to set priority of thread " + tid, e);
                         }
-                    } catch (IOException e) {
-                        Log.w(TAG_NICE, "Failed to close shell stream", e);
+                        commands.append(String.format(ionice, tid));
+                        threads++;
                     }
-                    if (nice != null) {
-                        nice.destroy();
-                    }
-                    if (ret != 0) {
-                        Log.e(TAG_NICE, "Failed to set ionice " + Integer.toString(ret));
+                }
+                int ret = runShell(commands.toString(), root);
+                if (ret == 0) {
+                    Log.i(TAG_NICE, "Applied scheduling profile " + profile + " to " +
+                            ((threads > 0)
+                                    ? threads + " threads"
+                                    : "all threads of libsyncthing.so"));
+                } else {
+                    Log.e(TAG_NICE, "Failed to apply scheduling profile " + profile +
+                            ", exit code " + ret);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the ids of all threads of the given process.
+     */
+    private static List<Integer> getThreadIds(int pid) {
+        List<Integer> tids = new ArrayList<>();
+        String[] tasks = new File("/proc/" + pid + "/task").list();
+        if (tasks == null)
+            return tids;
+
+        for (String task : tasks) {
+            try {
+                tids.add(Integer.parseInt(task));
+            } catch (NumberFormatException e) {
+                Log.w(TAG_NICE, "Invalid thread id " + task, e);
+            }
+        }
+        return tids;
+    }
+
+    /**
+     * Runs commands in {@link #mShell}, which is opened on first use, and returns the exit code
+     * of the last command.
+     *
+     * The shell is kept open so that changing the profile does not start a new (su) process.
+     */
+    private int runShell(String commands, boolean root) {
+        if (mShell != null && (!mShell.isRunning() || mShellRoot != root))
+            closeShell();
+        if (mShell == null) {
+            mShellRoot = root;
+            mShell = new Shell.Builder()
+                    .setShell((root) ? "su" : "sh")
+                    .setAutoHandler(false)
+                    .setOnSTDERRLineListener(new StreamGobbler.OnLineListener() {
+                        @Override
+                        public void onLine(String line) {
+                            Log.w(TAG_NICE, line);
+                        }
+                    })
+                    .open();
+        }
+
+        final int[] ret = {1};
+        mShell.addCommand(commands, 0, new Shell.OnCommandResultListener() {
+            @Override
+            public void onCommandResult(int commandCode, int exitCode, List<String> output) {
+                ret[0] = exitCode;
+            }
+        });
+        if (!mShell.waitForIdle()) {
+            Log.w(TAG_NICE, "Interrupted while waiting for shell");
+            closeShell();
+            return 1;
+        }
+        return ret[0];
+    }
+
+    /**
+     * Closes {@link #mShell} if it is open. Must be called on {@link #mSchedulingExecutor}.
+     */
+    private void closeShell() {
+        if (mShell == null)
+            return;
+
+        mShell.close();
+        mShell = null;
+    }
+
+    /**
+     * Stops syncthing. Same as {@link #killSyncthing(RestApi, OnSyncthingKilledListener)}
+     * without a graceful shutdown or listener.
+     */
+    public void killSyncthing() {
+        killSyncthing(null, null);
+    }
+
+    /**
+     * Stops the syncthing process started by this class in the background, and notifies
+     * listener once it has exited.
+     *
+     * The process is first asked to shut down via api (if not null), then sent SIGINT and
+     * finally SIGKILL (see {@link #stop}). If no process was started by this class, running
+     * syncthing processes are looked up and killed instead.
+     *
+     * @param listener Called on the main thread when done, may be null.
+     */
+    public void killSyncthing(final RestApi api, final OnSyncthingKilledListener listener) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mKillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean exited = killSyncthingBlocking(api);
+                if (listener == null)
+                    return;
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onSyncthingKilled(exited);
                     }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops syncthing on the calling thread, and returns true if it has exited.
+     */
+    private boolean killSyncthingBlocking(final RestApi api) {
+        final RunningProcess running = mSyncthing.get();
+        if (running == null) {
+            killSyncthingProcesses();
+            return true;
+        }
+
+        running.stopping = true;
+        long start = SystemClock.elapsedRealtime();
+        StopMethod method = stop(new StopSteps() {
+            @Override
+            public boolean requestShutdown(long timeout) {
+                return api != null && api.requestShutdown(timeout);
+            }
+
+            @Override
+            public boolean interrupt() {
+                int pid = getPid(running.process);
+                // With root, the process is su, which ignores signals from us.
+                if (pid <= 0 || useRoot())
+                    return false;
+
+                android.os.Process.sendSignal(pid, SIGINT);
+                return true;
+            }
+
+            @Override
+            public void destroy() {
+                running.process.destroy();
+            }
+
+            @Override
+            public boolean awaitExit(long timeout) {
+                try {
+                    return running.exited.await(timeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Log.w(TAG_KILL, "Interrupted while waiting for syncthing to exit", e);
+                    return false;
                 }
             }
-        }.start();
+        });
+        if (method != null) {
+            Log.i(TAG_KILL, "Syncthing stopped by " + method + " after " +
+                    (SystemClock.elapsedRealtime() - start) + " ms");
+            return true;
+        }
+
+        Log.w(TAG_KILL, "Syncthing did not exit, looking for processes");
+        killSyncthingProcesses();
+        return running.exited.getCount() == 0;
+    }
+
+    /**
+     * Ends a process with a shutdown request, then SIGINT and finally SIGKILL, each with its own
+     * deadline. All steps together take at most 4 seconds.
+     *
+     * @return The step that ended the process, or null if it did not exit.
+     */
+    public static StopMethod stop(StopSteps steps) {
+        long start = SystemClock.elapsedRealtime();
+        if (steps.requestShutdown(GRACEFUL_TIMEOUT) &&
+                steps.awaitExit(start + GRACEFUL_TIMEOUT - SystemClock.elapsedRealtime()))
+            return StopMethod.SHUTDOWN_REQUEST;
+
+        if (steps.interrupt() && steps.awaitExit(SIGINT_TIMEOUT))
+            return StopMethod.SIGINT;
+
+        steps.destroy();
+        if (steps.awaitExit(SIGKILL_TIMEOUT))
+            return StopMethod.SIGKILL;
+
+        return null;
     }
 
     /**
-     * Look for running libsyncthing.so processes and kill them.
+     * Returns the pid of process, or -1 if it is not available.
+     */
+    private static int getPid(Process process) {
+        try {
+            Field f = process.getClass().getDeclaredField("pid");
+            f.setAccessible(true);
+            return f.getInt(process);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            Log.w(TAG_KILL, "Failed to get pid of syncthing", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Look for running libsyncthing.so processes and kill them, eg if they were left by an
+     * earlier app version or could not be signalled directly because they run as root.
      * Try a SIGINT first, then try again with SIGKILL.
      */
-    public void killSyncthing() {
+    private void killSyncthingProcesses() {
         for (int i = 0; i < 2; i++) {
             Process ps = null;
             DataOutputStream psOut = null;
@@ -289,34 +677,4 @@ public class SyncthingRunnable implements Runnable {
         }
     }
 
-    /**
-     * Logs the outputs of a stream to logcat and mNativeLog.
-     *
-     * @param is The stream to log.
-     * @param priority The priority level.
-     * @param saveLog True if the log should be stored to {@link #mErrorLog}.
-     */
-    private Thread log(final InputStream is, final int priority, final boolean saveLog) {
-        Thread t = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    InputStreamReader isr = new InputStreamReader(is, "UTF-8");
-                    BufferedReader br = new BufferedReader(isr);
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        Log.println(priority, TAG_NATIVE, line);
-
-                        if (saveLog)
-                            mErrorLog += line + "\n";
-                    }
-                } catch (IOException e) {
-                    Log.w(TAG, "Failed to read Syncthing's command line output", e);
-                }
-            }
-        });
-        t.start();
-        return t;
-    }
-
 }
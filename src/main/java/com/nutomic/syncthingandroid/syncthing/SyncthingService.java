@@ -5,6 +5,7 @@ import android.app.AlertDialog;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -13,7 +14,9 @@ import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
@@ -26,6 +29,7 @@ import com.nutomic.syncthingandroid.activities.SettingsActivity;
 import com.nutomic.syncthingandroid.util.ConfigXml;
 import com.nutomic.syncthingandroid.util.FolderObserver;
 import com.nutomic.syncthingandroid.util.PRNGFixes;
+import com.nutomic.syncthingandroid.util.WatchBudget;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -33,10 +37,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Holds the native syncthing instance and provides an API to access it.
@@ -58,7 +67,7 @@ public class SyncthingService extends Service implements
 
 
     /**
-     * Interval in ms at which the GUI is updated (eg {@link com.nutomic.syncthingandroid.fragments.DrawerFragment}).
+     * Interval in ms at which {@link StatusRepository} polls status for the GUI.
      */
     public static final int GUI_UPDATE_INTERVAL = 10000;
 
@@ -104,7 +113,17 @@ public class SyncthingService extends Service implements
 
     private EventProcessor mEventProcessor;
 
-    private LinkedList<FolderObserver> mObservers = new LinkedList<>();
+    private final StatusRepository mStatusRepository = new StatusRepository(this);
+
+    /**
+     * Observers for all folders, by folder id.
+     */
+    private final Map<String, FolderObserver> mObservers = new HashMap<>();
+
+    /**
+     * Runs {@link #updateFolderObservers} updates one after the other.
+     */
+    private final ExecutorService mObserverExecutor = Executors.newSingleThreadExecutor();
 
     private final SyncthingServiceBinder mBinder = new SyncthingServiceBinder(this);
 
@@ -149,8 +168,30 @@ public class SyncthingService extends Service implements
 
     private DeviceStateHolder mDeviceStateHolder;
 
+    /**
+     * Switches the scheduling profile of syncthing when charging or screen state change.
+     */
+    private final BroadcastReceiver mPowerStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mDeviceStateHolder.updatePowerState(intent);
+            updateSchedulingProfile();
+        }
+    };
+
     private SyncthingRunnable mRunnable;
 
+    /**
+     * Time in ms from starting syncthing until the web GUI was available, or -1.
+     */
+    private long mTimeToReady = -1;
+
+    /**
+     * Number of calls to {@link #shutdown}, so that only the latest one continues once
+     * syncthing has exited.
+     */
+    private int mShutdownCount = 0;
+
     /**
      * Handles intents, either {@link #ACTION_RESTART}, or intents having
      * {@link DeviceStateHolder#EXTRA_HAS_WIFI} or {@link DeviceStateHolder#EXTRA_IS_CHARGING}
@@ -162,16 +203,22 @@ public class SyncthingService extends Service implements
             return START_STICKY;
 
         if (ACTION_RESTART.equals(intent.getAction()) && mCurrentState == State.ACTIVE) {
-            shutdown();
+            shutdown(null);
             mCurrentState = State.INIT;
             updateState();
         } else if (ACTION_RESET.equals(intent.getAction())) {
-            shutdown();
-            new SyncthingRunnable(this, SyncthingRunnable.Command.reset).run();
-            mCurrentState = State.INIT;
-            updateState();
+            shutdown(new Runnable() {
+                @Override
+                public void run() {
+                    new SyncthingRunnable(SyncthingService.this, SyncthingRunnable.Command.reset)
+                            .run();
+                    mCurrentState = State.INIT;
+                    updateState();
+                }
+            });
         } else if (mCurrentState != State.INIT) {
             mDeviceStateHolder.update(intent);
+            updateSchedulingProfile();
             updateState();
         }
         return START_STICKY;
@@ -207,11 +254,6 @@ public class SyncthingService extends Service implements
                 return;
             }
 
-            // HACK: Make sure there is no syncthing binary left running from an improper
-            // shutdown (eg Play Store update).
-            // NOTE: This will log an exception if syncthing is not actually running.
-            shutdown();
-
             Log.i(TAG, "Starting syncthing according to current state and preferences");
             mConfig = null;
             try {
@@ -223,16 +265,16 @@ public class SyncthingService extends Service implements
 
             if (mConfig != null) {
                 mCurrentState = State.STARTING;
-
-                if (mApi != null)
-                    registerOnWebGuiAvailableListener(mApi);
-                if (mEventProcessor != null)
-                    registerOnWebGuiAvailableListener(mEventProcessor);
-                new PollWebGuiAvailableTaskImpl(getFilesDir() + "/" + HTTPS_CERT_FILE)
-                        .execute(mConfig.getWebGuiUrl());
-                mRunnable = new SyncthingRunnable(this, SyncthingRunnable.Command.main);
-                new Thread(mRunnable).start();
-                updateNotification();
+                mTimeToReady = -1;
+                // HACK: Make sure there is no syncthing binary left running from an improper
+                // shutdown (eg Play Store update), and only start once it has exited.
+                // NOTE: This will log an exception if syncthing is not actually running.
+                shutdown(new Runnable() {
+                    @Override
+                    public void run() {
+                        startSyncthing();
+                    }
+                });
             }
         }
         // Stop syncthing.
@@ -243,11 +285,37 @@ public class SyncthingService extends Service implements
             Log.i(TAG, "Stopping syncthing according to current state and preferences");
             mCurrentState = State.DISABLED;
 
-            shutdown();
+            shutdown(null);
         }
         onApiChange();
     }
 
+    /**
+     * Starts the syncthing binary and polls until its web GUI is available.
+     */
+    private void startSyncthing() {
+        if (mApi != null)
+            registerOnWebGuiAvailableListener(mApi);
+        if (mEventProcessor != null)
+            registerOnWebGuiAvailableListener(mEventProcessor);
+        PollWebGuiAvailableTask poll =
+                new PollWebGuiAvailableTaskImpl(getFilesDir() + "/" + HTTPS_CERT_FILE);
+        mRunnable = new SyncthingRunnable(this, SyncthingRunnable.Command.main);
+        mRunnable.setOnApiListeningListener(poll);
+        mRunnable.setSchedulingProfile(mDeviceStateHolder.getSchedulingProfile());
+        poll.execute(mConfig.getWebGuiUrl());
+        new Thread(mRunnable).start();
+        updateNotification();
+    }
+
+    /**
+     * Applies the scheduling profile for the current device state to syncthing.
+     */
+    private void updateSchedulingProfile() {
+        if (mRunnable != null)
+            mRunnable.setSchedulingProfile(mDeviceStateHolder.getSchedulingProfile());
+    }
+
     private boolean isAllowedWifiConnected() {
         boolean wifiConnected = mDeviceStateHolder.isWifiConnected();
         if (wifiConnected) {
@@ -334,8 +402,15 @@ public class SyncthingService extends Service implements
 
         mDeviceStateHolder = new DeviceStateHolder(SyncthingService.this);
         registerReceiver(mDeviceStateHolder, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        IntentFilter powerState = new IntentFilter();
+        powerState.addAction(Intent.ACTION_POWER_CONNECTED);
+        powerState.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        powerState.addAction(Intent.ACTION_SCREEN_ON);
+        powerState.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(mPowerStateReceiver, powerState);
         new StartupTask(sp.getString("gui_user",""), sp.getString("gui_password","")).execute();
         sp.registerOnSharedPreferenceChangeListener(this);
+        registerOnApiChangeListener(mStatusRepository);
     }
 
     /**
@@ -379,34 +454,27 @@ public class SyncthingService extends Service implements
                 public void onApiAvailable() {
                     mCurrentState = State.ACTIVE;
                     onApiChange();
-                    new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            for (RestApi.Folder r : mApi.getFolders()) {
-                                try {
-                                    mObservers.add(new FolderObserver(mApi, r));
-                                } catch (FolderObserver.FolderNotExistingException e) {
-                                    Log.w(TAG, "Failed to add observer for folder", e);
-                                } catch (StackOverflowError e) {
-                                    Log.w(TAG, "Failed to add folder observer", e);
-                                    Toast.makeText(SyncthingService.this,
-                                            R.string.toast_folder_observer_stack_overflow,
-                                            Toast.LENGTH_LONG)
-                                            .show();
-                                }
-                            }
-                        }
-                    }).start();
+                    updateFolderObservers();
+                }
+
+                @Override
+                public void onApiFailed() {
+                    mCurrentState = State.ERROR;
+                    onApiChange();
                 }
             }, new RestApi.OnConfigChangedListener() {
                 @Override
                 public void onConfigChanged() {
                     onApiChange();
+                    // Folder changes are applied without restart.
+                    if (mCurrentState == State.ACTIVE)
+                        updateFolderObservers();
                 }
             });
 
             mEventProcessor = new EventProcessor(SyncthingService.this, mApi);
 
+            registerOnApiChangeListener(mApi);
             registerOnWebGuiAvailableListener(mApi);
             registerOnWebGuiAvailableListener(mEventProcessor);
             Log.i(TAG, "Web GUI will be available at " + mConfig.getWebGuiUrl());
@@ -426,17 +494,43 @@ public class SyncthingService extends Service implements
     public void onDestroy() {
         super.onDestroy();
         Log.i(TAG, "Shutting down service");
-        shutdown();
+        unregisterReceiver(mPowerStateReceiver);
+        shutdown(null);
+        if (mEventProcessor != null)
+            mEventProcessor.getMediaIndexer().quit();
+        unregisterOnApiChangeListener(mStatusRepository);
+        if (mApi != null)
+            unregisterOnApiChangeListener(mApi);
+        mStatusRepository.shutdown();
+        mObserverExecutor.shutdown();
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(this);
         sp.unregisterOnSharedPreferenceChangeListener(this);
     }
 
-    private void shutdown() {
+    /**
+     * Stops syncthing in the background.
+     *
+     * @param onStopped Run on the main thread once syncthing has exited, unless shutdown is
+     *                  called again before that. May be null.
+     */
+    private void shutdown(final Runnable onStopped) {
+        final int shutdownCount = ++mShutdownCount;
         if (mEventProcessor != null)
             mEventProcessor.shutdown();
 
-        if (mRunnable != null)
-            mRunnable.killSyncthing();
+        if (mRunnable != null) {
+            mRunnable.killSyncthing(mApi, new SyncthingRunnable.OnSyncthingKilledListener() {
+                @Override
+                public void onSyncthingKilled(boolean exited) {
+                    if (!exited)
+                        Log.w(TAG, "Syncthing may still be running");
+                    if (onStopped != null && shutdownCount == mShutdownCount)
+                        onStopped.run();
+                }
+            });
+        } else if (onStopped != null) {
+            onStopped.run();
+        }
 
         if (mApi != null)
             mApi.shutdown();
@@ -444,10 +538,83 @@ public class SyncthingService extends Service implements
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         nm.cancel(NOTIFICATION_ACTIVE);
 
-        for (FolderObserver ro : mObservers) {
-            ro.stopWatching();
+        synchronized (mObservers) {
+            for (FolderObserver ro : mObservers.values()) {
+                ro.stopWatching();
+            }
+            mObservers.clear();
         }
-        mObservers.clear();
+    }
+
+    /**
+     * Starts observers for new folders, and replaces those of changed folders.
+     *
+     * Runs on {@link #mObserverExecutor}, as starting an observer traverses the whole folder.
+     * {@link #mObservers} is only locked while observers are added or removed, not during the
+     * traversal.
+     */
+    private void updateFolderObservers() {
+        final RestApi api = mApi;
+        final List<RestApi.Folder> folders = api.getFolders();
+        mObserverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Folders are walked in parallel.
+                List<FolderObserver> added = new ArrayList<>();
+                synchronized (mObservers) {
+                    Map<String, RestApi.Folder> current = new HashMap<>();
+                    for (RestApi.Folder f : folders) {
+                        current.put(f.id, f);
+                    }
+                    for (Iterator<FolderObserver> it = mObservers.values().iterator();
+                         it.hasNext(); ) {
+                        FolderObserver ro = it.next();
+                        RestApi.Folder f = current.get(ro.getFolder().id);
+                        if (f == null || !ro.isObserving(f, api)) {
+                            ro.stopWatching();
+                            it.remove();
+                        }
+                    }
+                    for (RestApi.Folder r : folders) {
+                        if (mObservers.containsKey(r.id))
+                            continue;
+
+                        try {
+                            FolderObserver fo =
+                                    new FolderObserver(api, r, WatchBudget.getDefault());
+                            mObservers.put(r.id, fo);
+                            added.add(fo);
+                        } catch (FolderObserver.FolderNotExistingException e) {
+                            Log.w(TAG, "Failed to add observer for folder", e);
+                        }
+                    }
+                }
+
+                boolean overBudget = false;
+                for (FolderObserver fo : added) {
+                    try {
+                        fo.awaitWalk();
+                    } catch (InterruptedException e) {
+                        Log.w(TAG, "Interrupted while starting folder observers", e);
+                        return;
+                    }
+                    Log.i(TAG, "Watching " + fo.getWatchedCount() + " directories in folder " +
+                            fo.getFolder().id + ", " + fo.getUnwatchedCount() +
+                            " directories are rescanned periodically");
+                    overBudget |= fo.getUnwatchedCount() > 0;
+                }
+                if (overBudget) {
+                    new Handler(Looper.getMainLooper()).post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(SyncthingService.this,
+                                    R.string.toast_folder_observer_watch_limit,
+                                    Toast.LENGTH_LONG).show();
+                        }
+                    });
+                }
+            }
+        });
     }
 
     /**
@@ -477,6 +644,21 @@ public class SyncthingService extends Service implements
         return mApi;
     }
 
+    /**
+     * Returns the status repository, which views should use instead of polling {@link #getApi}.
+     */
+    public StatusRepository getStatusRepository() {
+        return mStatusRepository;
+    }
+
+    /**
+     * Returns the time in ms it took from the last start of syncthing until its web GUI was
+     * available, or -1 if it has not been available yet.
+     */
+    public long getTimeToReady() {
+        return mTimeToReady;
+    }
+
     /**
      * Register a listener for the syncthing API state changing.
      *
@@ -512,11 +694,15 @@ public class SyncthingService extends Service implements
             if (mStopScheduled) {
                 mCurrentState = State.DISABLED;
                 onApiChange();
-                shutdown();
+                shutdown(null);
                 mStopScheduled = false;
                 return;
             }
-            Log.i(TAG, "Web GUI has come online at " + mConfig.getWebGuiUrl());
+            // Copies the time measured by this task into the service.
+            SyncthingService.this.mTimeToReady =
+                    PollWebGuiAvailableTaskImpl.this.getTimeToReady();
+            Log.i(TAG, "Web GUI has come online at " + mConfig.getWebGuiUrl() + " after " +
+                    SyncthingService.this.mTimeToReady + " ms");
             mCurrentState = State.STARTING;
             onApiChange();
             for (OnWebGuiAvailableListener listener : mOnWebGuiAvailableListeners) {
@@ -524,6 +710,18 @@ public class SyncthingService extends Service implements
             }
             mOnWebGuiAvailableListeners.clear();
         }
+
+        @Override
+        protected void onCancelled(Void aVoid) {
+            if (mStopScheduled) {
+                onPostExecute(aVoid);
+                return;
+            }
+            Log.w(TAG, "Web GUI did not come online at " + mConfig.getWebGuiUrl());
+            mCurrentState = State.ERROR;
+            onApiChange();
+            mOnWebGuiAvailableListeners.clear();
+        }
     }
 
     /**
@@ -607,18 +805,25 @@ public class SyncthingService extends Service implements
      */
     public boolean importConfig() {
         mCurrentState = State.DISABLED;
-        shutdown();
-        File config = new File(EXPORT_PATH, ConfigXml.CONFIG_FILE);
-        File privateKey = new File(EXPORT_PATH, PRIVATE_KEY_FILE);
-        File publicKey = new File(EXPORT_PATH, PUBLIC_KEY_FILE);
-        if (!config.exists() || !privateKey.exists() || !publicKey.exists())
+        final File config = new File(EXPORT_PATH, ConfigXml.CONFIG_FILE);
+        final File privateKey = new File(EXPORT_PATH, PRIVATE_KEY_FILE);
+        final File publicKey = new File(EXPORT_PATH, PUBLIC_KEY_FILE);
+        if (!config.exists() || !privateKey.exists() || !publicKey.exists()) {
+            shutdown(null);
             return false;
+        }
 
-        copyFile(config, new File(getFilesDir(), ConfigXml.CONFIG_FILE));
-        copyFile(privateKey, new File(getFilesDir(), PRIVATE_KEY_FILE));
-        copyFile(publicKey, new File(getFilesDir(), PUBLIC_KEY_FILE));
-        mCurrentState = State.INIT;
-        updateState();
+        // Only overwrite the config once syncthing has exited.
+        shutdown(new Runnable() {
+            @Override
+            public void run() {
+                copyFile(config, new File(getFilesDir(), ConfigXml.CONFIG_FILE));
+                copyFile(privateKey, new File(getFilesDir(), PRIVATE_KEY_FILE));
+                copyFile(publicKey, new File(getFilesDir(), PUBLIC_KEY_FILE));
+                mCurrentState = State.INIT;
+                updateState();
+            }
+        });
         return true;
     }
 
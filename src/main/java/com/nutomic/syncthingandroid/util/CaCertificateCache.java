@@ -0,0 +1,127 @@
+package com.nutomic.syncthingandroid.util;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the parsed Syncthing https.pem CA certificate in memory.
+ *
+ * The PEM file is only parsed again if its modification time or size changes (eg after the
+ * config was reset or imported). Certificates that were already verified against the CA are
+ * remembered by fingerprint, so repeated handshakes skip the signature check.
+ */
+public class CaCertificateCache {
+
+    private static final String TAG = "CaCertificateCache";
+
+    private static class Entry {
+        long lastModified;
+        long length;
+        X509Certificate ca;
+        final Set<String> verified = new HashSet<>();
+    }
+
+    private static final Map<String, Entry> sEntries = new HashMap<>();
+
+    private CaCertificateCache() {
+    }
+
+    /**
+     * Returns the CA certificate stored at the given path, reading it only if the file changed.
+     *
+     * @throws CertificateException If the file does not exist or can not be parsed.
+     */
+    public static synchronized X509Certificate getCaCertificate(String httpsCertPath)
+            throws CertificateException {
+        return getEntry(httpsCertPath).ca;
+    }
+
+    /**
+     * Verifies that all certificates in chain are signed by the CA at httpsCertPath.
+     *
+     * @throws CertificateException If a certificate is not signed by the CA.
+     */
+    public static synchronized void verify(String httpsCertPath, X509Certificate[] chain)
+            throws CertificateException {
+        Entry entry = getEntry(httpsCertPath);
+        for (X509Certificate cert : chain) {
+            String fingerprint = getFingerprint(cert);
+            if (entry.verified.contains(fingerprint))
+                continue;
+
+            try {
+                cert.verify(entry.ca.getPublicKey());
+            } catch (NoSuchAlgorithmException|InvalidKeyException|NoSuchProviderException|
+                    SignatureException e) {
+                throw new CertificateException("Untrusted Certificate!", e);
+            }
+            entry.verified.add(fingerprint);
+        }
+    }
+
+    /**
+     * Returns the cache entry for the given path, (re)loading it if the file has changed.
+     */
+    private static Entry getEntry(String httpsCertPath) throws CertificateException {
+        File file = new File(httpsCertPath);
+        Entry entry = sEntries.get(httpsCertPath);
+        if (entry != null && entry.lastModified == file.lastModified() &&
+                entry.length == file.length())
+            return entry;
+
+        entry = new Entry();
+        entry.lastModified = file.lastModified();
+        entry.length = file.length();
+        entry.ca = readCertificate(file);
+        sEntries.put(httpsCertPath, entry);
+        Log.d(TAG, "Loaded CA certificate from " + httpsCertPath);
+        return entry;
+    }
+
+    private static X509Certificate readCertificate(File file) throws CertificateException {
+        InputStream inStream = null;
+        try {
+            inStream = new FileInputStream(file);
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            return (X509Certificate) cf.generateCertificate(inStream);
+        } catch (IOException e) {
+            throw new CertificateException("Untrusted Certificate!", e);
+        } finally {
+            try {
+                if (inStream != null)
+                    inStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+        }
+    }
+
+    private static String getFingerprint(X509Certificate cert) throws CertificateException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(cert.getEncoded());
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new CertificateException(e);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.nutomic.syncthingandroid.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts requests, new connections and TLS handshakes of a pooled HTTPS client.
+ *
+ * Used to verify that requests to the local syncthing instance reuse warm connections.
+ */
+public class ConnectionStats {
+
+    private final AtomicLong mRequests = new AtomicLong();
+
+    private final AtomicLong mConnections = new AtomicLong();
+
+    private final AtomicLong mHandshakes = new AtomicLong();
+
+    private final AtomicLong mResumedHandshakes = new AtomicLong();
+
+    void onRequest() {
+        mRequests.incrementAndGet();
+    }
+
+    void onConnection() {
+        mConnections.incrementAndGet();
+    }
+
+    void onHandshake(boolean resumed) {
+        mHandshakes.incrementAndGet();
+        if (resumed)
+            mResumedHandshakes.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of requests sent over the client.
+     */
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    /**
+     * Returns the number of sockets that were opened.
+     */
+    public long getConnections() {
+        return mConnections.get();
+    }
+
+    /**
+     * Returns the number of requests that were sent over an already open connection.
+     */
+    public long getReusedConnections() {
+        return Math.max(0, mRequests.get() - mConnections.get());
+    }
+
+    /**
+     * Returns the number of completed TLS handshakes, including resumed sessions.
+     */
+    public long getHandshakes() {
+        return mHandshakes.get();
+    }
+
+    /**
+     * Returns the number of TLS handshakes that resumed a cached session.
+     */
+    public long getResumedHandshakes() {
+        return mResumedHandshakes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + getRequests() + ", connections=" + getConnections() +
+                ", reused=" + getReusedConnections() + ", handshakes=" + getHandshakes() +
+                ", resumed=" + getResumedHandshakes();
+    }
+}
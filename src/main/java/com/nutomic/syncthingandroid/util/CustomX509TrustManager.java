@@ -1,26 +1,20 @@
 package com.nutomic.syncthingandroid.util;
 
-import android.util.Log;
-
 import org.apache.http.conn.ssl.SSLSocketFactory;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Socket;
-import java.security.InvalidKeyException;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.SignatureException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.X509TrustManager;
 
 
@@ -41,23 +35,54 @@ public class CustomX509TrustManager implements X509TrustManager {
     public static class CustomSSLSocketFactory extends SSLSocketFactory {
         SSLContext sslContext = SSLContext.getInstance("TLS");
 
+        private final ConnectionStats mStats;
+
         public CustomSSLSocketFactory(SSLContext context)
                 throws KeyManagementException, NoSuchAlgorithmException,
                 KeyStoreException, UnrecoverableKeyException {
+            this(context, null);
+        }
+
+        /**
+         * @param stats Counts new sockets and completed handshakes (may be null).
+         */
+        public CustomSSLSocketFactory(SSLContext context, ConnectionStats stats)
+                throws KeyManagementException, NoSuchAlgorithmException,
+                KeyStoreException, UnrecoverableKeyException {
             super(null);
             sslContext = context;
+            mStats = stats;
         }
 
         @Override
         public Socket createSocket(Socket socket, String host, int port,
                                    boolean autoClose) throws IOException {
-            return sslContext.getSocketFactory().createSocket(socket, host, port,
-                    autoClose);
+            return track(sslContext.getSocketFactory().createSocket(socket, host, port,
+                    autoClose));
         }
 
         @Override
         public Socket createSocket() throws IOException {
-            return sslContext.getSocketFactory().createSocket();
+            return track(sslContext.getSocketFactory().createSocket());
+        }
+
+        /**
+         * Counts the new socket, and whether its handshake resumed a cached session.
+         */
+        private Socket track(Socket socket) {
+            if (mStats == null || !(socket instanceof SSLSocket))
+                return socket;
+
+            mStats.onConnection();
+            final long created = System.currentTimeMillis();
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    // A resumed session keeps the creation time of the original handshake.
+                    mStats.onHandshake(event.getSession().getCreationTime() < created);
+                }
+            });
+            return socket;
         }
     }
 
@@ -78,27 +103,9 @@ public class CustomX509TrustManager implements X509TrustManager {
     @Override
     public void checkServerTrusted(java.security.cert.X509Certificate[] certs,
                                    String authType) throws CertificateException {
-        InputStream inStream = null;
-        try {
-            inStream = new FileInputStream(mHttpsCertPath);
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            X509Certificate ca = (X509Certificate)
-                    cf.generateCertificate(inStream);
-            for (X509Certificate cert : certs) {
-                cert.verify(ca.getPublicKey());
-            }
-        } catch (FileNotFoundException |NoSuchAlgorithmException|InvalidKeyException|
-                NoSuchProviderException |SignatureException e) {
-            throw new CertificateException("Untrusted Certificate!", e);
-        } finally {
-            try {
-                if (inStream != null)
-                    inStream.close();
-            } catch (IOException e) {
-                Log.w(TAG, e);
-            }
-        }
+        CaCertificateCache.verify(mHttpsCertPath, certs);
     }
+
     public X509Certificate[] getAcceptedIssuers() {
         return null;
     }
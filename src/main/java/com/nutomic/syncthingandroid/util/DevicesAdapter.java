@@ -95,15 +95,6 @@ public class DevicesAdapter extends ArrayAdapter<RestApi.Device>
         sort(COMPARATOR);
     }
 
-    /**
-     * Requests new connection info for all devices visible in listView.
-     */
-    public void updateConnections(RestApi api) {
-        for (int i = 0; i < getCount(); i++) {
-            api.getConnections(this);
-        }
-    }
-
     @Override
     public void onReceiveConnections(Map<String, RestApi.Connection> connections) {
         mConnections = connections;
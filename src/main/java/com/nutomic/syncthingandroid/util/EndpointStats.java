@@ -0,0 +1,61 @@
+package com.nutomic.syncthingandroid.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts responses, received bytes and time spent per REST endpoint.
+ */
+public class EndpointStats {
+
+    public static class Counter {
+        public long responses;
+        public long bytes;
+        public long millis;
+
+        @Override
+        public String toString() {
+            return "responses=" + responses + ", bytes=" + bytes + ", millis=" + millis;
+        }
+    }
+
+    private final Map<String, Counter> mCounters = new HashMap<>();
+
+    /**
+     * Adds a decoded response to the counters of the given endpoint.
+     *
+     * @param endpoint The URI of the endpoint, without parameters.
+     * @param bytes Size of the response body.
+     * @param millis Time taken for sending the request and decoding the response.
+     */
+    public synchronized void onResponse(String endpoint, long bytes, long millis) {
+        Counter c = mCounters.get(endpoint);
+        if (c == null) {
+            c = new Counter();
+            mCounters.put(endpoint, c);
+        }
+        c.responses++;
+        c.bytes += bytes;
+        c.millis += millis;
+    }
+
+    /**
+     * Returns a copy of the counters for each endpoint.
+     */
+    public synchronized Map<String, Counter> getCounters() {
+        Map<String, Counter> copy = new HashMap<>();
+        for (Map.Entry<String, Counter> e : mCounters.entrySet()) {
+            Counter c = new Counter();
+            c.responses = e.getValue().responses;
+            c.bytes = e.getValue().bytes;
+            c.millis = e.getValue().millis;
+            copy.put(e.getKey(), c);
+        }
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mCounters.toString();
+    }
+}
@@ -1,38 +1,121 @@
 package com.nutomic.syncthingandroid.util;
 
 import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.nutomic.syncthingandroid.syncthing.RestApi;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.FileFilter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Recursively watches a directory and all subfolders.
+ * Watches a directory and all subfolders.
+ *
+ * Changes to paths that are ignored by .stignore or used internally by syncthing are dropped,
+ * and ignored directories are not watched. The ignore patterns are reloaded when .stignore
+ * changes.
+ *
+ * Directories are walked without recursion by a thread pool that is shared by all observers,
+ * so that multiple folders are walked in parallel. Each directory uses one watch from a
+ * {@link WatchBudget}. Once the budget is used up, the remaining directories are not watched,
+ * and are instead reported as changed every {@link #RESCAN_INTERVAL}.
  */
-public class FolderObserver extends FileObserver {
+public class FolderObserver {
 
     private static final String TAG = "FolderObserver";
 
+    private static final int EVENTS = FileObserver.ATTRIB | FileObserver.CLOSE_WRITE |
+            FileObserver.CREATE | FileObserver.DELETE | FileObserver.DELETE_SELF |
+            FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.MOVE_SELF;
+
+    /**
+     * Interval in ms in which directories without watch are rescanned.
+     */
+    private static final long RESCAN_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    private static final ExecutorService mWalker = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private static final FileFilter DIRECTORY_FILTER = new FileFilter() {
+        @Override
+        public boolean accept(File file) {
+            return file.isDirectory();
+        }
+    };
+
     private final OnFolderFileChangeListener mListener;
 
     private final RestApi.Folder mFolder;
 
-    private final String mPath;
+    private final WatchBudget mBudget;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private volatile IgnoreMatcher mIgnores;
+
+    /**
+     * Observers by directory path, relative to the folder root.
+     */
+    private final Map<String, DirectoryObserver> mWatched = new ConcurrentHashMap<>();
+
+    /**
+     * Directories that are not watched because the budget was used up.
+     */
+    private final Set<String> mUnwatched =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Topmost directories in {@link #mUnwatched}, which are rescanned periodically.
+     */
+    private final Set<String> mUnwatchedRoots =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-    private final ArrayList<FolderObserver> mChilds = new ArrayList<>();
+    /**
+     * Ignored directories that were not walked.
+     */
+    private final Set<String> mSkipped =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Relative paths of walked directories by their canonical path, to stop at symlink cycles.
+     */
+    private final Map<String, String> mVisited = new ConcurrentHashMap<>();
+
+    /**
+     * Number of directories that are queued or being walked. Guarded by this.
+     */
+    private int mPending = 0;
+
+    private volatile boolean mStopped = false;
+
+    private final AtomicBoolean mRescanScheduled = new AtomicBoolean();
+
+    private final AtomicBoolean mReloadScheduled = new AtomicBoolean();
+
+    private final Runnable mRescan = new Runnable() {
+        @Override
+        public void run() {
+            rescan();
+        }
+    };
 
     public interface OnFolderFileChangeListener {
         public void onFolderFileChange(String folderId, String relativePath);
     }
 
-    public FolderObserver(OnFolderFileChangeListener listener, RestApi.Folder folder)
-            throws FolderNotExistingException {
-        this(listener, folder, "");
-    }
-
     public class FolderNotExistingException extends Exception {
 
         private String mPath;
@@ -48,95 +131,334 @@ public class FolderObserver extends FileObserver {
     }
 
     /**
-     * Constructs watcher and starts watching the given directory recursively.
+     * Constructs watcher, and returns once the whole folder is being watched.
+     */
+    public FolderObserver(OnFolderFileChangeListener listener, RestApi.Folder folder)
+            throws FolderNotExistingException {
+        this(listener, folder, WatchBudget.getDefault());
+        try {
+            awaitWalk();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Constructs watcher and starts watching the given folder in the background.
      *
      * @param listener The listener where changes should be sent to.
-     * @param folder The folder where this folder belongs to.
-     * @param path path to the monitored folder, relative to folder root.
+     * @param folder The folder that should be watched.
+     * @param budget Limits the number of directories that are watched.
      */
-    private FolderObserver(OnFolderFileChangeListener listener, RestApi.Folder folder, String path)
-            throws FolderNotExistingException {
-        super(folder.path + "/" + path,
-                ATTRIB | CLOSE_WRITE | CREATE | DELETE | DELETE_SELF | MOVED_FROM |
-                MOVED_TO | MOVE_SELF);
+    public FolderObserver(OnFolderFileChangeListener listener, RestApi.Folder folder,
+                          WatchBudget budget) throws FolderNotExistingException {
         mListener = listener;
         mFolder = folder;
-        mPath = path;
-        Log.v(TAG, "observer created for " + path + " in " + folder.id);
-        startWatching();
+        mBudget = budget;
+        File root = new File(folder.path);
+        if (!root.exists()) {
+            throw new FolderNotExistingException(root.getAbsolutePath());
+        }
+        mIgnores = IgnoreMatcher.load(root);
+        walk("", true);
+    }
+
+    /**
+     * Blocks until all directories that were found so far are walked.
+     */
+    public synchronized void awaitWalk() throws InterruptedException {
+        while (mPending > 0) {
+            wait();
+        }
+    }
 
-        File currentFolder = new File(folder.path, path);
-        if (!currentFolder.exists()) {
-            throw new FolderNotExistingException(currentFolder.getAbsolutePath());
+    /**
+     * Walks the given directory and all its subdirectories on {@link #mWalker}.
+     *
+     * @param path Path relative to the folder root.
+     * @param parentWatched False if the parent directory is not watched.
+     */
+    private void walk(final String path, final boolean parentWatched) {
+        synchronized (this) {
+            mPending++;
         }
-        File[] directories = currentFolder.listFiles(new FilenameFilter() {
+        mWalker.execute(new Runnable() {
             @Override
-            public boolean accept(File current, String name) {
-                return new File(current, name).isDirectory();
+            public void run() {
+                try {
+                    walkDirectory(path, parentWatched);
+                } finally {
+                    synchronized (FolderObserver.this) {
+                        if (--mPending == 0)
+                            FolderObserver.this.notifyAll();
+                    }
+                }
             }
         });
+    }
+
+    /**
+     * Watches a single directory if the budget allows, and queues its subdirectories.
+     */
+    private void walkDirectory(String path, boolean parentWatched) {
+        if (mStopped)
+            return;
+
+        if (mIgnores.isSkippedDirectory(path)) {
+            mSkipped.add(path);
+            return;
+        }
+
+        File directory = new File(mFolder.path, path);
+        try {
+            if (mVisited.put(directory.getCanonicalPath(), path) != null)
+                return;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to resolve " + directory, e);
+            return;
+        }
 
+        boolean watched = mBudget.tryAcquire();
+        if (watched) {
+            // Watch before listing, so that directories created in between are noticed.
+            DirectoryObserver observer = new DirectoryObserver(path);
+            observer.startWatching();
+            mWatched.put(path, observer);
+            Log.v(TAG, "observer created for " + path + " in " + mFolder.id);
+            // Cleans up if stopWatching() ran concurrently.
+            if (mStopped && mWatched.remove(path) != null) {
+                observer.stopWatching();
+                mBudget.release();
+                return;
+            }
+        } else {
+            mUnwatched.add(path);
+            if (parentWatched) {
+                mUnwatchedRoots.add(path);
+                scheduleRescan();
+            }
+        }
+
+        File[] directories = directory.listFiles(DIRECTORY_FILTER);
         if (directories != null) {
             for (File f : directories) {
-                mChilds.add(new FolderObserver(mListener, mFolder, path + "/" + f.getName()));
+                walk(path + "/" + f.getName(), watched);
             }
         }
     }
 
     /**
-     * Handles incoming events for changed files.
+     * Stops watching the given directory and all its subdirectories, eg after they were deleted.
+     */
+    private void removeSubtree(String path) {
+        // Most events are for files, which have nothing to remove.
+        if (!mWatched.containsKey(path) && !mUnwatched.contains(path) && !mSkipped.contains(path))
+            return;
+
+        for (Iterator<Map.Entry<String, DirectoryObserver>> it = mWatched.entrySet().iterator();
+             it.hasNext(); ) {
+            Map.Entry<String, DirectoryObserver> e = it.next();
+            if (isInside(e.getKey(), path)) {
+                it.remove();
+                e.getValue().stopWatching();
+                mBudget.release();
+            }
+        }
+        forgetSubtree(path);
+    }
+
+    /**
+     * Removes all information about unwatched directories below path, so it can be walked again.
+     */
+    private void forgetSubtree(String path) {
+        for (Iterator<String> it = mUnwatched.iterator(); it.hasNext(); ) {
+            if (isInside(it.next(), path))
+                it.remove();
+        }
+        for (Iterator<String> it = mUnwatchedRoots.iterator(); it.hasNext(); ) {
+            if (isInside(it.next(), path))
+                it.remove();
+        }
+        for (Iterator<String> it = mSkipped.iterator(); it.hasNext(); ) {
+            if (isInside(it.next(), path))
+                it.remove();
+        }
+        for (Iterator<String> it = mVisited.values().iterator(); it.hasNext(); ) {
+            String visited = it.next();
+            if (isInside(visited, path) && !mWatched.containsKey(visited))
+                it.remove();
+        }
+    }
+
+    /**
+     * Reads .stignore again, updates which directories are watched, and requests a scan of the
+     * whole folder so that syncthing applies the new patterns.
+     *
+     * Does nothing if a reload is already queued, as that one reads the latest file.
      */
-    @Override
-    public void onEvent(int event, String path) {
-        // Ignore some weird events that we may receive.
-        event &= FileObserver.ALL_EVENTS;
-        if (event == 0)
+    private void reloadIgnores() {
+        if (!mReloadScheduled.compareAndSet(false, true))
             return;
 
-        File fullPath = (path != null)
-                ? new File(mPath, path)
-                : new File(mPath);
-
-        Log.v(TAG, "Received inotify event " + Integer.toHexString(event) + " at " +
-                fullPath.getAbsolutePath());
-        switch (event) {
-            case MOVED_FROM:
-                // fall through
-            case DELETE_SELF:
-                // fall through
-            case DELETE:
-                for (FolderObserver c : mChilds) {
-                    if (c.mPath.equals(path)) {
-                        mChilds.remove(c);
-                        break;
+        mWalker.execute(new Runnable() {
+            @Override
+            public void run() {
+                mReloadScheduled.set(false);
+                if (mStopped)
+                    return;
+
+                IgnoreMatcher ignores = IgnoreMatcher.load(new File(mFolder.path));
+                mIgnores = ignores;
+                for (String path : new ArrayList<>(mWatched.keySet())) {
+                    if (mWatched.containsKey(path) && ignores.isSkippedDirectory(path)) {
+                        removeSubtree(path);
+                        mSkipped.add(path);
                     }
                 }
-                mListener.onFolderFileChange(mFolder.id, fullPath.getPath());
-                break;
-            case MOVED_TO:
-                // fall through
-            case CREATE:
-                if (fullPath.isDirectory()) {
-                    try {
-                        mChilds.add(new FolderObserver(mListener, mFolder, path));
-                    } catch (FolderNotExistingException e) {
-                        Log.w(TAG, "Failed to add listener for nonexisting folder", e);
+                for (String path : new ArrayList<>(mSkipped)) {
+                    if (!ignores.isSkippedDirectory(path)) {
+                        mSkipped.remove(path);
+                        walk(path, true);
                     }
                 }
-                // fall through
-            default:
-                mListener.onFolderFileChange(mFolder.id, fullPath.getPath());
+                mListener.onFolderFileChange(mFolder.id, "");
+            }
+        });
+    }
+
+    private static boolean isInside(String path, String parent) {
+        return path.equals(parent) || path.startsWith(parent + "/");
+    }
+
+    private void scheduleRescan() {
+        if (mRescanScheduled.compareAndSet(false, true))
+            mHandler.postDelayed(mRescan, RESCAN_INTERVAL);
+    }
+
+    /**
+     * Reports all unwatched directories as changed, and tries to watch them again.
+     */
+    private void rescan() {
+        mRescanScheduled.set(false);
+        if (mStopped)
+            return;
+
+        for (String path : new ArrayList<>(mUnwatchedRoots)) {
+            if (mBudget.isAvailable()) {
+                forgetSubtree(path);
+                walk(path, true);
+            }
+            if (!mIgnores.isIgnored(path))
+                mListener.onFolderFileChange(mFolder.id, path);
         }
+        if (!mUnwatchedRoots.isEmpty())
+            scheduleRescan();
+    }
+
+    /**
+     * Returns the folder that is watched.
+     */
+    public RestApi.Folder getFolder() {
+        return mFolder;
+    }
+
+    /**
+     * Returns true if this observer watches folder as given, and reports to listener. Otherwise,
+     * the observer has to be replaced.
+     */
+    public boolean isObserving(RestApi.Folder folder, OnFolderFileChangeListener listener) {
+        return mListener == listener && mFolder.id.equals(folder.id) &&
+                mFolder.path.equals(folder.path);
+    }
+
+    /**
+     * Returns the number of directories that are watched.
+     */
+    public int getWatchedCount() {
+        return mWatched.size();
+    }
+
+    /**
+     * Returns the number of directories that are only rescanned periodically.
+     */
+    public int getUnwatchedCount() {
+        return mUnwatched.size();
     }
 
     /**
-     * Recursively stops watching the directory.
+     * Stops watching all directories.
      */
-    @Override
     public void stopWatching() {
-        super.stopWatching();
-        for (FolderObserver ro : mChilds) {
-            ro.stopWatching();
+        mStopped = true;
+        mHandler.removeCallbacks(mRescan);
+        for (Iterator<DirectoryObserver> it = mWatched.values().iterator(); it.hasNext(); ) {
+            DirectoryObserver o = it.next();
+            it.remove();
+            o.stopWatching();
+            mBudget.release();
         }
+        mUnwatched.clear();
+        mUnwatchedRoots.clear();
+        mSkipped.clear();
+        mVisited.clear();
     }
+
+    /**
+     * Watches a single directory.
+     */
+    private class DirectoryObserver extends FileObserver {
+
+        private final String mPath;
+
+        /**
+         * @param path path to the monitored directory, relative to folder root.
+         */
+        public DirectoryObserver(String path) {
+            super(mFolder.path + "/" + path, EVENTS);
+            mPath = path;
+        }
+
+        /**
+         * Handles incoming events for changed files.
+         */
+        @Override
+        public void onEvent(int event, String path) {
+            // Ignore some weird events that we may receive.
+            event &= FileObserver.ALL_EVENTS;
+            if (event == 0 || mStopped)
+                return;
+
+            String fullPath = (path != null)
+                    ? mPath + "/" + path
+                    : mPath;
+
+            Log.v(TAG, "Received inotify event " + Integer.toHexString(event) + " at " +
+                    fullPath);
+            switch (event) {
+                case MOVED_FROM:
+                    // fall through
+                case DELETE_SELF:
+                    // fall through
+                case DELETE:
+                    removeSubtree(fullPath);
+                    break;
+                case MOVED_TO:
+                    // fall through
+                case CREATE:
+                    if (new File(mFolder.path, fullPath).isDirectory())
+                        walk(fullPath, true);
+                    break;
+            }
+            // Only reload once the file was written, not for every event while saving it.
+            if (fullPath.equals("/" + IgnoreMatcher.IGNORE_FILE) &&
+                    (event & (FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO |
+                            FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0)
+                reloadIgnores();
+            if (mIgnores.isIgnored(fullPath))
+                return;
+
+            mListener.onFolderFileChange(mFolder.id, fullPath);
+        }
+    }
+
 }
@@ -17,6 +17,7 @@ import com.nutomic.syncthingandroid.syncthing.RestApi;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static android.view.View.GONE;
 import static android.view.View.VISIBLE;
@@ -120,12 +121,13 @@ public class FoldersAdapter extends ArrayAdapter<RestApi.Folder>
     }
 
     /**
-     * Requests updated model info from the api for all visible items.
+     * Replaces model info for all items, eg with the models from
+     * {@link com.nutomic.syncthingandroid.syncthing.StatusRepository}.
      */
-    public void updateModel(RestApi api) {
-        for (int i = 0; i < getCount(); i++) {
-            api.getModel(getItem(i).id, this);
-        }
+    public void setModels(Map<String, RestApi.Model> models) {
+        mModels.clear();
+        mModels.putAll(models);
+        notifyDataSetChanged();
     }
 
     @Override
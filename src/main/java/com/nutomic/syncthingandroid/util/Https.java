@@ -2,18 +2,34 @@ package com.nutomic.syncthingandroid.util;
 
 import android.util.Log;
 
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
 
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
@@ -26,6 +42,32 @@ public class Https {
 
     private static final String TAG = "HTTPS";
 
+    /**
+     * Maximum number of pooled connections to the local syncthing instance.
+     */
+    private static final int MAX_CONNECTIONS = 8;
+
+    /**
+     * Time in ms that an idle connection is kept open if the server does not specify it.
+     */
+    private static final long KEEP_ALIVE_DURATION = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Timeout in ms for establishing a new connection.
+     */
+    private static final int CONNECTION_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Timeout in ms for reading from a connection. Must be longer than the timeout of event
+     * long polls (see {@link com.nutomic.syncthingandroid.syncthing.EventProcessor}).
+     */
+    private static final int SOCKET_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(90);
+
+    /**
+     * Number of TLS sessions cached for resumption.
+     */
+    private static final int SESSION_CACHE_SIZE = 16;
+
     /**
      * Create a HTTPClient that verifies a custom PEM certificate
      *
@@ -50,4 +92,62 @@ public class Https {
         }
         return null;
     }
+
+    /**
+     * Create a long-lived HttpClient that verifies a custom PEM certificate.
+     *
+     * Connections are kept in a thread safe pool and reused between requests, and TLS sessions
+     * are resumed when a new connection is required. Returned connections must be released by
+     * consuming the response entity.
+     *
+     * @param httpsCertPath refers to the filepath of a SSL/TLS PEM certificate.
+     * @param stats Counts requests, connections and handshakes of the client.
+     */
+    public static HttpClient createPooledHttpsClient(String httpsCertPath,
+                                                     final ConnectionStats stats) {
+        try {
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(null, new TrustManager[] { new CustomX509TrustManager(httpsCertPath) },
+                    new SecureRandom());
+            ctx.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            SSLSocketFactory ssf = new CustomX509TrustManager.CustomSSLSocketFactory(ctx, stats);
+            ssf.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+            SchemeRegistry sr = new SchemeRegistry();
+            sr.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            sr.register(new Scheme("https", ssf, 443));
+
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(MAX_CONNECTIONS));
+
+            DefaultHttpClient client = new DefaultHttpClient(
+                    new ThreadSafeClientConnManager(params, sr), params);
+            client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                private final ConnectionKeepAliveStrategy mDefault =
+                        new DefaultConnectionKeepAliveStrategy();
+
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = mDefault.getKeepAliveDuration(response, context);
+                    return (duration > 0) ? duration : KEEP_ALIVE_DURATION;
+                }
+            });
+            client.addRequestInterceptor(new HttpRequestInterceptor() {
+                @Override
+                public void process(HttpRequest request, HttpContext context) {
+                    stats.onRequest();
+                }
+            });
+            return client;
+        } catch (NoSuchAlgorithmException|KeyManagementException|KeyStoreException|
+                UnrecoverableKeyException e) {
+            Log.w(TAG, e);
+        }
+        return null;
+    }
 }
@@ -0,0 +1,241 @@
+package com.nutomic.syncthingandroid.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches paths against the patterns in a folder's .stignore file, and against files that
+ * syncthing uses internally.
+ *
+ * Supports the same syntax as syncthing: comments with //, #include, negation with !, the
+ * (?i) and (?d) prefixes, patterns anchored with a leading /, and the wildcards *, **, ? and
+ * character classes. The first matching pattern decides.
+ *
+ * @see <a href="https://docs.syncthing.net/users/ignoring.html">Ignoring Files</a>
+ */
+public class IgnoreMatcher {
+
+    private static final String TAG = "IgnoreMatcher";
+
+    public static final String IGNORE_FILE = ".stignore";
+
+    private static class Rule {
+        final Pattern pattern;
+        final boolean include;
+
+        Rule(Pattern pattern, boolean include) {
+            this.pattern = pattern;
+            this.include = include;
+        }
+    }
+
+    private final List<Rule> mRules = new ArrayList<>();
+
+    private boolean mHasNegations = false;
+
+    /**
+     * Creates a matcher that only matches internal files.
+     */
+    public IgnoreMatcher() {
+    }
+
+    /**
+     * Reads the .stignore file in the given folder, or returns a matcher for internal files
+     * only if there is none.
+     */
+    public static IgnoreMatcher load(File folder) {
+        IgnoreMatcher matcher = new IgnoreMatcher();
+        File file = new File(folder, IGNORE_FILE);
+        if (file.exists())
+            matcher.parseFile(file, new HashSet<String>());
+        return matcher;
+    }
+
+    private void parseFile(File file, Set<String> included) {
+        try {
+            if (!included.add(file.getCanonicalPath())) {
+                Log.w(TAG, "Ignoring recursive include of " + file);
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to resolve " + file, e);
+            return;
+        }
+
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("#include ")) {
+                    String name = line.substring("#include ".length()).trim();
+                    parseFile(new File(file.getParentFile(), name), included);
+                } else {
+                    addPattern(line);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + file, e);
+        } finally {
+            try {
+                if (br != null)
+                    br.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Adds a single line in .stignore syntax. Empty lines and comments are skipped.
+     */
+    public void addPattern(String line) {
+        if (line.isEmpty() || line.startsWith("//"))
+            return;
+
+        boolean include = false;
+        boolean caseInsensitive = false;
+        while (true) {
+            if (line.startsWith("!")) {
+                include = true;
+                line = line.substring(1);
+            } else if (line.startsWith("(?i)")) {
+                caseInsensitive = true;
+                line = line.substring(4);
+            } else if (line.startsWith("(?d)")) {
+                line = line.substring(4);
+            } else {
+                break;
+            }
+        }
+
+        boolean anchored = line.startsWith("/");
+        while (line.startsWith("/")) {
+            line = line.substring(1);
+        }
+        while (line.endsWith("/")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        if (line.isEmpty())
+            return;
+
+        // A pattern also matches everything inside matching directories.
+        String regex = ((anchored) ? "^" : "^(?:.*/)?") + globToRegex(line) + "(?:/.*)?$";
+        try {
+            mRules.add(new Rule(Pattern.compile(regex,
+                    (caseInsensitive) ? Pattern.CASE_INSENSITIVE : 0), include));
+            mHasNegations |= include;
+        } catch (PatternSyntaxException e) {
+            Log.w(TAG, "Skipping invalid ignore pattern " + line, e);
+        }
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        sb.append(".*");
+                        i++;
+                    } else {
+                        sb.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    sb.append("[^/]");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end == -1) {
+                        sb.append("\\[");
+                        break;
+                    }
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!"))
+                        set = "^" + set.substring(1);
+                    sb.append('[').append(set.replace("\\", "\\\\")).append(']');
+                    i = end;
+                    break;
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        i++;
+                        sb.append(Pattern.quote(Character.toString(glob.charAt(i))));
+                    }
+                    break;
+                default:
+                    if ("().+^$|{}".indexOf(c) != -1)
+                        sb.append('\\');
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns true if changes to the given path should not be scanned.
+     *
+     * @param path Path relative to the folder root, with or without leading slash.
+     */
+    public boolean isIgnored(String path) {
+        path = trimPath(path);
+        if (path.isEmpty())
+            return false;
+
+        if (isInternal(path))
+            return true;
+
+        for (Rule r : mRules) {
+            if (r.pattern.matcher(path).matches())
+                return !r.include;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the given directory does not need to be watched, because nothing inside
+     * it can be included again by a negated pattern.
+     */
+    public boolean isSkippedDirectory(String path) {
+        path = trimPath(path);
+        if (path.isEmpty())
+            return false;
+
+        return isInternal(path) || (!mHasNegations && isIgnored(path));
+    }
+
+    private static String trimPath(String path) {
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        return path;
+    }
+
+    /**
+     * Returns true for files and directories that syncthing creates for its own use.
+     */
+    private static boolean isInternal(String path) {
+        String first = path.split("/", 2)[0];
+        if (first.equals(".stfolder") || first.equals(".stversions") ||
+                path.equals(IGNORE_FILE))
+            return true;
+
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        return name.endsWith(".tmp") &&
+                (name.startsWith(".syncthing.") || name.startsWith("~syncthing~"));
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.nutomic.syncthingandroid.util;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.nutomic.syncthingandroid.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates item views for log lines, which can be added at either end.
+ */
+public class LogAdapter extends BaseAdapter {
+
+    private final List<LogStore.Entry> mEntries = new ArrayList<>();
+
+    private final LayoutInflater mInflater;
+
+    public LogAdapter(Context context) {
+        mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+    }
+
+    /**
+     * Adds entries before the first one.
+     */
+    public void addOlder(List<LogStore.Entry> entries) {
+        mEntries.addAll(0, entries);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Adds entries after the last one.
+     */
+    public void addNewer(List<LogStore.Entry> entries) {
+        mEntries.addAll(entries);
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Removes the oldest entries so that at most max are left.
+     *
+     * @return The number of removed entries.
+     */
+    public int trim(int max) {
+        int remove = mEntries.size() - max;
+        if (remove <= 0)
+            return 0;
+
+        mEntries.subList(0, remove).clear();
+        notifyDataSetChanged();
+        return remove;
+    }
+
+    public void clear() {
+        mEntries.clear();
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mEntries.size();
+    }
+
+    @Override
+    public LogStore.Entry getItem(int position) {
+        return mEntries.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mEntries.get(position).sequence;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (convertView == null)
+            convertView = mInflater.inflate(R.layout.item_log, parent, false);
+
+        ((TextView) convertView).setText(getItem(position).line);
+        return convertView;
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.nutomic.syncthingandroid.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Selects log lines by minimum priority, logcat tag and regular expression.
+ */
+public class LogFilter {
+
+    public final int minPriority;
+
+    /**
+     * Only lines in logcat's brief format with this tag match, or all lines if empty.
+     */
+    public final String tag;
+
+    /**
+     * Only lines containing a match of this expression are shown, or all lines if empty.
+     */
+    public final String regex;
+
+    private final Pattern mPattern;
+
+    /**
+     * Creates a filter that matches all lines.
+     */
+    public LogFilter() {
+        this(Log.VERBOSE, "", "");
+    }
+
+    /**
+     * @throws PatternSyntaxException If regex is not a valid regular expression.
+     */
+    public LogFilter(int minPriority, String tag, String regex) {
+        this.minPriority = minPriority;
+        this.tag = tag.trim();
+        this.regex = regex;
+        mPattern = (TextUtils.isEmpty(regex)) ? null : Pattern.compile(regex);
+    }
+
+    /**
+     * Returns a copy of this filter that does not filter by tag, eg for the syncthing log, which
+     * is not in logcat's format.
+     */
+    public LogFilter withoutTag() {
+        return (tag.isEmpty()) ? this : new LogFilter(minPriority, "", regex);
+    }
+
+    public boolean matches(LogStore.Entry entry) {
+        if (entry.priority < minPriority)
+            return false;
+
+        if (!tag.isEmpty() && !tag.equals(getTag(entry.line)))
+            return false;
+
+        return mPattern == null || mPattern.matcher(entry.line).find();
+    }
+
+    /**
+     * Returns all entries that match, in the same order.
+     */
+    public List<LogStore.Entry> filter(List<LogStore.Entry> entries) {
+        List<LogStore.Entry> matching = new ArrayList<>();
+        for (LogStore.Entry e : entries) {
+            if (matches(e))
+                matching.add(e);
+        }
+        return matching;
+    }
+
+    /**
+     * Returns the tag of a line in logcat's brief format, eg "W/Tag( 123): message", or null.
+     */
+    private static String getTag(String line) {
+        if (line.length() < 2 || line.charAt(1) != '/')
+            return null;
+
+        int end = line.indexOf('(');
+        if (end == -1)
+            end = line.indexOf(':');
+        if (end == -1)
+            return null;
+
+        return line.substring(2, end).trim();
+    }
+
+}
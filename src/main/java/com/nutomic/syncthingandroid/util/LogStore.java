@@ -0,0 +1,250 @@
+package com.nutomic.syncthingandroid.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recent output of the syncthing binary.
+ *
+ * Lines are kept in a fixed size ring buffer in memory, and are also written to two memory
+ * mapped segment files that are used alternately. The files survive crashes of the app, and
+ * their content is loaded into memory when the store is opened.
+ *
+ * All methods are thread safe.
+ */
+public class LogStore {
+
+    private static final String TAG = "LogStore";
+
+    /**
+     * Number of lines that are kept in memory.
+     */
+    public static final int CAPACITY = 1000;
+
+    /**
+     * Size of each segment file in bytes.
+     */
+    private static final int SEGMENT_SIZE = 256 * 1024;
+
+    /**
+     * Each segment starts with its generation, so the newer one can be found after a restart.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    private static final String[] SEGMENT_FILES = { "native-log-0", "native-log-1" };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static LogStore sInstance;
+
+    public static class Entry {
+        public final long sequence;
+        public final int priority;
+        public final String line;
+
+        Entry(long sequence, int priority, String line) {
+            this.sequence = sequence;
+            this.priority = priority;
+            this.line = line;
+        }
+    }
+
+    private final Entry[] mEntries = new Entry[CAPACITY];
+
+    /**
+     * Index in {@link #mEntries} where the next entry is written.
+     */
+    private int mHead = 0;
+
+    private int mCount = 0;
+
+    private long mNextSequence = 0;
+
+    private final MappedByteBuffer[] mSegments = new MappedByteBuffer[SEGMENT_FILES.length];
+
+    private int mCurrentSegment;
+
+    private long mGeneration;
+
+    /**
+     * Returns the store of this app, opening it on first use.
+     */
+    public static synchronized LogStore getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new LogStore(context.getFilesDir());
+        return sInstance;
+    }
+
+    /**
+     * Creates a store that only keeps lines in memory.
+     */
+    public LogStore() {
+    }
+
+    /**
+     * Opens the store in the given directory. Only used directly by tests.
+     */
+    public LogStore(File directory) {
+        try {
+            long[] generations = new long[SEGMENT_FILES.length];
+            for (int i = 0; i < SEGMENT_FILES.length; i++) {
+                RandomAccessFile file =
+                        new RandomAccessFile(new File(directory, SEGMENT_FILES[i]), "rw");
+                // The mapping stays valid after the channel is closed.
+                mSegments[i] = file.getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+                file.close();
+                generations[i] = mSegments[i].getLong(0);
+            }
+            mCurrentSegment = (generations[0] >= generations[1]) ? 0 : 1;
+            mGeneration = generations[mCurrentSegment];
+            load(1 - mCurrentSegment);
+            load(mCurrentSegment);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open log files, only keeping log in memory", e);
+            mSegments[0] = null;
+            mSegments[1] = null;
+        }
+    }
+
+    /**
+     * Reads all lines of the given segment into memory, and moves its position to the end.
+     */
+    private void load(int segment) {
+        MappedByteBuffer buffer = mSegments[segment];
+        int end = HEADER_SIZE;
+        while (end < SEGMENT_SIZE && buffer.get(end) != 0) {
+            end++;
+        }
+        byte[] content = new byte[end - HEADER_SIZE];
+        buffer.position(HEADER_SIZE);
+        buffer.get(content);
+        for (String line : new String(content, UTF_8).split("\n")) {
+            if (line.length() < 2)
+                continue;
+
+            addEntry(priorityFromChar(line.charAt(0)), line.substring(2));
+        }
+    }
+
+    /**
+     * Adds a line with the given {@link Log} priority, and returns its sequence number.
+     */
+    public synchronized long append(int priority, String line) {
+        line = line.replace('\0', ' ');
+        long sequence = addEntry(priority, line);
+        write(priorityToChar(priority) + " " + line + "\n");
+        return sequence;
+    }
+
+    private long addEntry(int priority, String line) {
+        long sequence = mNextSequence++;
+        mEntries[mHead] = new Entry(sequence, priority, line);
+        mHead = (mHead + 1) % CAPACITY;
+        mCount = Math.min(mCount + 1, CAPACITY);
+        return sequence;
+    }
+
+    private void write(String text) {
+        MappedByteBuffer buffer = mSegments[mCurrentSegment];
+        if (buffer == null)
+            return;
+
+        byte[] bytes = text.getBytes(UTF_8);
+        int max = SEGMENT_SIZE - HEADER_SIZE;
+        if (bytes.length > max) {
+            byte[] truncated = new byte[max];
+            System.arraycopy(bytes, 0, truncated, 0, max);
+            bytes = truncated;
+        }
+        if (buffer.remaining() < bytes.length) {
+            mCurrentSegment = 1 - mCurrentSegment;
+            buffer = mSegments[mCurrentSegment];
+            clear(buffer);
+            buffer.putLong(0, ++mGeneration);
+            buffer.position(HEADER_SIZE);
+        }
+        buffer.put(bytes);
+    }
+
+    private void clear(MappedByteBuffer buffer) {
+        byte[] zeros = new byte[8192];
+        buffer.position(0);
+        while (buffer.remaining() > 0) {
+            buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+        }
+    }
+
+    /**
+     * Returns the sequence number that the next line will have.
+     */
+    public synchronized long getNextSequence() {
+        return mNextSequence;
+    }
+
+    /**
+     * Returns all lines in memory with the given minimum priority, starting at sequence.
+     */
+    public synchronized List<Entry> getEntries(long since, int minPriority) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < mCount; i++) {
+            Entry e = mEntries[(mHead - mCount + i + CAPACITY) % CAPACITY];
+            if (e.sequence >= since && e.priority >= minPriority)
+                entries.add(e);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns up to count lines in memory that come before the given sequence, oldest first.
+     */
+    public synchronized List<Entry> getPage(long before, int count) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = mCount - 1; i >= 0 && entries.size() < count; i--) {
+            Entry e = mEntries[(mHead - mCount + i + CAPACITY) % CAPACITY];
+            if (e.sequence < before)
+                entries.add(0, e);
+        }
+        return entries;
+    }
+
+    /**
+     * Same as {@link #getEntries}, but returns the lines joined by newlines.
+     */
+    public String getText(long since, int minPriority) {
+        StringBuilder sb = new StringBuilder();
+        for (Entry e : getEntries(since, minPriority)) {
+            sb.append(e.line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static char priorityToChar(int priority) {
+        switch (priority) {
+            case Log.VERBOSE: return 'V';
+            case Log.DEBUG:   return 'D';
+            case Log.INFO:    return 'I';
+            case Log.WARN:    return 'W';
+            default:          return 'E';
+        }
+    }
+
+    static int priorityFromChar(char c) {
+        switch (c) {
+            case 'V': return Log.VERBOSE;
+            case 'D': return Log.DEBUG;
+            case 'I': return Log.INFO;
+            case 'W': return Log.WARN;
+            default:  return Log.ERROR;
+        }
+    }
+}
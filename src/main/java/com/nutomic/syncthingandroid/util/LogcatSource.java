@@ -0,0 +1,79 @@
+package com.nutomic.syncthingandroid.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Follows the Android log, and keeps its most recent lines in a memory only {@link LogStore}.
+ */
+public class LogcatSource {
+
+    private static final String TAG = "LogcatSource";
+
+    private final LogStore mStore = new LogStore();
+
+    private Process mProcess;
+
+    /**
+     * Starts reading logcat in a background thread, beginning with its current buffer.
+     */
+    public synchronized void start() {
+        if (mProcess != null)
+            return;
+
+        try {
+            ProcessBuilder pb = new ProcessBuilder("/system/bin/logcat", "-v", "brief");
+            pb.redirectErrorStream(true);
+            mProcess = pb.start();
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading Android log", e);
+            return;
+        }
+
+        final Process process = mProcess;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    BufferedReader br = new BufferedReader(
+                            new InputStreamReader(process.getInputStream(), "UTF-8"), 8192);
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        mStore.append(getPriority(line), line);
+                    }
+                } catch (IOException e) {
+                    // Thrown when the process is destroyed by stop().
+                    Log.d(TAG, "Stopped reading Android log", e);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Stops reading logcat. Lines that were already read stay available.
+     */
+    public synchronized void stop() {
+        if (mProcess != null) {
+            mProcess.destroy();
+            mProcess = null;
+        }
+    }
+
+    public LogStore getStore() {
+        return mStore;
+    }
+
+    /**
+     * Returns the priority of a line in logcat's brief format, eg "W/Tag( 123): message".
+     */
+    private static int getPriority(String line) {
+        if (line.length() < 2 || line.charAt(1) != '/')
+            return Log.INFO;
+
+        return LogStore.priorityFromChar(line.charAt(0));
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.nutomic.syncthingandroid.util;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of inotify watches that all {@link FolderObserver}s use together.
+ *
+ * The kernel limit applies to all processes of the app's user, so only part of it is used.
+ */
+public class WatchBudget {
+
+    private static final String TAG = "WatchBudget";
+
+    private static final String MAX_USER_WATCHES = "/proc/sys/fs/inotify/max_user_watches";
+
+    /**
+     * Used if the kernel limit can not be read. This is the kernel's default.
+     */
+    private static final int DEFAULT_LIMIT = 8192;
+
+    /**
+     * Share of the kernel limit that may be used.
+     */
+    private static final float KERNEL_LIMIT_SHARE = 0.8f;
+
+    private static WatchBudget sDefault;
+
+    private final int mLimit;
+
+    private final AtomicInteger mUsed = new AtomicInteger();
+
+    private final AtomicBoolean mExhaustedLogged = new AtomicBoolean();
+
+    /**
+     * Returns the budget shared by all observers, based on the kernel limit.
+     */
+    public static synchronized WatchBudget getDefault() {
+        if (sDefault == null)
+            sDefault = new WatchBudget((int) (readKernelLimit() * KERNEL_LIMIT_SHARE));
+        return sDefault;
+    }
+
+    public WatchBudget(int limit) {
+        mLimit = limit;
+    }
+
+    /**
+     * Reserves one watch.
+     *
+     * @return False if the budget is used up.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int used = mUsed.get();
+            if (used >= mLimit) {
+                if (mExhaustedLogged.compareAndSet(false, true))
+                    Log.w(TAG, "All " + mLimit + " inotify watches are used, further " +
+                            "directories are rescanned periodically instead");
+                return false;
+            }
+            if (mUsed.compareAndSet(used, used + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Returns a watch reserved by {@link #tryAcquire}.
+     */
+    public void release() {
+        mUsed.decrementAndGet();
+        mExhaustedLogged.set(false);
+    }
+
+    public boolean isAvailable() {
+        return mUsed.get() < mLimit;
+    }
+
+    public int getUsed() {
+        return mUsed.get();
+    }
+
+    public int getLimit() {
+        return mLimit;
+    }
+
+    private static int readKernelLimit() {
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(MAX_USER_WATCHES));
+            String line = br.readLine();
+            return (line != null) ? Integer.parseInt(line.trim()) : DEFAULT_LIMIT;
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read inotify watch limit, using default", e);
+            return DEFAULT_LIMIT;
+        } finally {
+            try {
+                if (br != null)
+                    br.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close " + MAX_USER_WATCHES, e);
+            }
+        }
+    }
+
+}